@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.svt.helios.serviceregistration.consul.model.AgentService;
+
+import java.io.ByteArrayInputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of /v1/agent/services responses where one in ten services is deployed by Helios.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AgentServicesParseBenchmark {
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    @Param({"10", "100", "1000", "10000"})
+    public int entries;
+
+    private byte[] payload;
+    private AgentServicesParser parser;
+
+    @Setup
+    public void setUp() throws Exception {
+        payload = Payloads.agentServices(entries, 10);
+        parser = new AgentServicesParser(OBJECT_MAPPER.getFactory());
+    }
+
+    @Benchmark
+    public Map<String, AgentService> streaming() throws Exception {
+        return parser.parse(new ByteArrayInputStream(payload), Payloads.DEPLOY_TAG);
+    }
+
+    /**
+     * Binds the whole response, for comparison with the streaming parser.
+     */
+    @Benchmark
+    public Map<String, AgentService> databind() throws Exception {
+        return OBJECT_MAPPER.readValue(new ByteArrayInputStream(payload),
+                new TypeReference<Map<String, AgentService>>() {
+                });
+    }
+}
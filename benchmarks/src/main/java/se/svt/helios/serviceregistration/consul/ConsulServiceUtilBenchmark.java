@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul;
+
+import com.spotify.helios.serviceregistration.ServiceRegistration.Endpoint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.svt.helios.serviceregistration.consul.model.Service;
+import se.svt.helios.serviceregistration.consul.model.ServiceCheck;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Derivation of a Consul service from a Helios endpoint.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConsulServiceUtilBenchmark {
+    private final Endpoint endpoint = Payloads.endpoint(42);
+    private final ConsulServiceUtil serviceUtil = Payloads.SERVICE_UTIL;
+
+    @Benchmark
+    public Service createService() {
+        return serviceUtil.createService(endpoint);
+    }
+
+    @Benchmark
+    public List<String> tags() {
+        return serviceUtil.tags(endpoint);
+    }
+
+    @Benchmark
+    public Map<String, String> kvTags() {
+        return serviceUtil.kvTags(endpoint);
+    }
+
+    @Benchmark
+    public ServiceCheck serviceCheck() {
+        return serviceUtil.serviceCheck(endpoint);
+    }
+}
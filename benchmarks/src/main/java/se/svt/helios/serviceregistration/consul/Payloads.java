@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import com.spotify.helios.serviceregistration.ServiceRegistration.Endpoint;
+import com.spotify.helios.serviceregistration.ServiceRegistration.EndpointHealthCheck;
+import se.svt.helios.serviceregistration.consul.model.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Test data shared by the benchmarks.
+ */
+final class Payloads {
+    static final String DEPLOY_TAG = "helios-deployed";
+    static final ConsulServiceUtil SERVICE_UTIL = new ConsulServiceUtil(10, DEPLOY_TAG);
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private Payloads() {
+    }
+
+    static Endpoint endpoint(final int i) {
+        return new Endpoint("service-" + i + "-v" + (i % 50), "http", 8000 + i % 1000,
+                "example.com", "host-" + i % 10 + ".example.com",
+                Arrays.asList("production", "team-" + i % 7, "healthCheckEndpoint::/health"),
+                new EndpointHealthCheck(EndpointHealthCheck.HTTP, "/status"));
+    }
+
+    static List<Endpoint> endpoints(final int count) {
+        final List<Endpoint> endpoints = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            endpoints.add(endpoint(i));
+        }
+        return endpoints;
+    }
+
+    /**
+     * Creates a /v1/agent/services response with the given number of entries. Every
+     * {@code heliosRatio}th entry is one of the Helios endpoints from {@link #endpoint(int)},
+     * registered exactly as the registrar would register it; the rest are other services on the
+     * same agent.
+     */
+    static byte[] agentServices(final int entries, final int heliosRatio) throws Exception {
+        final Map<String, Object> services = new LinkedHashMap<>();
+        for (int i = 0; i < entries; i++) {
+            if (i % heliosRatio == 0) {
+                final Service service = SERVICE_UTIL.createService(endpoint(i / heliosRatio));
+                services.put(service.getId(), agentService(service.getId(), service.getName(),
+                        service.getTags(), service.getPort()));
+            } else {
+                services.put("other-" + i, agentService("other-" + i, "other",
+                        Arrays.asList("prod", "other-" + i % 13), 20000 + i % 1000));
+            }
+        }
+        return OBJECT_MAPPER.writeValueAsBytes(services);
+    }
+
+    /**
+     * Creates the /v1/agent/checks response matching {@link #agentServices(int, int)}.
+     */
+    static byte[] agentChecks(final int entries, final int heliosRatio) throws Exception {
+        final Map<String, Object> checks = new LinkedHashMap<>();
+        for (int i = 0; i < entries; i += heliosRatio) {
+            final Service service = SERVICE_UTIL.createService(endpoint(i / heliosRatio));
+            final String checkId = "service:" + service.getId();
+            checks.put(checkId, ImmutableMap.of(
+                    "CheckID", checkId,
+                    "Name", service.getCheck().getName(),
+                    "Status", "passing",
+                    "ServiceID", service.getId(),
+                    "ServiceName", service.getName()));
+        }
+        return OBJECT_MAPPER.writeValueAsBytes(checks);
+    }
+
+    private static Map<String, Object> agentService(final String id, final String name,
+                                                    final List<String> tags,
+                                                    final Integer port) {
+        return ImmutableMap.<String, Object>builder()
+                .put("ID", id)
+                .put("Service", name)
+                .put("Tags", tags)
+                .put("Meta", ImmutableMap.of())
+                .put("Port", port)
+                .put("Address", "")
+                .put("Weights", ImmutableMap.of("Passing", 1, "Warning", 1))
+                .put("EnableTagOverride", false)
+                .build();
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul;
+
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An in-process stand-in for the local Consul agent. It serves a fixed service and check list
+ * and acknowledges every registration and deregistration. When given a version of Consul 1.4 or
+ * later, it serves the filtered service list to requests with a filter.
+ */
+final class StubConsulAgent implements AutoCloseable {
+    private static final byte[] EMPTY_OBJECT = "{}".getBytes(StandardCharsets.UTF_8);
+    private static final String CONTENT_HASH_HEADER = "X-Consul-ContentHash";
+
+    static {
+        // Otherwise Nagle's algorithm and delayed ACKs dominate every round trip
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private volatile byte[] agentServices = EMPTY_OBJECT;
+    private volatile byte[] agentChecks = EMPTY_OBJECT;
+    private volatile byte[] filteredAgentServices = EMPTY_OBJECT;
+    private volatile byte[] agentSelf = EMPTY_OBJECT;
+
+    StubConsulAgent() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 128);
+        this.executor = Executors.newFixedThreadPool(4);
+        this.server.setExecutor(executor);
+        this.server.createContext("/v1/agent/services", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                final byte[] body = agentServices(exchange.getRequestURI().getRawQuery());
+                // Like a real agent, the service list has a content hash but no X-Consul-Index
+                exchange.getResponseHeaders().set(CONTENT_HASH_HEADER, contentHash(body));
+                respond(exchange, body);
+            }
+        });
+        this.server.createContext("/v1/agent/self", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                respond(exchange, agentSelf);
+            }
+        });
+        this.server.createContext("/v1/agent/checks", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                respond(exchange, agentChecks);
+            }
+        });
+        this.server.createContext("/v1/agent/service/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                respond(exchange, new byte[0]);
+            }
+        });
+        this.server.start();
+    }
+
+    void setAgentServices(final byte[] agentServices) {
+        this.agentServices = agentServices;
+    }
+
+    void setAgentChecks(final byte[] agentChecks) {
+        this.agentChecks = agentChecks;
+    }
+
+    /**
+     * @param filteredAgentServices The service list for requests that filter it by the deploy
+     *                              tag.
+     */
+    void setFilteredAgentServices(final byte[] filteredAgentServices) {
+        this.filteredAgentServices = filteredAgentServices;
+    }
+
+    void setVersion(final String version) {
+        this.agentSelf = ("{\"Config\":{\"Version\":\"" + version + "\"}}")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    String getUri() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return A transport that answers like this agent without going through the HTTP server.
+     */
+    ConsulTransport inMemoryTransport() {
+        return new InMemoryTransport(new InMemoryTransport.Handler() {
+            @Override
+            public HttpResponse handle(final HttpUriRequest request) {
+                final String path = request.getURI().getPath();
+                final HttpResponse response =
+                        new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+                if (path.equals("/v1/agent/services")) {
+                    final byte[] body = agentServices(request.getURI().getRawQuery());
+                    response.setHeader(CONTENT_HASH_HEADER, contentHash(body));
+                    response.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
+                } else if (path.equals("/v1/agent/self")) {
+                    response.setEntity(
+                            new ByteArrayEntity(agentSelf, ContentType.APPLICATION_JSON));
+                } else if (path.equals("/v1/agent/checks")) {
+                    response.setEntity(
+                            new ByteArrayEntity(agentChecks, ContentType.APPLICATION_JSON));
+                }
+                return response;
+            }
+        });
+    }
+
+    private byte[] agentServices(final String query) {
+        return query != null && query.contains("filter=") ? filteredAgentServices : agentServices;
+    }
+
+    private static String contentHash(final byte[] body) {
+        return Integer.toHexString(Arrays.hashCode(body));
+    }
+
+    private static void respond(final HttpExchange exchange, final byte[] body)
+            throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            ByteStreams.copy(in, ByteStreams.nullOutputStream());
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length == 0 ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
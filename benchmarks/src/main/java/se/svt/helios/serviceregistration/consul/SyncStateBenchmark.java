@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul;
+
+import com.spotify.helios.serviceregistration.ServiceRegistration;
+import com.spotify.helios.serviceregistration.ServiceRegistration.Endpoint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import se.svt.helios.serviceregistration.consul.metrics.NoopRegistrarMetrics;
+import se.svt.helios.serviceregistration.consul.model.ConsulClientConfig;
+import se.svt.helios.serviceregistration.consul.model.RegistrarConfig;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A full syncState() round trip against an in-process stub agent that already has every
+ * endpoint registered, next to nine times as many services not deployed by Helios. The agent is
+ * reached over loopback HTTP, or through an in-memory transport that leaves only the client's
+ * own cost. Agents of Consul 1.4 and later leave the other services out of the response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SyncStateBenchmark {
+    @Param({"10", "100", "1000"})
+    public int endpoints;
+
+    @Param({"http", "memory"})
+    public String transport;
+
+    @Param({"1.2.0", "1.4.0"})
+    public String consulVersion;
+
+    private StubConsulAgent agent;
+    private ConsulServiceRegistrar registrar;
+
+    @Setup
+    public void setUp() throws Exception {
+        agent = new StubConsulAgent();
+        agent.setVersion(consulVersion);
+
+        final RegistrarConfig config = RegistrarConfig.builder()
+                .setSyncInterval(3600)
+                .setDeployTag(Payloads.DEPLOY_TAG)
+                .build();
+        final ConsulClient client = transport.equals("memory")
+                ? new ConsulClient(Collections.singletonList(agent.getUri()),
+                                   agent.inMemoryTransport(),
+                                   ConsulClientConfig.builder().build(),
+                                   NoopRegistrarMetrics.INSTANCE)
+                : new ConsulClient(agent.getUri());
+        registrar = new ConsulServiceRegistrar(client, config);
+        for (final Endpoint endpoint : Payloads.endpoints(endpoints)) {
+            registrar.register(new ServiceRegistration(Collections.singletonList(endpoint)));
+        }
+
+        agent.setAgentServices(Payloads.agentServices(endpoints * 10, 10));
+        agent.setFilteredAgentServices(Payloads.agentServices(endpoints, 1));
+        agent.setAgentChecks(Payloads.agentChecks(endpoints * 10, 10));
+    }
+
+    @TearDown
+    public void tearDown() {
+        registrar.close();
+        agent.close();
+    }
+
+    @Benchmark
+    public ServiceReconciler.Plan syncState() throws Exception {
+        return registrar.syncState().get();
+    }
+}
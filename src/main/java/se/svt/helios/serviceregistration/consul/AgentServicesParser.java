@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import se.svt.helios.serviceregistration.consul.model.AgentService;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Streaming parser for the response from http://localhost:8500/v1/agent/services that only
+ * materializes the services carrying a given tag.
+ *
+ * <p>The text of each service is copied into a reusable character buffer while it is parsed.
+ * Strings and {@link AgentService} objects are only created once the service is known to carry
+ * the tag, so services not deployed by Helios are skipped without allocating anything.
+ */
+public class AgentServicesParser {
+    private final JsonFactory jsonFactory;
+
+    public AgentServicesParser(final JsonFactory jsonFactory) {
+        this.jsonFactory = jsonFactory;
+    }
+
+    public Map<String, AgentService> parse(final InputStream in, final String tag)
+            throws IOException {
+        final char[] tagChars = tag.toCharArray();
+        final Scratch scratch = new Scratch();
+        final ImmutableMap.Builder<String, AgentService> services = ImmutableMap.builder();
+
+        try (JsonParser parser = jsonFactory.createParser(in)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String key = parser.getCurrentName();
+                expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+
+                scratch.reset();
+                if (parseService(parser, tagChars, scratch)) {
+                    services.put(key, scratch.toAgentService());
+                }
+            }
+        }
+
+        return services.build();
+    }
+
+    /**
+     * Parses one service object into the scratch buffer.
+     *
+     * @return true if the service has the tag.
+     */
+    private static boolean parseService(final JsonParser parser, final char[] tag,
+                                        final Scratch scratch) throws IOException {
+        boolean tagged = false;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            final JsonToken token = parser.nextToken();
+
+            switch (field) {
+                case "ID":
+                    scratch.id = scratch.append(parser, token);
+                    break;
+                case "Service":
+                    scratch.service = scratch.append(parser, token);
+                    break;
+                case "Address":
+                    scratch.address = scratch.append(parser, token);
+                    break;
+                case "Port":
+                    scratch.hasPort = token == JsonToken.VALUE_NUMBER_INT;
+                    scratch.port = scratch.hasPort ? parser.getIntValue() : 0;
+                    break;
+                case "Tags":
+                    if (token == JsonToken.START_ARRAY) {
+                        while (parser.nextToken() == JsonToken.VALUE_STRING) {
+                            tagged |= textEquals(parser, tag);
+                            scratch.addTag(scratch.append(parser, JsonToken.VALUE_STRING));
+                        }
+                        expect(parser, parser.getCurrentToken(), JsonToken.END_ARRAY);
+                    } else {
+                        expect(parser, token, JsonToken.VALUE_NULL);
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+        expect(parser, parser.getCurrentToken(), JsonToken.END_OBJECT);
+
+        return tagged;
+    }
+
+    private static boolean textEquals(final JsonParser parser, final char[] expected)
+            throws IOException {
+        if (parser.getTextLength() != expected.length) {
+            return false;
+        }
+        final char[] chars = parser.getTextCharacters();
+        final int offset = parser.getTextOffset();
+        for (int i = 0; i < expected.length; i++) {
+            if (chars[offset + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void expect(final JsonParser parser, final JsonToken actual,
+                               final JsonToken expected) throws JsonParseException {
+        if (actual != expected) {
+            throw new JsonParseException("Expected " + expected + " but was " + actual,
+                                         parser.getCurrentLocation());
+        }
+    }
+
+    /**
+     * Holds the text of the service being parsed as (offset, length) ranges in one char buffer.
+     */
+    private static final class Scratch {
+        private static final long NULL = -1;
+
+        private char[] chars = new char[512];
+        private int length;
+        private long[] tags = new long[16];
+        private int tagCount;
+
+        private long id;
+        private long service;
+        private long address;
+        private boolean hasPort;
+        private int port;
+
+        void reset() {
+            length = 0;
+            tagCount = 0;
+            id = NULL;
+            service = NULL;
+            address = NULL;
+            hasPort = false;
+        }
+
+        long append(final JsonParser parser, final JsonToken token) throws IOException {
+            if (token == JsonToken.VALUE_NULL) {
+                return NULL;
+            }
+            expect(parser, token, JsonToken.VALUE_STRING);
+
+            final int textLength = parser.getTextLength();
+            if (length + textLength > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(chars.length * 2, length + textLength));
+            }
+            System.arraycopy(parser.getTextCharacters(), parser.getTextOffset(),
+                             chars, length, textLength);
+
+            final long range = ((long) length << 32) | textLength;
+            length += textLength;
+            return range;
+        }
+
+        void addTag(final long range) {
+            if (tagCount == tags.length) {
+                tags = Arrays.copyOf(tags, tags.length * 2);
+            }
+            tags[tagCount++] = range;
+        }
+
+        AgentService toAgentService() {
+            final ImmutableList.Builder<String> tagList = ImmutableList.builder();
+            for (int i = 0; i < tagCount; i++) {
+                tagList.add(string(tags[i]));
+            }
+            return new AgentService(string(id), string(service), tagList.build(),
+                                    string(address), hasPort ? Integer.valueOf(port) : null);
+        }
+
+        private String string(final long range) {
+            if (range == NULL) {
+                return null;
+            }
+            return new String(chars, (int) (range >>> 32), (int) range);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Consul agents a client may send requests to, with the health observed for each.
+ *
+ * <p>Consul keeps services per agent, and an agent only reports and removes the services
+ * registered through it. So once a registration has gone through an agent, that agent is the
+ * home of the client, and all requests go to it from then on, even while it fails for a while,
+ * for example while it restarts. Only once it has failed every request for the home failover
+ * time, or is no longer among the agents, does the client fail over: it has no home until a
+ * registration goes through another agent, which the registrar's next sync does for all its
+ * services. Until there is a home, requests go to the first healthy agent in the order given.
+ * An agent that fails a request is skipped for a back-off period that doubles with each
+ * consecutive failure; if all agents are backing off, the one that will recover first is used
+ * anyway.
+ *
+ * <p>The agents may be replaced while the client runs, when they are resolved again. The health
+ * observed for the agents that remain is kept.
+ */
+class ConsulAgentPool {
+    private static final Logger log = LoggerFactory.getLogger(ConsulAgentPool.class);
+
+    private static final long MIN_BACKOFF = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_BACKOFF = TimeUnit.SECONDS.toNanos(30);
+    private static final long HOME_FAILOVER = TimeUnit.SECONDS.toNanos(60);
+
+    private final Ticker ticker;
+
+    // Guarded by this for writes
+    private volatile List<Agent> agents;
+
+    // Guarded by this
+    private Agent home;
+
+    ConsulAgentPool(final List<String> baseUris) {
+        this(baseUris, Ticker.systemTicker());
+    }
+
+    ConsulAgentPool(final List<String> baseUris, final Ticker ticker) {
+        if (baseUris.isEmpty()) {
+            throw new IllegalArgumentException("No Consul agents");
+        }
+        final ImmutableList.Builder<Agent> builder = ImmutableList.builder();
+        for (final String baseUri : baseUris) {
+            builder.add(new Agent(baseUri));
+        }
+        this.agents = builder.build();
+        this.ticker = ticker;
+    }
+
+    /**
+     * Replaces the agents, keeping the ones that remain as they are. The home agent is given up if
+     * it is not among them anymore.
+     *
+     * @return Whether the agents changed.
+     */
+    synchronized boolean update(final List<String> baseUris) {
+        if (baseUris.isEmpty()) {
+            throw new IllegalArgumentException("No Consul agents");
+        }
+        final Map<String, Agent> current = new HashMap<>();
+        for (final Agent agent : agents) {
+            current.put(agent.getBaseUri(), agent);
+        }
+        final ImmutableList.Builder<Agent> builder = ImmutableList.builder();
+        for (final String baseUri : baseUris) {
+            final Agent agent = current.get(baseUri);
+            builder.add(agent != null ? agent : new Agent(baseUri));
+        }
+        final List<Agent> updated = builder.build();
+        if (updated.equals(agents)) {
+            return false;
+        }
+        agents = updated;
+        log.info("Consul agents changed to {}", updated);
+        if (home != null && !updated.contains(home)) {
+            log.warn("Consul agent {} that services were registered through is gone, failing " +
+                     "over to the other agents", home);
+            home = null;
+        }
+        return true;
+    }
+
+    int size() {
+        return agents.size();
+    }
+
+    List<Agent> getAgents() {
+        return agents;
+    }
+
+    /**
+     * @return The agent to send the next request to.
+     */
+    Agent select() {
+        return select(null);
+    }
+
+    /**
+     * @return The agent to send the next request to: the home agent once there is one, otherwise
+     * the first healthy agent other than the excluded one if possible.
+     */
+    synchronized Agent select(final Agent excluded) {
+        if (home != null) {
+            return home;
+        }
+        final long now = ticker.read();
+        Agent firstRecovering = null;
+        for (final Agent agent : agents) {
+            if (agent == excluded) {
+                continue;
+            }
+            if (agent.downUntil - now <= 0) {
+                return agent;
+            }
+            if (firstRecovering == null || agent.downUntil - firstRecovering.downUntil < 0) {
+                firstRecovering = agent;
+            }
+        }
+        return firstRecovering != null ? firstRecovering : excluded;
+    }
+
+    /**
+     * @return The agent the client has registered services through, or null if none yet.
+     */
+    synchronized Agent getHome() {
+        return home;
+    }
+
+    /**
+     * Makes the agent a registration went through the home agent, unless there already is one.
+     */
+    synchronized void registered(final Agent agent) {
+        if (home == null) {
+            home = agent;
+            if (agents.size() > 1) {
+                log.info("Registered a service through Consul agent {}, sending all requests " +
+                         "there from now on", agent);
+            }
+        }
+    }
+
+    synchronized void succeeded(final Agent agent) {
+        agent.failures = 0;
+        agent.downUntil = ticker.read();
+    }
+
+    synchronized void failed(final Agent agent) {
+        final long now = ticker.read();
+        final long backoff = Math.min(MIN_BACKOFF << Math.min(agent.failures, 16), MAX_BACKOFF);
+        if (agent.failures == 0) {
+            agent.failingSince = now;
+        }
+        agent.failures++;
+        agent.downUntil = now + backoff;
+
+        if (agent == home && agents.size() > 1 && now - agent.failingSince >= HOME_FAILOVER) {
+            log.warn("Consul agent {} that services were registered through has failed for {} " +
+                     "seconds, failing over to the other agents", agent,
+                     TimeUnit.NANOSECONDS.toSeconds(now - agent.failingSince));
+            home = null;
+        }
+    }
+
+    static class Agent {
+        // The first paths resolved are kept, whatever they are. The registrar asks for the fixed
+        // endpoints at startup, before most paths with service IDs, which are not reused much.
+        private static final int MAX_RESOLVED = 16;
+
+        private final String baseUri;
+        // What request URIs are built on; differs from the base URI for Unix domain sockets
+        private final String requestBaseUri;
+        private final ConcurrentMap<String, URI> resolved = new ConcurrentHashMap<>();
+
+        // Guarded by the pool
+        private int failures = 0;
+        private long failingSince;
+        private long downUntil = Long.MIN_VALUE / 2;
+
+        private Agent(final String baseUri) {
+            this.baseUri = baseUri;
+            this.requestBaseUri = UnixSocketTransport.isUnixSocket(baseUri)
+                    ? UnixSocketTransport.REQUEST_BASE_URI
+                    : baseUri;
+        }
+
+        String getBaseUri() {
+            return baseUri;
+        }
+
+        /**
+         * @return The URI of the path on this agent. Parsed once for the first
+         * {@value #MAX_RESOLVED} paths resolved, and every time for the others.
+         */
+        URI resolve(final String path) {
+            URI uri = resolved.get(path);
+            if (uri == null) {
+                uri = uri(path);
+                if (resolved.size() < MAX_RESOLVED) {
+                    resolved.putIfAbsent(path, uri);
+                }
+            }
+            return uri;
+        }
+
+        /**
+         * @return The URI of the path, with any query, on this agent.
+         */
+        URI uri(final String pathAndQuery) {
+            return URI.create(requestBaseUri + pathAndQuery);
+        }
+
+        @Override
+        public String toString() {
+            return baseUri;
+        }
+    }
+}
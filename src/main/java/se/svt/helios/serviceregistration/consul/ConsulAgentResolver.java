@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul;
+
+import java.util.List;
+
+/**
+ * Finds the Consul agents a registrar created with
+ * {@link ConsulServiceRegistrarFactory#createForDomain(String)} may talk to.
+ */
+public interface ConsulAgentResolver {
+
+    /**
+     * @return The base URIs of the agents, such as {@code http://localhost:8500}, most preferred
+     * first. Never empty.
+     * @throws Exception If no agents could be found.
+     */
+    List<String> resolve(String domain) throws Exception;
+}
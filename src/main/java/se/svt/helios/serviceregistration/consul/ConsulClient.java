@@ -22,31 +22,57 @@
 package se.svt.helios.serviceregistration.consul;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.base.Predicate;
-import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Maps;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.net.UrlEscapers;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureFallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.concurrent.FutureCallback;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
-import org.apache.http.impl.nio.client.HttpAsyncClients;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import se.svt.helios.serviceregistration.consul.metrics.NoopRegistrarMetrics;
+import se.svt.helios.serviceregistration.consul.metrics.Operation;
+import se.svt.helios.serviceregistration.consul.metrics.RegistrarMetrics;
+import se.svt.helios.serviceregistration.consul.model.AgentCheck;
 import se.svt.helios.serviceregistration.consul.model.AgentService;
+import se.svt.helios.serviceregistration.consul.model.ConsulClientConfig;
+import se.svt.helios.serviceregistration.consul.model.HashedAgentServices;
 import se.svt.helios.serviceregistration.consul.model.Service;
 
+import java.io.IOException;
 import java.net.URI;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
-import static com.fasterxml.jackson.databind.DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES;
-import static com.fasterxml.jackson.databind.MapperFeature.SORT_PROPERTIES_ALPHABETICALLY;
-import static com.fasterxml.jackson.databind.SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS;
 
 public class ConsulClient implements AutoCloseable {
     private static final Logger log = LoggerFactory.getLogger(ConsulClient.class);
@@ -55,81 +81,646 @@ public class ConsulClient implements AutoCloseable {
     private static final int SOCKET_TIMEOUT = 5000; // ms
 
     private static final String AGENT_SERVICES_ENDPOINT = "/v1/agent/services";
+    private static final String AGENT_CHECKS_ENDPOINT = "/v1/agent/checks";
+    private static final String AGENT_SELF_ENDPOINT = "/v1/agent/self";
     private static final String REGISTER_ENDPOINT = "/v1/agent/service/register";
     private static final String DEREGISTER_ENDPOINT = "/v1/agent/service/deregister/%s";
+    // The agent endpoints do not return X-Consul-Index, only a hash of the response to block on
+    private static final String BLOCKING_QUERY = "?hash=%s&wait=%ds";
+    private static final String CONTENT_HASH_HEADER = "X-Consul-ContentHash";
+    // Agents filter their service list with an expression since Consul 1.4
+    private static final String SERVICE_FILTER = "filter=";
+    private static final Pattern VERSION = Pattern.compile("^v?(\\d+)\\.(\\d+)");
 
-    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
-            .configure(SORT_PROPERTIES_ALPHABETICALLY, true)
-            .configure(ORDER_MAP_ENTRIES_BY_KEYS, true)
-            .configure(FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private static final RequestConfig DEFAULT_REQUEST_CONFIG = RequestConfig.custom()
+            .setConnectTimeout(CONNECT_TIMEOUT)
+            .setConnectionRequestTimeout(CONNECTION_REQUEST_TIMEOUT)
+            .setSocketTimeout(SOCKET_TIMEOUT)
+            .build();
 
-    private final String baseUri;
-    private final CloseableHttpAsyncClient httpClient;
+    // Only for the free-form /v1/agent/self; see ConsulCodec for everything else
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final ConsulAgentPool agents;
+    private final ConsulTransport transport;
+    private final RegistrarMetrics metrics;
+    private final RequestDispatcher dispatcher;
+    // For requests that may be retried on another agent
+    private final RequestConfig attemptConfig;
+    private final long requestTimeout; // ms, or 0 for no deadline
+    // The pool behind the transport, if the client created it
+    private final ConsulConnectionPool connections;
+    // Request deadlines and connection eviction
+    private final ScheduledThreadPoolExecutor timer;
+    // Whether the agents filter their service list by tag, or null until their version is known
+    private volatile Boolean serviceFilter;
+
+    /**
+     * @param agentUris The base URIs of the agents to send requests to. With more than one agent,
+     *                  requests go to the first healthy agent until a service has been
+     *                  registered, and to the agent it was registered through from then on,
+     *                  unless that agent fails for long (see {@link ConsulAgentPool}). Until
+     *                  then, a failed read is retried once on another agent, and each attempt
+     *                  gets half the usual timeouts, so that fail-over happens within one request
+     *                  timeout. Requests to the agent services were registered through get the
+     *                  full timeouts.
+     */
+    public ConsulClient(List<String> agentUris, CloseableHttpAsyncClient httpClient,
+                        ConsulClientConfig config, RegistrarMetrics metrics) {
+        this(agentUris, new HttpAsyncClientTransport(httpClient), config, metrics);
+    }
+
+    /**
+     * @param agentUris The base URIs of the agents, like for
+     *                  {@link #ConsulClient(List, CloseableHttpAsyncClient, ConsulClientConfig,
+     *                  RegistrarMetrics)}.
+     * @param transport Sends the requests to the agents. It is started by the client, and closed
+     *                  when the client is closed.
+     */
+    public ConsulClient(List<String> agentUris, ConsulTransport transport,
+                        ConsulClientConfig config, RegistrarMetrics metrics) {
+        this(agentUris, transport, null, config, metrics);
+    }
+
+    private ConsulClient(List<String> agentUris, ConsulTransport transport,
+                         final ConsulConnectionPool connections, ConsulClientConfig config,
+                         RegistrarMetrics metrics) {
+        this.transport = transport;
+        this.connections = connections;
+        this.transport.start();
+        this.agents = new ConsulAgentPool(agentUris);
+        this.metrics = metrics;
+        this.dispatcher = new RequestDispatcher(transport, metrics,
+                config.getMaxConcurrentRequests(), config.getMaxQueuedRequests());
+        this.attemptConfig = RequestConfig.custom()
+                .setConnectTimeout(CONNECT_TIMEOUT / 2)
+                .setConnectionRequestTimeout(CONNECTION_REQUEST_TIMEOUT)
+                .setSocketTimeout(SOCKET_TIMEOUT / 2)
+                .build();
+        this.requestTimeout = TimeUnit.SECONDS.toMillis(config.getRequestTimeout());
+        this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+                .setNameFormat("consul-client-%d").setDaemon(true).build());
+        // Most deadlines are cancelled long before they expire
+        this.timer.setRemoveOnCancelPolicy(true);
+
+        if (connections != null) {
+            final long interval = connections.getEvictionInterval();
+            timer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    connections.closeIdleConnections();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public ConsulClient(String baseUri, CloseableHttpAsyncClient httpClient,
+                        ConsulClientConfig config, RegistrarMetrics metrics) {
+        this(Collections.singletonList(baseUri), httpClient, config, metrics);
+    }
 
     public ConsulClient(String baseUri, CloseableHttpAsyncClient httpClient) {
-        this.httpClient = httpClient;
-        this.httpClient.start();
-        this.baseUri = baseUri;
+        this(baseUri, httpClient, ConsulClientConfig.builder().build(),
+             NoopRegistrarMetrics.INSTANCE);
+    }
+
+    /**
+     * @param agentUris The base URIs of the agents, like for
+     *                  {@link #ConsulClient(List, CloseableHttpAsyncClient, ConsulClientConfig,
+     *                  RegistrarMetrics)}, or a single {@code unix:///path/to/consul.sock} URI
+     *                  for an agent serving its API on a Unix domain socket.
+     */
+    public ConsulClient(List<String> agentUris, ConsulClientConfig config,
+                        RegistrarMetrics metrics) {
+        this(agentUris, createConnectionPool(agentUris, config), config, metrics);
+    }
+
+    private ConsulClient(List<String> agentUris, ConsulConnectionPool connections,
+                         ConsulClientConfig config, RegistrarMetrics metrics) {
+        this(agentUris, connections != null
+                        ? new HttpAsyncClientTransport(connections.getHttpClient())
+                        : new UnixSocketTransport(
+                                UnixSocketTransport.socketPath(agentUris.get(0)),
+                                config.getKeepAlive(), SOCKET_TIMEOUT),
+             connections, config, metrics);
+    }
+
+    public ConsulClient(String baseUri, ConsulClientConfig config, RegistrarMetrics metrics) {
+        this(Collections.singletonList(baseUri), config, metrics);
     }
 
     public ConsulClient(String baseUri) {
-        this(baseUri,
-             HttpAsyncClients.custom().setDefaultRequestConfig(RequestConfig.custom()
+        this(baseUri, ConsulClientConfig.builder().build(), NoopRegistrarMetrics.INSTANCE);
+    }
+
+    /**
+     * @return The pool of TCP connections to the agents, or null for an agent on a Unix domain
+     * socket, which needs no pool.
+     */
+    private static ConsulConnectionPool createConnectionPool(final List<String> agentUris,
+                                                             final ConsulClientConfig config) {
+        for (final String agentUri : agentUris) {
+            if (UnixSocketTransport.isUnixSocket(agentUri)) {
+                if (agentUris.size() > 1) {
+                    throw new IllegalArgumentException(
+                            "An agent on a Unix domain socket can not be combined with others: " +
+                            agentUris);
+                }
+                return null;
+            }
+        }
+        return new ConsulConnectionPool(config, agentUris.size(), DEFAULT_REQUEST_CONFIG);
+    }
+
+    public ListenableFuture<HttpResponse> register(final Service record)
+            throws JsonProcessingException {
+        return register(DesiredService.of(record));
+    }
+
+    public ListenableFuture<HttpResponse> register(final DesiredService service) {
+        log.info("Registering consul service {}", service.getId());
+        if (log.isDebugEnabled()) {
+            log.debug("Registering consul service Json: {}",
+                      new String(service.getPayload(), Charsets.UTF_8));
+        }
+
+        return execute(Operation.REGISTER, "register service " + service.getId(),
+                REGISTER_ENDPOINT,
+                new ByteArrayEntity(service.getPayload(), ContentType.APPLICATION_JSON));
+    }
+
+    public ListenableFuture<HttpResponse> deregister(final String serviceId) {
+        return execute(Operation.DEREGISTER, "deregister service " + serviceId,
+                String.format(DEREGISTER_ENDPOINT, serviceId), null);
+    }
+
+    public ListenableFuture<HttpResponse> agentServices() {
+        return execute(Operation.AGENT_SERVICES, AGENT_SERVICES_ENDPOINT,
+                AGENT_SERVICES_ENDPOINT, null);
+    }
+
+    public ListenableFuture<HttpResponse> agentChecks() {
+        return execute(Operation.AGENT_CHECKS, AGENT_CHECKS_ENDPOINT, AGENT_CHECKS_ENDPOINT, null);
+    }
+
+    public ListenableFuture<HttpResponse> agentSelf() {
+        return execute(Operation.AGENT_SELF, AGENT_SELF_ENDPOINT, AGENT_SELF_ENDPOINT, null);
+    }
+
+    /**
+     * Performs a blocking query against the agent's service list. The request will not complete
+     * until the X-Consul-ContentHash of the service list differs from the given hash, or the wait
+     * time has passed. A null hash returns the current list, and its hash, at once.
+     */
+    public ListenableFuture<HttpResponse> agentServices(final String hash, final int waitSeconds) {
+        return agentServices(null, hash, waitSeconds);
+    }
+
+    /**
+     * Requests the agent's service list, filtered by the agent to the services with the given
+     * tag if it is known to support that. Other agents return all services.
+     */
+    private ListenableFuture<HttpResponse> agentServices(final String tag) {
+        return Futures.transform(detectServiceFilter(),
+                new AsyncFunction<Boolean, HttpResponse>() {
+            @Override
+            public ListenableFuture<HttpResponse> apply(final Boolean supported) {
+                return execute(Operation.AGENT_SERVICES, AGENT_SERVICES_ENDPOINT,
+                        agentServicesPath(tag, ""), null);
+            }
+        });
+    }
+
+    /**
+     * Performs a blocking query like {@link #agentServices(String, int)}, filtered by the agent to
+     * the services with the given tag if it is known to support that. The agent's version is not
+     * looked up for this, so that a watch never waits for it.
+     */
+    private ListenableFuture<HttpResponse> agentServices(final String tag, final String hash,
+                                                         final int waitSeconds) {
+        final ConsulAgentPool.Agent agent = agents.select();
+        final String query = hash == null ? "" : String.format(BLOCKING_QUERY,
+                UrlEscapers.urlFormParameterEscaper().escape(hash), waitSeconds);
+        final URI uri = agent.uri(agentServicesPath(tag, query));
+        final HttpGet request = new HttpGet(uri);
+
+        // Consul adds a random jitter of up to wait / 16 to each blocking query.
+        request.setConfig(RequestConfig.custom()
                 .setConnectTimeout(CONNECT_TIMEOUT)
                 .setConnectionRequestTimeout(CONNECTION_REQUEST_TIMEOUT)
-                .setSocketTimeout(SOCKET_TIMEOUT).build()).build());
+                .setSocketTimeout(waitSeconds * 1000 + waitSeconds * 1000 / 16 + SOCKET_TIMEOUT)
+                .build());
+
+        // Not measured, since the latency is mostly the time waiting for a change. Not queued
+        // either, since it would hold one of the dispatcher's slots for the whole wait.
+        final RequestCallback callback =
+                new RequestCallback(null, AGENT_SERVICES_ENDPOINT + " (blocking)");
+        final ListenableFuture<HttpResponse> result = transport.send(request);
+        Futures.addCallback(result,
+                new com.google.common.util.concurrent.FutureCallback<HttpResponse>() {
+            @Override
+            public void onSuccess(final HttpResponse response) {
+                callback.completed(response);
+            }
+
+            @Override
+            public void onFailure(final Throwable t) {
+                if (t instanceof CancellationException) {
+                    callback.cancelled();
+                } else {
+                    agents.failed(agent);
+                    closeIdleConnections();
+                    callback.failed(t instanceof Exception
+                                    ? (Exception) t : new ExecutionException(t));
+                }
+            }
+        });
+        return result;
     }
 
-    public Future<HttpResponse> register(final Service record) throws JsonProcessingException {
-        final String value = OBJECT_MAPPER.writeValueAsString(record);
+    /**
+     * @param query The query string of the request, starting with '?', or empty for none.
+     * @return The path of the service list, with a filter on the tag if the tag is not null and
+     * the agents support it.
+     */
+    private String agentServicesPath(final String tag, final String query) {
+        if (tag == null || !Boolean.TRUE.equals(serviceFilter)) {
+            return AGENT_SERVICES_ENDPOINT + query;
+        }
+        // Double quoted strings in filter expressions escape quotes and backslashes
+        final String filter =
+                '"' + tag.replace("\\", "\\\\").replace("\"", "\\\"") + "\" in Tags";
+        return AGENT_SERVICES_ENDPOINT + (query.isEmpty() ? "?" : query + "&") + SERVICE_FILTER +
+               UrlEscapers.urlFormParameterEscaper().escape(filter);
+    }
 
-        log.info("Registering consul service Json: {}", value);
+    /**
+     * @return A future of whether the agents filter their service list, which looks up their
+     * version the first time. If that fails, the agents are not asked to filter, and the version
+     * is looked up again next time.
+     */
+    private ListenableFuture<Boolean> detectServiceFilter() {
+        final Boolean supported = serviceFilter;
+        if (supported != null) {
+            return Futures.immediateFuture(supported);
+        }
+        final ListenableFuture<Boolean> detected = Futures.transform(agentSelf(),
+                new AsyncFunction<HttpResponse, Boolean>() {
+            @Override
+            public ListenableFuture<Boolean> apply(final HttpResponse response) {
+                JsonNode self;
+                try {
+                    self = readAgentSelf(response);
+                } catch (IOException e) {
+                    // An agent that answers, but not with its version, is treated as an old one
+                    self = MissingNode.getInstance();
+                }
+                return Futures.immediateFuture(rememberVersion(self));
+            }
+        });
+        return Futures.withFallback(detected, new FutureFallback<Boolean>() {
+            @Override
+            public ListenableFuture<Boolean> create(final Throwable t) {
+                return Futures.immediateFuture(false);
+            }
+        });
+    }
 
-        final URI uri = URI.create(baseUri + REGISTER_ENDPOINT);
-        final HttpPut request = new HttpPut(uri);
-        request.setEntity(new StringEntity(value, "UTF-8"));
+    /**
+     * Records whether the agent that sent its /v1/agent/self document filters its service list.
+     *
+     * @return true if it does.
+     */
+    private boolean rememberVersion(final JsonNode self) {
+        final String version = self.path("Config").path("Version").asText();
+        final boolean supported = supportsServiceFilter(version);
+        if (!Boolean.valueOf(supported).equals(serviceFilter)) {
+            log.info("Consul agent version '{}', {} its service list by tag", version,
+                     supported ? "filtering" : "not filtering");
+        }
+        serviceFilter = supported;
+        return supported;
+    }
 
-        return httpClient.execute(request,
-                new RequestCallback("register service " + record.getId()));
+    /**
+     * @return true if agents of the given Consul version accept a filter on their service list.
+     */
+    static boolean supportsServiceFilter(final String version) {
+        final Matcher matcher = VERSION.matcher(version);
+        if (!matcher.find()) {
+            return false;
+        }
+        final int major = Integer.parseInt(matcher.group(1));
+        final int minor = Integer.parseInt(matcher.group(2));
+        return major > 1 || major == 1 && minor >= 4;
     }
 
-    public Future<HttpResponse> deregister(final String serviceId) {
-        final URI uri = URI.create(baseUri + String.format(DEREGISTER_ENDPOINT, serviceId));
-        return httpClient.execute(new HttpGet(uri),
-                new RequestCallback("deregister service " + serviceId));
+    /**
+     * Sends a request through the dispatcher to the selected agent, retrying a read once on
+     * another agent if it fails without a response.
+     *
+     * @param entity The body of a PUT request, or null for a GET request.
+     */
+    private ListenableFuture<HttpResponse> execute(final Operation operation,
+                                                   final String description, final String path,
+                                                   final HttpEntity entity) {
+        final Attempt attempt = new Attempt(new RequestCallback(operation, description),
+                                            path, entity);
+        attempt.send(agents.select(), 0);
+        return attempt.result;
     }
 
-    public Future<HttpResponse> agentServices() {
-        final URI uri = URI.create(baseUri + AGENT_SERVICES_ENDPOINT);
-        return httpClient.execute(new HttpGet(uri),
-                new RequestCallback(AGENT_SERVICES_ENDPOINT));
+    /**
+     * Drops the idle connections after a failed request, since the agent may have been restarted
+     * and closed them all.
+     */
+    private void closeIdleConnections() {
+        if (connections != null) {
+            connections.closeAllIdleConnections();
+        }
     }
 
     @Override
     public void close() throws Exception {
-        httpClient.close();
+        timer.shutdownNow();
+        transport.close();
+    }
+
+    /**
+     * @return A future of all services on the agent with the given tag. Agents of Consul 1.4 and
+     * later are asked to leave out the other services, so that they are neither sent nor parsed.
+     */
+    public ListenableFuture<Map<String, AgentService>> fetchAgentServicesWithTag(
+            final String tag) {
+        return Futures.transform(agentServices(tag),
+                new AsyncFunction<HttpResponse, Map<String, AgentService>>() {
+            @Override
+            public ListenableFuture<Map<String, AgentService>> apply(final HttpResponse response)
+                    throws IOException {
+                return Futures.immediateFuture(parseAgentServices(response, tag));
+            }
+        });
+    }
+
+    /**
+     * @return A future of all checks on the agent.
+     */
+    public ListenableFuture<Map<String, AgentCheck>> fetchAgentChecks() {
+        return Futures.transform(agentChecks(),
+                new AsyncFunction<HttpResponse, Map<String, AgentCheck>>() {
+            @Override
+            public ListenableFuture<Map<String, AgentCheck>> apply(final HttpResponse response)
+                    throws IOException {
+                return Futures.immediateFuture(
+                        ConsulCodec.parseAgentChecks(response.getEntity().getContent()));
+            }
+        });
+    }
+
+    /**
+     * @return A future of the number of services registered with the agent, with any tag, as
+     * reported in its statistics, or of null if the agent does not report it.
+     */
+    public ListenableFuture<Integer> fetchAgentServiceCount() {
+        return Futures.transform(agentSelf(), new AsyncFunction<HttpResponse, Integer>() {
+            @Override
+            public ListenableFuture<Integer> apply(final HttpResponse response)
+                    throws IOException {
+                final JsonNode self = readAgentSelf(response);
+                rememberVersion(self);
+                return Futures.immediateFuture(parseServiceCount(self));
+            }
+        });
+    }
+
+    /**
+     * @return A future that completes when the agent's service list changes from the given hash
+     * (or the wait time has passed), with all services with the given tag and the new hash.
+     */
+    public ListenableFuture<HashedAgentServices> fetchAgentServicesWithTag(
+            final String tag, final String hash, final int waitSeconds) {
+        return Futures.transform(agentServices(tag, hash, waitSeconds),
+                new AsyncFunction<HttpResponse, HashedAgentServices>() {
+            @Override
+            public ListenableFuture<HashedAgentServices> apply(final HttpResponse response)
+                    throws IOException {
+                return Futures.immediateFuture(parseHashedAgentServices(response, tag));
+            }
+        });
     }
 
     public Map<String, AgentService> getAgentServicesWithTag(final String tag) throws Exception {
-        HttpResponse response = agentServices().get();
-        Map<String, AgentService> myServices = OBJECT_MAPPER.readValue(
-                response.getEntity().getContent(),
-                new TypeReference<Map<String, AgentService>>() {
-                });
-
-        return ImmutableMap.copyOf(Maps.filterValues(
-                myServices, new Predicate<AgentService>() {
+        return fetchAgentServicesWithTag(tag).get();
+    }
+
+    public Map<String, AgentCheck> getAgentChecks() throws Exception {
+        return fetchAgentChecks().get();
+    }
+
+    /**
+     * @return The number of services registered with the agent, with any tag, as reported in its
+     * statistics. Null if the agent does not report it.
+     */
+    public Integer getAgentServiceCount() throws Exception {
+        return fetchAgentServiceCount().get();
+    }
+
+    /**
+     * Waits until the agent's service list changes from the given hash (or the wait time has
+     * passed) and returns all services with the given tag together with the new hash.
+     */
+    public HashedAgentServices watchAgentServicesWithTag(final String tag, final String hash,
+                                                         final int waitSeconds)
+            throws Exception {
+        return fetchAgentServicesWithTag(tag, hash, waitSeconds).get();
+    }
+
+    private static JsonNode readAgentSelf(final HttpResponse response) throws IOException {
+        if (response.getEntity() == null) {
+            return MissingNode.getInstance();
+        }
+        final JsonNode self = OBJECT_MAPPER.readTree(response.getEntity().getContent());
+        return self != null ? self : MissingNode.getInstance();
+    }
+
+    private static Integer parseServiceCount(final JsonNode self) {
+        final JsonNode services = self.path("Stats").path("agent").path("services");
+        if (services.isMissingNode()) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(services.asText());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static HashedAgentServices parseHashedAgentServices(final HttpResponse response,
+                                                                final String tag)
+            throws IOException {
+        final Map<String, AgentService> services = parseAgentServices(response, tag);
+
+        // Agents older than Consul 1.3 do not hash their responses
+        final Header header = response.getFirstHeader(CONTENT_HASH_HEADER);
+        final String hash = header == null || header.getValue().isEmpty()
+                ? null : header.getValue();
+
+        return new HashedAgentServices(hash, services);
+    }
+
+    private static Map<String, AgentService> parseAgentServices(final HttpResponse response,
+                                                                final String tag)
+            throws IOException {
+        return ConsulCodec.parseAgentServices(response.getEntity().getContent(), tag);
+    }
+
+    private class Attempt implements RequestDispatcher.Callback {
+        private static final int MAX_RETRIES = 1;
+
+        private final RequestCallback callback;
+        private final String path;
+        private final HttpEntity entity;
+        private final SettableFuture<HttpResponse> result = SettableFuture.create();
+
+        // Set before each send, read by the callback of that send
+        private volatile ConsulAgentPool.Agent agent;
+        private volatile int retries;
+        private volatile Future<HttpResponse> future;
+        // Whether the transport has the current send, and since when; not while it is queued
+        private volatile boolean sending;
+        private volatile long sendingNanos;
+        private final ScheduledFuture<?> deadline;
+
+        private Attempt(final RequestCallback callback, final String path,
+                        final HttpEntity entity) {
+            this.callback = callback;
+            this.path = path;
+            this.entity = entity;
+            this.deadline = requestTimeout > 0 ? scheduleDeadline() : null;
+
+            result.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    if (deadline != null) {
+                        deadline.cancel(false);
+                    }
+                    // Cancelled, or timed out: stop waiting for the agent
+                    final Future<HttpResponse> current = future;
+                    if (current != null && !current.isDone()) {
+                        current.cancel(false);
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        private ScheduledFuture<?> scheduleDeadline() {
+            try {
+                return timer.schedule(new Runnable() {
                     @Override
-                    public boolean apply(AgentService service) {
-                        return service.getTags() != null && service.getTags().contains(tag);
+                    public void run() {
+                        result.setException(new TimeoutException(String.format(
+                                "Request '%s' timed out after %d ms",
+                                callback.description, requestTimeout)));
                     }
-                }));
+                }, requestTimeout, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Closed; the request fails when it is sent
+                return null;
+            }
+        }
+
+        private void send(final ConsulAgentPool.Agent agent, final int retries) {
+            final URI uri = agent.resolve(path);
+            final HttpRequestBase request;
+            if (entity == null) {
+                request = new HttpGet(uri);
+            } else {
+                final HttpPut put = new HttpPut(uri);
+                put.setEntity(entity);
+                request = put;
+            }
+            if (agents.size() > 1 && agents.getHome() == null) {
+                request.setConfig(attemptConfig);
+            }
+
+            this.agent = agent;
+            this.retries = retries;
+            this.sending = false;
+            final Future<HttpResponse> sent = dispatcher.execute(request, this);
+            if (this.retries == retries) {
+                // Unless it already failed and was retried
+                this.future = sent;
+            }
+        }
+
+        @Override
+        public void sending() {
+            sendingNanos = System.nanoTime();
+            sending = true;
+            metrics.requestStarted(callback.operation);
+        }
+
+        @Override
+        public void completed(final HttpResponse response) {
+            if (sending) {
+                metrics.requestCompleted(callback.operation,
+                                         response.getStatusLine().getStatusCode(),
+                                         System.nanoTime() - sendingNanos);
+            }
+            agents.succeeded(agent);
+            if (callback.operation == Operation.REGISTER &&
+                response.getStatusLine().getStatusCode() / 100 == 2) {
+                agents.registered(agent);
+            }
+            result.set(response);
+            callback.completed(response);
+        }
+
+        @Override
+        public void failed(final Exception ex) {
+            if (sending) {
+                metrics.requestFailed(callback.operation, System.nanoTime() - sendingNanos);
+            }
+            if (ex instanceof RejectedExecutionException) {
+                // Not the agent's fault, and another agent would be rejected as well
+                result.setException(ex);
+                callback.failed(ex);
+                return;
+            }
+
+            agents.failed(agent);
+            closeIdleConnections();
+            final ConsulAgentPool.Agent next = agents.select(agent);
+            // A write that failed without a response may still have reached the agent, and a
+            // service registered through two agents would stay on the one not used afterwards
+            if (retries < MAX_RETRIES && next != agent && !result.isCancelled() &&
+                callback.operation != Operation.REGISTER &&
+                callback.operation != Operation.DEREGISTER) {
+                log.info("Request '{}' to {} failed, retrying with {}: {}",
+                         callback.description, agent, next, ex.toString());
+                send(next, retries + 1);
+                return;
+            }
+            result.setException(ex);
+            callback.failed(ex);
+        }
+
+        @Override
+        public void cancelled() {
+            if (sending) {
+                metrics.requestFailed(callback.operation, System.nanoTime() - sendingNanos);
+            }
+            result.cancel(false);
+            callback.cancelled();
+        }
     }
 
-    private static class RequestCallback implements FutureCallback<HttpResponse> {
+    private class RequestCallback implements FutureCallback<HttpResponse> {
+        private final Operation operation;
         private final String description;
 
-        private RequestCallback(String endpoint) {
+        private RequestCallback(Operation operation, String endpoint) {
+            this.operation = operation;
             this.description = endpoint;
         }
 
@@ -151,7 +742,86 @@ public class ConsulClient implements AutoCloseable {
         }
     }
 
+    /**
+     * @return The number of requests waiting to be sent to the agent.
+     */
+    public int getPendingRequests() {
+        return dispatcher.getQueueDepth();
+    }
+
+    /**
+     * @return The number of requests outstanding against the agent at once.
+     */
+    public int getMaxConcurrentRequests() {
+        return dispatcher.getMaxConcurrent();
+    }
+
+    /**
+     * Changes the number of requests outstanding against the agent at once, for the requests
+     * sent from now on.
+     */
+    public void setMaxConcurrentRequests(final int maxConcurrentRequests) {
+        Preconditions.checkArgument(maxConcurrentRequests >= 1,
+                                    "maxConcurrentRequests must be at least 1");
+        dispatcher.setMaxConcurrent(maxConcurrentRequests);
+        log.info("Sending at most {} concurrent requests to the Consul agent",
+                 maxConcurrentRequests);
+    }
+
+    /**
+     * Resolves the agents again every interval, and sends requests to the agents found from then
+     * on. Keeps the agents it has if they can not be resolved. Does nothing for an agent on a
+     * Unix domain socket, which can not be combined with others.
+     */
+    void refreshAgents(final ConsulAgentResolver resolver, final String domain,
+                       final long interval, final TimeUnit unit) {
+        if (connections == null) {
+            return;
+        }
+        try {
+            timer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    final List<String> agentUris;
+                    try {
+                        agentUris = resolver.resolve(domain);
+                    } catch (Exception e) {
+                        log.warn("Could not resolve Consul agents for {} again, keeping {}",
+                                 domain, agents.getAgents(), e);
+                        return;
+                    }
+                    for (final String agentUri : agentUris) {
+                        if (UnixSocketTransport.isUnixSocket(agentUri)) {
+                            log.warn("Consul agents for {} resolved to a Unix domain socket, " +
+                                     "keeping {}", domain, agents.getAgents());
+                            return;
+                        }
+                    }
+                    if (!agentUris.isEmpty()) {
+                        agents.update(agentUris);
+                    }
+                }
+            }, interval, interval, unit);
+        } catch (RejectedExecutionException e) {
+            log.debug("Not resolving the Consul agents again, client is closed");
+        }
+    }
+
+    /**
+     * @return The base URI of the agent the next request will be sent to.
+     */
     String getBaseUri() {
-        return baseUri;
+        return agents.select().getBaseUri();
+    }
+
+    /**
+     * @return The number of agents the client may send requests to.
+     */
+    public int getAgentCount() {
+        return agents.size();
+    }
+
+    ConsulAgentPool getAgents() {
+        return agents;
     }
 }
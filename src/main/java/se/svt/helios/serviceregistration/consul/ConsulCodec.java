@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import se.svt.helios.serviceregistration.consul.model.AgentCheck;
+import se.svt.helios.serviceregistration.consul.model.AgentService;
+import se.svt.helios.serviceregistration.consul.model.Service;
+import se.svt.helios.serviceregistration.consul.model.ServiceCheck;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hand-written JSON encoding of service registrations and decoding of the agent's service and
+ * check lists, on Jackson's streaming API.
+ *
+ * <p>Registrations have a fixed shape, so they are written field by field in the order the
+ * data-bound {@link Service} would be, without introspection or property sorting, into a byte
+ * buffer reused by each thread. Responses are read with a switch on the field name, skipping
+ * everything the registrar does not use.
+ */
+final class ConsulCodec {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final AgentServicesParser AGENT_SERVICES_PARSER =
+            new AgentServicesParser(JSON_FACTORY);
+
+    private static final ThreadLocal<ByteArrayBuilder> BUFFERS =
+            new ThreadLocal<ByteArrayBuilder>() {
+        @Override
+        protected ByteArrayBuilder initialValue() {
+            return new ByteArrayBuilder(512);
+        }
+    };
+
+    private ConsulCodec() {
+    }
+
+    /**
+     * @return The UTF-8 encoded JSON registration of the service, like {@code {"id":"..",
+     * "name":"..","tags":[..],"address":"..","port":..,"check":{..}}}. Fields of the service
+     * that are null are left out. The agent matches field names case-insensitively.
+     */
+    static byte[] encode(final Service service) throws JsonProcessingException {
+        final ByteArrayBuilder buffer = BUFFERS.get();
+        buffer.reset();
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(buffer)) {
+            generator.writeStartObject();
+            writeStringField(generator, "id", service.getId());
+            writeStringField(generator, "name", service.getName());
+            final List<String> tags = service.getTags();
+            if (tags != null) {
+                generator.writeArrayFieldStart("tags");
+                for (final String tag : tags) {
+                    generator.writeString(tag);
+                }
+                generator.writeEndArray();
+            }
+            writeStringField(generator, "address", service.getAddress());
+            if (service.getPort() != null) {
+                generator.writeNumberField("port", service.getPort());
+            }
+            if (service.getCheck() != null) {
+                generator.writeFieldName("check");
+                writeCheck(generator, service.getCheck());
+            }
+            generator.writeEndObject();
+        } catch (JsonProcessingException e) {
+            throw e;
+        } catch (IOException e) {
+            // Not thrown when writing to memory
+            throw new IllegalStateException("Could not encode " + service, e);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Unlike the service, a check is written with all its fields, null or not.
+     */
+    private static void writeCheck(final JsonGenerator generator, final ServiceCheck check)
+            throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("http", check.getHttp());
+        generator.writeStringField("interval", check.getInterval());
+        generator.writeStringField("id", check.getId());
+        generator.writeStringField("name", check.getName());
+        generator.writeStringField("notes", check.getNotes());
+        generator.writeEndObject();
+    }
+
+    private static void writeStringField(final JsonGenerator generator, final String name,
+                                         final String value) throws IOException {
+        if (value != null) {
+            generator.writeStringField(name, value);
+        }
+    }
+
+    /**
+     * Parses a response from /v1/agent/services.
+     *
+     * @return The services with the given tag, by service ID.
+     */
+    static Map<String, AgentService> parseAgentServices(final InputStream in, final String tag)
+            throws IOException {
+        return AGENT_SERVICES_PARSER.parse(in, tag);
+    }
+
+    /**
+     * Parses a response from /v1/agent/checks.
+     *
+     * @return All checks, by check ID.
+     */
+    static Map<String, AgentCheck> parseAgentChecks(final InputStream in) throws IOException {
+        final ImmutableMap.Builder<String, AgentCheck> checks = ImmutableMap.builder();
+
+        try (JsonParser parser = JSON_FACTORY.createParser(in)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String key = parser.getCurrentName();
+                expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+                checks.put(key, parseCheck(parser));
+            }
+            expect(parser, parser.getCurrentToken(), JsonToken.END_OBJECT);
+        }
+
+        return checks.build();
+    }
+
+    private static AgentCheck parseCheck(final JsonParser parser) throws IOException {
+        String checkId = null;
+        String name = null;
+        String status = null;
+        String serviceId = null;
+        String notes = null;
+        String http = null;
+        String interval = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            final JsonToken token = parser.nextToken();
+
+            switch (field) {
+                case "CheckID":
+                    checkId = text(parser, token);
+                    break;
+                case "Name":
+                    name = text(parser, token);
+                    break;
+                case "Status":
+                    status = text(parser, token);
+                    break;
+                case "ServiceID":
+                    serviceId = text(parser, token);
+                    break;
+                case "Notes":
+                    notes = text(parser, token);
+                    break;
+                case "Definition":
+                    // Only reported by newer agents
+                    if (token == JsonToken.START_OBJECT) {
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            final String definitionField = parser.getCurrentName();
+                            final JsonToken value = parser.nextToken();
+                            if (definitionField.equals("HTTP")) {
+                                http = text(parser, value);
+                            } else if (definitionField.equals("Interval")) {
+                                interval = text(parser, value);
+                            } else {
+                                parser.skipChildren();
+                            }
+                        }
+                        expect(parser, parser.getCurrentToken(), JsonToken.END_OBJECT);
+                    } else {
+                        expect(parser, token, JsonToken.VALUE_NULL);
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+        expect(parser, parser.getCurrentToken(), JsonToken.END_OBJECT);
+
+        return new AgentCheck(checkId, name, status, serviceId, notes,
+                              Strings.emptyToNull(http), Strings.emptyToNull(interval));
+    }
+
+    private static String text(final JsonParser parser, final JsonToken token)
+            throws IOException {
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        expect(parser, token, JsonToken.VALUE_STRING);
+        return parser.getText();
+    }
+
+    private static void expect(final JsonParser parser, final JsonToken actual,
+                               final JsonToken expected) throws JsonParseException {
+        if (actual != expected) {
+            throw new JsonParseException("Expected " + expected + " but was " + actual,
+                                         parser.getCurrentLocation());
+        }
+    }
+}
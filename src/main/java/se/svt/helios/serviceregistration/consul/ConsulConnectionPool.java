@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import se.svt.helios.serviceregistration.consul.model.ConsulClientConfig;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The persistent connections to the Consul agents, and the HTTP client that uses them.
+ *
+ * <p>Each agent gets enough connections for the requests the client sends concurrently, plus
+ * one for the blocking watch query, so a burst of registrations never waits for a connection.
+ * Connections are kept open between requests, so steady-state requests do not pay for a new
+ * connection, but not for longer than the configured keep-alive time, or than the agent asks
+ * for. Idle connections are closed by {@link #closeIdleConnections()}, and all of them are
+ * dropped by {@link #closeAllIdleConnections()} when a request fails, since they are likely to
+ * be dead if the agent was restarted.
+ */
+class ConsulConnectionPool {
+    private final PoolingNHttpClientConnectionManager connectionManager;
+    private final CloseableHttpAsyncClient httpClient;
+    private final long keepAlive; // ms
+
+    /**
+     * @param agents The number of agents the client may send requests to.
+     */
+    ConsulConnectionPool(final ConsulClientConfig config, final int agents,
+                         final RequestConfig requestConfig) {
+        this.keepAlive = TimeUnit.SECONDS.toMillis(config.getKeepAlive());
+
+        final DefaultConnectingIOReactor ioReactor;
+        try {
+            ioReactor = new DefaultConnectingIOReactor(IOReactorConfig.custom()
+                    .setIoThreadCount(config.getIoThreads())
+                    .setConnectTimeout(requestConfig.getConnectTimeout())
+                    .setSoTimeout(requestConfig.getSocketTimeout())
+                    .setSoKeepAlive(true)
+                    .setTcpNoDelay(true)
+                    .build());
+        } catch (IOReactorException e) {
+            throw new RuntimeException("Could not create I/O reactor for Consul client", e);
+        }
+
+        this.connectionManager = new PoolingNHttpClientConnectionManager(ioReactor);
+        final int connectionsPerAgent = config.getMaxConcurrentRequests() + 1;
+        connectionManager.setDefaultMaxPerRoute(connectionsPerAgent);
+        connectionManager.setMaxTotal(connectionsPerAgent * agents);
+
+        this.httpClient = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+                    @Override
+                    public long getKeepAliveDuration(final HttpResponse response,
+                                                     final HttpContext context) {
+                        return keepAliveDuration(response, context);
+                    }
+                })
+                .build();
+    }
+
+    CloseableHttpAsyncClient getHttpClient() {
+        return httpClient;
+    }
+
+    /**
+     * @return How long to keep the connection open after the response: as long as the agent
+     * asks for, if it does, but no longer than the configured keep-alive time.
+     */
+    long keepAliveDuration(final HttpResponse response, final HttpContext context) {
+        final long requested = DefaultConnectionKeepAliveStrategy.INSTANCE
+                .getKeepAliveDuration(response, context);
+        return requested > 0 ? Math.min(requested, keepAlive) : keepAlive;
+    }
+
+    /**
+     * Closes the connections that have been idle for longer than the keep-alive time.
+     */
+    void closeIdleConnections() {
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(keepAlive, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes all idle connections, so the next requests open new ones.
+     */
+    void closeAllIdleConnections() {
+        connectionManager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return How often {@link #closeIdleConnections()} should be called, in milliseconds.
+     */
+    long getEvictionInterval() {
+        return Math.max(keepAlive / 2, TimeUnit.SECONDS.toMillis(1));
+    }
+
+    PoolStats getStats() {
+        return connectionManager.getTotalStats();
+    }
+}
@@ -22,60 +22,593 @@
 package se.svt.helios.serviceregistration.consul;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.FutureFallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.spotify.helios.serviceregistration.ServiceRegistrar;
 import com.spotify.helios.serviceregistration.ServiceRegistration;
 import com.spotify.helios.serviceregistration.ServiceRegistrationHandle;
+import org.apache.http.HttpResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import se.svt.helios.serviceregistration.consul.metrics.NoopRegistrarMetrics;
+import se.svt.helios.serviceregistration.consul.metrics.RegistrarMetrics;
+import se.svt.helios.serviceregistration.consul.model.AgentCheck;
 import se.svt.helios.serviceregistration.consul.model.AgentService;
+import se.svt.helios.serviceregistration.consul.model.HashedAgentServices;
 import se.svt.helios.serviceregistration.consul.model.RegistrarConfig;
+import se.svt.helios.serviceregistration.consul.model.Service;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ConsulServiceRegistrar implements ServiceRegistrar {
     private static final Logger log = LoggerFactory.getLogger(ConsulServiceRegistrar.class);
+    private static final long WATCH_RETRY_DELAY = 1000; // ms
+    // Syncs queue at most one write per service, so this only bounds a runaway agent list
+    private static final int MAX_QUEUED_RECOVERIES = 4096;
 
     private final Map<ServiceRegistrationHandle, ServiceRegistration> handles;
-    private final Set<String> endpoints;
+    // Desired state: the service registered for each endpoint name. Replaced on every write, so
+    // a sync works on one consistent snapshot.
+    private final AtomicReference<RegistrarState> state =
+            new AtomicReference<>(RegistrarState.EMPTY);
 
     private final ScheduledExecutorService executor;
     private final ConsulClient consulClient;
+    private final ServiceOperationTable operations;
+    // Changes to the desired state of a service ID, and the requests they lead to
+    private final ServiceActors actors;
+    // Paces the writes a sync sends to repair the agent
+    private final RecoveryScheduler<HttpResponse> recovery;
     private final ConsulServiceUtil serviceUtil;
+    private final ServiceReconciler reconciler;
+    // Which of the agent's services with the deploy tag this registrar may deregister
+    private final ServiceOwnership ownership;
     private final RegistrarConfig config;
+    private final RegistrarMetrics metrics;
+    private final AutoCloseable metricsExporter;
+    // The registrar's MXBean, or null if it is not exposed
+    private volatile RegistrarManagement management;
+
+    // Tunable while running
+    private volatile int syncInterval; // s
+    // Whether the agent is polled every sync interval, rather than only watched
+    private volatile boolean polling = false;
+    private volatile long lastSyncNanos = -1;
+    private final AtomicLong failedSyncs = new AtomicLong();
+
+    // Journal of the desired state, or null if it is not journaled
+    private final RegistrarJournal journal;
+    // Services replayed from the journal that Helios has not registered again yet
+    private final Map<String, DesiredService> adopted;
+    // No services are reaped until the journal's grace period is over
+    private volatile boolean inGracePeriod = false;
+
+    // The agent's services and checks as fetched at startup, until the first full sync. Lets
+    // registrations of services that are already registered skip the request.
+    private volatile Map<String, AgentService> snapshot;
+    private volatile Map<String, AgentCheck> snapshotChecks;
+    // Whether a full sync has compared the desired state with the agent's current one
+    private volatile boolean fullySynced = false;
+    // Completes when the startup lookup of the agent's services is done, whatever its outcome
+    private final ListenableFuture<Void> startupLookup;
+    // Whether all checks of each service were passing when the agent last reported them, so
+    // the services that were healthy are the first ones back after the agent loses them
+    private final Map<String, Boolean> lastPassing = Maps.newConcurrentMap();
+
+    // Only accessed from the executor thread. The requests to the agent never block it; their
+    // results are handled on it.
+    private String watchHash = null;
+    private ScheduledFuture<?> nextCheck;
+    private long fullSyncInterval; // ms
+    private long nextFullSync; // System.nanoTime()
+    private Integer lastServiceCount;
+    private boolean agentUnreachable = false;
 
     public ConsulServiceRegistrar(final ConsulClient consulClient, final RegistrarConfig config) {
+        this(consulClient, config, NoopRegistrarMetrics.INSTANCE, null);
+    }
+
+    /**
+     * @param metricsExporter Exports the metrics, if not null. Closed with the registrar.
+     */
+    public ConsulServiceRegistrar(final ConsulClient consulClient, final RegistrarConfig config,
+                                  final RegistrarMetrics metrics,
+                                  final AutoCloseable metricsExporter) {
         this.consulClient = consulClient;
         this.config = config;
+        this.metrics = metrics;
+        this.metricsExporter = metricsExporter;
         this.handles = Maps.newConcurrentMap();
-        this.endpoints = Sets.newConcurrentHashSet();
+        this.syncInterval = config.getSyncInterval();
 
+        this.ownership = new ServiceOwnership(config.getDeployTag(), config.getOwnerId(),
+                TimeUnit.SECONDS.toNanos(config.getTakeoverGracePeriod()));
+        // With several agents, the one the services end up on may be on another host
         this.serviceUtil = new ConsulServiceUtil(config.getHealthCheckInterval(),
-                config.getDeployTag());
+                config.getDeployTag(), ownership.getOwnerTag(),
+                consulClient.getAgentCount() > 1);
+        this.reconciler = new ServiceReconciler();
+
+        this.adopted = Maps.newConcurrentMap();
+        this.journal = openJournal(config.getJournalPath());
+        if (journal != null) {
+            adoptJournaledServices();
+        }
 
         this.executor = MoreExecutors.getExitingScheduledExecutorService(
                           (ScheduledThreadPoolExecutor) Executors.newScheduledThreadPool(1,
                           new ThreadFactoryBuilder().setNameFormat("consul-registrar-%d").build()),
                           0, TimeUnit.SECONDS);
+        this.operations = new ServiceOperationTable(consulClient, metrics, executor);
+        // The actors only hand requests to the client, so a thread hop would only add latency
+        this.actors = new ServiceActors(MoreExecutors.sameThreadExecutor());
+        this.recovery = new RecoveryScheduler<>(config.getRecoveryRate(),
+                config.getRecoveryBurst(), MAX_QUEUED_RECOVERIES, executor, Ticker.systemTicker());
+
+        this.startupLookup = fetchSnapshot();
 
         // If the Consul agent is restarted, all services will be forgotten. Therefore we sync the
-        // state between services known by this plugin and services registered in Consul.
-        Runnable registrationRunnable = new Runnable() {
+        // state between services known by this plugin and services registered in Consul. When
+        // watching, the sync happens as soon as the agent's service list changes. When polling,
+        // it happens as soon as the number of services on the agent changes. Either way, a full
+        // sync also runs every full sync interval, to repair writes that failed for good.
+        if (config.isWatch()) {
+            scheduleWatch(TimeUnit.SECONDS.toMillis(syncInterval));
+            startFullSyncs();
+        } else {
+            startPolling();
+        }
+
+        if (inGracePeriod) {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    endGracePeriod();
+                }
+            }, config.getJournalGracePeriod(), TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Looks up the agent's services once at startup, without waiting for them. When Helios
+     * registers its jobs again after a restart of the Helios agent, the services that are
+     * already registered as they should be are then not sent again. Services adopted from the
+     * journal are repaired right away.
+     *
+     * <p>Until the lookup is done, or if it fails, every registration is sent.
+     *
+     * @return A future that completes when the lookup, and the sync if any, is done, whatever
+     * their outcome.
+     */
+    private ListenableFuture<Void> fetchSnapshot() {
+        final long startNanos = System.nanoTime();
+        final long observed = state.get().getGeneration();
+        final SettableFuture<Void> done = SettableFuture.create();
+        try {
+            final ListenableFuture<Map<String, AgentService>> servicesFuture =
+                    consulClient.fetchAgentServicesWithTag(config.getDeployTag());
+            final ListenableFuture<Map<String, AgentCheck>> checksFuture =
+                    consulClient.fetchAgentChecks();
+            final List<ListenableFuture<?>> lookups =
+                    ImmutableList.<ListenableFuture<?>>of(servicesFuture, checksFuture);
+            Futures.addCallback(Futures.allAsList(lookups),
+                                new FutureCallback<List<Object>>() {
+                @Override
+                public void onSuccess(final List<Object> result) {
+                    try {
+                        complete(done, installSnapshot(Futures.getUnchecked(servicesFuture),
+                                Futures.getUnchecked(checksFuture), startNanos, observed));
+                    } catch (RuntimeException e) {
+                        log.warn("Error handling the startup lookup of Consul services", e);
+                        done.set(null);
+                    }
+                }
+
+                @Override
+                public void onFailure(final Throwable t) {
+                    log.warn("Failure during startup lookup of Consul services. Registering all " +
+                             "services.", t);
+                    done.set(null);
+                }
+            }, executor);
+        } catch (RuntimeException e) {
+            log.warn("Failure during startup lookup of Consul services. Registering all services.",
+                     e);
+            done.set(null);
+        }
+        return done;
+    }
+
+    /**
+     * @param observed The generation of the desired state when the services were requested.
+     *                 Services written since then were sent without looking at the lookup, and
+     *                 are left out of it.
+     * @return A future that completes when the sync of the services adopted from the journal, if
+     * any, is done.
+     */
+    private ListenableFuture<?> installSnapshot(final Map<String, AgentService> registeredServices,
+                                 final Map<String, AgentCheck> registeredChecks,
+                                 final long startNanos, final long observed) {
+        if (registeredServices == null || fullySynced) {
+            // A full sync has already looked at the agent's current services
+            return Futures.immediateFuture(null);
+        }
+
+        final Map<String, AgentService> registered = new ConcurrentHashMap<>(registeredServices);
+        final RegistrarState current = state.get();
+        for (final String serviceId : registeredServices.keySet()) {
+            if (current.writtenSince(serviceId, observed)) {
+                registered.remove(serviceId);
+            }
+        }
+
+        snapshotChecks = registeredChecks;
+        rememberHealth(registeredChecks);
+        snapshot = registered;
+        log.info("Found {} services registered in Consul at startup", registeredServices.size());
+
+        if (current.getServices().isEmpty()) {
+            return Futures.immediateFuture(null);
+        }
+        // Not reaping anything yet, Helios has not had the chance to register its jobs
+        return syncState(registeredServices, startNanos, false, observed);
+    }
+
+    ListenableFuture<Void> getStartupLookup() {
+        return startupLookup;
+    }
+
+    private static RegistrarJournal openJournal(final String path) {
+        if (path == null) {
+            return null;
+        }
+        try {
+            return RegistrarJournal.open(path);
+        } catch (IOException e) {
+            log.warn("Could not open journal {}. Registered services will not survive a restart.",
+                     path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Takes over the services registered before a restart, so they are neither reaped nor
+     * registered again while Helios catches up.
+     */
+    private void adoptJournaledServices() {
+        for (final Service service : journal.getReplayed().values()) {
+            try {
+                final DesiredService desired = DesiredService.of(service);
+                putService(desired);
+                adopted.put(desired.getId(), desired);
+            } catch (JsonProcessingException e) {
+                log.warn("Could not adopt journaled service {}", service.getId(), e);
+            }
+        }
+        inGracePeriod = true;
+        log.info("Adopted {} services from journal {}. Reaping services in {} seconds.",
+                 adopted.size(), config.getJournalPath(), config.getJournalGracePeriod());
+    }
+
+    /**
+     * Stops keeping the services from the journal that Helios has not registered again, and syncs
+     * the state so that they are reaped as orphans right away. A sync may not come for a long
+     * time otherwise, once the full sync interval has backed off.
+     *
+     * @return A future of the sync.
+     */
+    ListenableFuture<ServiceReconciler.Plan> endGracePeriod() {
+        final List<String> unclaimed = new ArrayList<>();
+        for (final Map.Entry<String, DesiredService> entry : adopted.entrySet()) {
+            // Only if Helios has not registered the service again in the meantime
+            if (removeService(entry.getKey(), entry.getValue())) {
+                unclaimed.add(entry.getKey());
+            }
+        }
+        adopted.clear();
+        journalRemove(unclaimed);
+        inGracePeriod = false;
+
+        log.info("Journal grace period over. {} services were not registered again by Helios " +
+                 "and will be removed.", unclaimed.size());
+        return syncState();
+    }
+
+    /**
+     * Replaces the service only if it is still the one desired for its ID.
+     *
+     * @return true if it was replaced.
+     */
+    private boolean replaceService(final DesiredService expected,
+                                   final DesiredService replacement) {
+        while (true) {
+            final RegistrarState current = state.get();
+            if (current.get(expected.getId()) != expected) {
+                return false;
+            }
+            if (state.compareAndSet(current, current.put(replacement))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return The service that was desired for the ID before, or null.
+     */
+    private DesiredService putService(final DesiredService service) {
+        while (true) {
+            final RegistrarState current = state.get();
+            if (state.compareAndSet(current, current.put(service))) {
+                return current.get(service.getId());
+            }
+        }
+    }
+
+    private void removeService(final String serviceId) {
+        while (true) {
+            final RegistrarState current = state.get();
+            if (state.compareAndSet(current, current.remove(serviceId))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes the service only if it is still the one desired for its ID.
+     *
+     * @return true if it was removed.
+     */
+    private boolean removeService(final String serviceId, final DesiredService expected) {
+        while (true) {
+            final RegistrarState current = state.get();
+            if (current.get(serviceId) != expected) {
+                return false;
+            }
+            if (state.compareAndSet(current, current.remove(serviceId))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Forgets the removals that no observation still in progress can predate.
+     */
+    private void pruneState(final long observed) {
+        while (true) {
+            final RegistrarState current = state.get();
+            final RegistrarState pruned = current.prune(observed);
+            if (pruned == current || state.compareAndSet(current, pruned)) {
+                return;
+            }
+        }
+    }
+
+    private void journalPut(final Collection<DesiredService> registrations) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.put(registrations);
+        } catch (IOException e) {
+            log.warn("Could not write registrations to journal", e);
+        }
+    }
+
+    private void journalRemove(final Collection<String> serviceIds) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.remove(serviceIds);
+        } catch (IOException e) {
+            log.warn("Could not write deregistrations to journal", e);
+        }
+    }
+
+    private void startPolling() {
+        polling = true;
+        fullSyncInterval = TimeUnit.SECONDS.toMillis(syncInterval);
+        nextFullSync = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(fullSyncInterval);
+        scheduleSync(fullSyncInterval);
+    }
+
+    private void scheduleSync(final long delay) {
+        if (executor.isShutdown()) {
+            return;
+        }
+        Runnable pollRunnable = new Runnable() {
             @Override
             public void run() {
-                syncState();
+                pollState();
             }
         };
-        this.executor.scheduleAtFixedRate(registrationRunnable,
-                config.getSyncInterval(), config.getSyncInterval(), TimeUnit.SECONDS);
+        nextCheck = this.executor.schedule(pollRunnable, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Checks the agent once when not watching it, and syncs the state if needed. Looking at the
+     * number of services in the agent's statistics is cheaper than listing them, so a full sync
+     * only happens when that number has changed, for example because the agent was restarted,
+     * when the agent could not be reached, or when the full sync interval has passed. The full
+     * sync interval doubles up to the maximum sync interval as long as the syncs find nothing to
+     * do, and is reset when they do.
+     *
+     * <p>The requests are sent without waiting for them, and their results are handled on the
+     * executor thread. The next check is scheduled when this one is done, so slow checks never
+     * overlap.
+     *
+     * @return A future that completes when the check, and the sync if any, is done.
+     */
+    ListenableFuture<Void> pollState() {
+        final SettableFuture<Void> done = SettableFuture.create();
+        done.addListener(new Runnable() {
+            @Override
+            public void run() {
+                // The interval may have changed during the check
+                scheduleSync(TimeUnit.SECONDS.toMillis(syncInterval));
+            }
+        }, MoreExecutors.sameThreadExecutor());
+
+        Futures.addCallback(consulClient.fetchAgentServiceCount(), new FutureCallback<Integer>() {
+            @Override
+            public void onSuccess(final Integer serviceCount) {
+                try {
+                    final boolean changed = agentUnreachable || serviceCount == null ||
+                                            !serviceCount.equals(lastServiceCount);
+                    if (!changed && System.nanoTime() - nextFullSync < 0) {
+                        done.set(null);
+                        return;
+                    }
+                    if (changed && lastServiceCount != null) {
+                        log.info("Consul agent changed since the last sync ({} services, was " +
+                                 "{}). Syncing now.", serviceCount, lastServiceCount);
+                    }
+                    lastServiceCount = serviceCount;
+                    Futures.addCallback(syncState(), new FutureCallback<ServiceReconciler.Plan>() {
+                        @Override
+                        public void onSuccess(final ServiceReconciler.Plan plan) {
+                            synced(plan, serviceCount != null);
+                            done.set(null);
+                        }
+
+                        @Override
+                        public void onFailure(final Throwable t) {
+                            done.setException(t);
+                        }
+                    }, executor);
+                } catch (RuntimeException e) {
+                    done.setException(e);
+                }
+            }
+
+            @Override
+            public void onFailure(final Throwable t) {
+                log.warn("Failure during lookup of Consul agent", t);
+                agentUnreachable = true;
+                done.set(null);
+            }
+        }, executor);
+        return done;
+    }
+
+    private void synced(final ServiceReconciler.Plan plan, final boolean backOff) {
+        agentUnreachable = plan == null;
+        final int interval = syncInterval;
+        if (plan != null && plan.isEmpty() && backOff) {
+            final long maxSyncInterval = TimeUnit.SECONDS.toMillis(
+                    Math.max(config.getMaxSyncInterval(), interval));
+            fullSyncInterval = Math.min(fullSyncInterval * 2, maxSyncInterval);
+        } else {
+            fullSyncInterval = TimeUnit.SECONDS.toMillis(interval);
+        }
+        nextFullSync = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(fullSyncInterval);
+    }
+
+    private void startFullSyncs() {
+        fullSyncInterval = TimeUnit.SECONDS.toMillis(syncInterval);
+        nextFullSync = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(fullSyncInterval);
+        scheduleFullSync(fullSyncInterval);
+    }
+
+    private void scheduleFullSync(final long delay) {
+        if (executor.isShutdown()) {
+            return;
+        }
+        Runnable fullSyncRunnable = new Runnable() {
+            @Override
+            public void run() {
+                fullSyncIfDue();
+            }
+        };
+        nextCheck = this.executor.schedule(fullSyncRunnable, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Syncs the state when watching the agent, if the full sync interval has passed. The hash of
+     * the agent's service list only changes when the agent changes, so writes that failed for
+     * good, or were never sent, are only repaired by these syncs. The full sync interval backs
+     * off like when polling. Does nothing, and stops, once the agent is polled instead.
+     *
+     * @return A future that completes when the sync, if any, is done.
+     */
+    ListenableFuture<Void> fullSyncIfDue() {
+        final SettableFuture<Void> done = SettableFuture.create();
+        if (polling) {
+            done.set(null);
+            return done;
+        }
+        done.addListener(new Runnable() {
+            @Override
+            public void run() {
+                // The interval may have changed during the sync, and the agent may be polled now
+                if (!polling) {
+                    scheduleFullSync(TimeUnit.SECONDS.toMillis(syncInterval));
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+
+        if (System.nanoTime() - nextFullSync < 0) {
+            done.set(null);
+            return done;
+        }
+        try {
+            Futures.addCallback(syncState(), new FutureCallback<ServiceReconciler.Plan>() {
+                @Override
+                public void onSuccess(final ServiceReconciler.Plan plan) {
+                    synced(plan, true);
+                    done.set(null);
+                }
+
+                @Override
+                public void onFailure(final Throwable t) {
+                    done.setException(t);
+                }
+            }, executor);
+        } catch (RuntimeException e) {
+            done.setException(e);
+        }
+        return done;
+    }
+
+    private void scheduleWatch(final long delay) {
+        if (executor.isShutdown()) {
+            return;
+        }
+        Runnable watchRunnable = new Runnable() {
+            @Override
+            public void run() {
+                watchState();
+            }
+        };
+        this.executor.schedule(watchRunnable, delay, TimeUnit.MILLISECONDS);
     }
 
     @Override
@@ -83,36 +616,73 @@ public class ConsulServiceRegistrar implements ServiceRegistrar {
         final ServiceRegistrationHandle newHandle = new ServiceRegistrationHandle() {};
         handles.put(newHandle, registration);
 
+        final List<DesiredService> registrations = new ArrayList<>();
         for (final ServiceRegistration.Endpoint endpoint : registration.getEndpoints()) {
-            if (!endpoints.add(endpoint.getName())) {
-                log.error("Endpoint names must be unique since they map to a Consul Service ID. " +
-                          "'{}' already present.", endpoint.getName());
+            try {
+                registrations.add(DesiredService.of(serviceUtil.createService(endpoint)));
+            } catch (Exception e) {
+                log.warn("Error performing registration", e);
             }
         }
+        journalPut(registrations);
 
-        try {
-            sendRegistration(registration);
-        } catch (Exception e) {
-            log.warn("Error performing registration", e);
+        // Until the first sync, only send what the agent did not have at startup
+        List<DesiredService> writes = registrations;
+        final Map<String, AgentService> registered = snapshot;
+        if (registered != null) {
+            final Map<String, DesiredService> desired = new LinkedHashMap<>();
+            for (final DesiredService service : registrations) {
+                desired.put(service.getId(), service);
+            }
+            writes = reconciler.reconcile(desired, registered, snapshotChecks).getRegistrations();
+            if (writes.size() < registrations.size()) {
+                log.info("{} of {} services already registered in Consul. Not registering again.",
+                         registrations.size() - writes.size(), registrations.size());
+            }
         }
+        final Set<DesiredService> sent = Sets.newIdentityHashSet();
+        sent.addAll(writes);
+
+        final List<ListenableFuture<HttpResponse>> futures = new ArrayList<>();
+        for (final DesiredService service : registrations) {
+            futures.add(actors.submit(service.getId(),
+                                      new Callable<ListenableFuture<HttpResponse>>() {
+                @Override
+                public ListenableFuture<HttpResponse> call() {
+                    // A service adopted from the journal is expected to be registered again
+                    final boolean wasAdopted = adopted.remove(service.getId()) != null;
+                    if (putService(service) != null && !wasAdopted) {
+                        log.error("Endpoint names must be unique since they map to a Consul " +
+                                  "Service ID. '{}' already present.", service.getId());
+                    }
+                    return sent.contains(service) ? operations.register(service) : null;
+                }
+            }));
+        }
+        logFailures(Futures.successfulAsList(futures), "register", writes.size());
+
         return newHandle;
     }
 
     @Override
     public void unregister(ServiceRegistrationHandle handle) {
-        if (!handles.containsKey(handle)) {
+        // Removed first, so that concurrent calls with the same handle deregister once
+        final ServiceRegistration registration = handles.remove(handle);
+        if (registration == null) {
             return;
         }
         try {
-            sendDeRegistration(handle);
+            sendDeRegistration(registration);
         } catch (Exception e) {
             log.warn("Error removing registration handle {}", handle, e);
         }
-        handles.remove(handle);
     }
 
     @Override
     public void close() {
+        if (management != null) {
+            management.close();
+        }
         try {
             executor.shutdownNow();
         } catch (Exception e) {
@@ -123,63 +693,542 @@ public class ConsulServiceRegistrar implements ServiceRegistrar {
         } catch (Exception e) {
             log.error("Error shutting down http client to Consul", e);
         }
+        if (metricsExporter != null) {
+            try {
+                metricsExporter.close();
+            } catch (Exception e) {
+                log.error("Error shutting down metrics exporter", e);
+            }
+        }
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (Exception e) {
+                log.error("Error closing journal", e);
+            }
+        }
     }
 
-    private void sendRegistration(ServiceRegistration registration)
-            throws JsonProcessingException {
+    private void sendDeRegistration(final ServiceRegistration registration) {
+        final List<String> serviceIds = new ArrayList<>();
+        for (ServiceRegistration.Endpoint endpoint : registration.getEndpoints()) {
+            serviceIds.add(endpoint.getName());
+        }
+        journalRemove(serviceIds);
 
-        for (final ServiceRegistration.Endpoint endpoint : registration.getEndpoints()) {
-            consulClient.register(serviceUtil.createService(endpoint));
+        final List<ListenableFuture<HttpResponse>> futures = new ArrayList<>();
+        for (final String serviceId : serviceIds) {
+            futures.add(actors.submit(serviceId, new Callable<ListenableFuture<HttpResponse>>() {
+                @Override
+                public ListenableFuture<HttpResponse> call() {
+                    removeService(serviceId);
+                    final Map<String, AgentService> registered = snapshot;
+                    if (registered != null) {
+                        registered.remove(serviceId);
+                    }
+                    return operations.deregister(serviceId);
+                }
+            }));
         }
+        logFailures(Futures.successfulAsList(futures), "deregister", serviceIds.size());
     }
 
-    private void sendDeRegistration(ServiceRegistrationHandle handle) {
-        final ServiceRegistration registration = handles.get(handle);
-        if (registration == null) {
-            return;
+    /**
+     * Performs one blocking query against the Consul agent and syncs the state if the agent's
+     * service list has changed. Falls back to syncing every sync interval if the agent does not
+     * support blocking queries. The executor thread is not held while the query waits.
+     *
+     * @return A future that completes when the query, and the sync if any, is done.
+     */
+    ListenableFuture<Void> watchState() {
+        final SettableFuture<Void> done = SettableFuture.create();
+        final long observed = state.get().getGeneration();
+        Futures.addCallback(
+                consulClient.fetchAgentServicesWithTag(config.getDeployTag(), watchHash,
+                                                       config.getWatchWait()),
+                new FutureCallback<HashedAgentServices>() {
+            @Override
+            public void onSuccess(final HashedAgentServices result) {
+                if (result == null || result.getHash() == null) {
+                    log.info("Consul agent does not support blocking queries. Falling back to " +
+                             "syncing every {} seconds.", syncInterval);
+                    final ListenableFuture<?> sync = result == null
+                            ? Futures.immediateFuture(null)
+                            : syncState(result.getServices(), System.nanoTime(), observed);
+                    startPolling();
+                    complete(done, sync);
+                    return;
+                }
+
+                // The hash changes whenever the agent's service list does
+                final String hash = result.getHash();
+                final ListenableFuture<?> sync = !hash.equals(watchHash)
+                        ? syncState(result.getServices(), System.nanoTime(), observed)
+                        : Futures.immediateFuture(null);
+                watchHash = hash;
+                scheduleWatch(0);
+                complete(done, sync);
+            }
+
+            @Override
+            public void onFailure(final Throwable t) {
+                log.warn("Failure during blocking query of Consul services", t);
+                failedSyncs.incrementAndGet();
+                watchHash = null;
+                scheduleWatch(WATCH_RETRY_DELAY);
+                done.set(null);
+            }
+        }, executor);
+        return done;
+    }
+
+    /**
+     * Completes the future once the other one has, whether it succeeded or not.
+     */
+    private static void complete(final SettableFuture<Void> done, final ListenableFuture<?> other) {
+        other.addListener(new Runnable() {
+            @Override
+            public void run() {
+                done.set(null);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Looks up the agent's services and syncs the state with them. The lookups are sent without
+     * waiting, and the sync runs on the executor thread when they complete.
+     *
+     * @return A future of what the sync did, or of null if the agent's services could not be
+     * looked up.
+     */
+    ListenableFuture<ServiceReconciler.Plan> syncState() {
+        final long startNanos = System.nanoTime();
+        final long observed = state.get().getGeneration();
+
+        // 1. List all my services with tag HELIOS_DEPLOYED_TAG
+        final ListenableFuture<Map<String, AgentService>> registeredServices = Futures.withFallback(
+                consulClient.fetchAgentServicesWithTag(config.getDeployTag()),
+                new FutureFallback<Map<String, AgentService>>() {
+            @Override
+            public ListenableFuture<Map<String, AgentService>> create(final Throwable t) {
+                log.warn("Failure during lookup of Consul services", t);
+                failedSyncs.incrementAndGet();
+                return Futures.immediateFuture(null);
+            }
+        });
+
+        return Futures.transform(registeredServices,
+                new AsyncFunction<Map<String, AgentService>, ServiceReconciler.Plan>() {
+            @Override
+            public ListenableFuture<ServiceReconciler.Plan> apply(
+                    final Map<String, AgentService> services) {
+                if (services == null) {
+                    return Futures.immediateFuture(null);
+                }
+                return syncState(services, startNanos, observed);
+            }
+        }, executor);
+    }
+
+    private ListenableFuture<ServiceReconciler.Plan> syncState(
+            final Map<String, AgentService> registeredServices, final long startNanos,
+            final long observed) {
+        // Registrations are compared with the agent's current state from now on
+        fullySynced = true;
+        snapshot = null;
+        snapshotChecks = null;
+        return syncState(registeredServices, startNanos, true, observed);
+    }
+
+    /**
+     * @param reap     Whether to deregister services that Helios does not know about.
+     * @param observed The generation of the desired state when the agent's services were
+     *                 requested. Services written since then are left out of the sync.
+     */
+    private ListenableFuture<ServiceReconciler.Plan> syncState(
+            final Map<String, AgentService> registeredServices, final long startNanos,
+            final boolean reap, final long observed) {
+        final Map<String, DesiredService> desiredServices = state.get().getServices();
+        boolean hasChecks = false;
+        for (final DesiredService service : desiredServices.values()) {
+            hasChecks |= service.getService().getCheck() != null;
         }
-        for (ServiceRegistration.Endpoint endpoint : registration.getEndpoints()) {
-            consulClient.deregister(endpoint.getName());
-            endpoints.remove(endpoint.getName());
+
+        // Health checks are not part of the service list, so only look them up when needed
+        if (!hasChecks) {
+            return Futures.immediateFuture(reconcile(desiredServices, registeredServices, null,
+                                                     startNanos, reap, observed));
         }
+        final ListenableFuture<Map<String, AgentCheck>> registeredChecks = Futures.withFallback(
+                consulClient.fetchAgentChecks(), new FutureFallback<Map<String, AgentCheck>>() {
+            @Override
+            public ListenableFuture<Map<String, AgentCheck>> create(final Throwable t) {
+                log.warn("Failure during lookup of Consul checks", t);
+                return Futures.immediateFuture(null);
+            }
+        });
+        return Futures.transform(registeredChecks,
+                new AsyncFunction<Map<String, AgentCheck>, ServiceReconciler.Plan>() {
+            @Override
+            public ListenableFuture<ServiceReconciler.Plan> apply(
+                    final Map<String, AgentCheck> checks) {
+                return Futures.immediateFuture(reconcile(desiredServices, registeredServices,
+                                                         checks, startNanos, reap, observed));
+            }
+        }, executor);
     }
 
-    void syncState() {
-        // 1. List all my services with tag HELIOS_DEPLOYED_TAG
-        Map<String, AgentService> registeredServices = null;
-        try {
-            registeredServices = consulClient.getAgentServicesWithTag(config.getDeployTag());
-        } catch (Exception e) {
-            log.warn("Failure during lookup of Consul services", e);
+    private ServiceReconciler.Plan reconcile(final Map<String, DesiredService> desiredServices,
+                                             final Map<String, AgentService> registeredServices,
+                                             final Map<String, AgentCheck> registeredChecks,
+                                             final long startNanos, final boolean reap,
+                                             final long observed) {
+        pruneState(observed);
+        rememberHealth(registeredChecks);
+        lastPassing.keySet().retainAll(desiredServices.keySet());
+        final Map<String, AgentService> claimable = ownership.claimable(
+                registeredServices, desiredServices.keySet(), System.nanoTime());
+        final ServiceReconciler.Plan plan = withoutWrittenSince(
+                reconciler.reconcile(desiredServices, claimable, registeredChecks), observed);
+
+        // 2. De-register all services not known by Helios, unless Helios may still register
+        // them again after a restart
+        final List<String> deregistrations;
+        if (!reap || inGracePeriod) {
+            deregistrations = Collections.emptyList();
+            if (reap && !plan.getDeregistrations().isEmpty()) {
+                log.debug("Not reaping {} services during the journal grace period",
+                          plan.getDeregistrations().size());
+            }
+        } else {
+            deregistrations = plan.getDeregistrations();
+        }
+        for (final String serviceId : deregistrations) {
+            log.info("Service '{}' not known by Helios. Sending deregistration.", serviceId);
         }
+        logFailures(reap(deregistrations, observed), "deregister", deregistrations.size());
+
+        // 3. Register all services missing in Consul or differing from what Helios wants
+        for (final DesiredService service : plan.getRegistrations()) {
+            log.info("Service '{}' not known by Consul or out of date. Re-registering endpoint.",
+                     service.getId());
+        }
+        logFailures(reregister(plan.getRegistrations(), observed), "re-register",
+                    plan.getRegistrations().size());
+
+        lastSyncNanos = System.nanoTime() - startNanos;
+        metrics.syncCompleted(lastSyncNanos, deregistrations.size(),
+                              plan.getRegistrations().size());
+        return plan;
+    }
+
+    /**
+     * Leaves the services written since the agent was observed out of the plan. Their own
+     * requests may not have reached the agent when it was observed, so what it reported for them
+     * is out of date, and acting on it would only undo and redo those requests.
+     */
+    private ServiceReconciler.Plan withoutWrittenSince(final ServiceReconciler.Plan plan,
+                                                       final long observed) {
+        final RegistrarState current = state.get();
+        final List<DesiredService> registrations = new ArrayList<>();
+        for (final DesiredService service : plan.getRegistrations()) {
+            if (!current.writtenSince(service.getId(), observed)) {
+                registrations.add(service);
+            }
+        }
+        final List<String> deregistrations = new ArrayList<>();
+        for (final String serviceId : plan.getDeregistrations()) {
+            if (!current.writtenSince(serviceId, observed)) {
+                deregistrations.add(serviceId);
+            }
+        }
+
+        final int skipped = plan.getRegistrations().size() - registrations.size() +
+                            plan.getDeregistrations().size() - deregistrations.size();
+        if (skipped == 0) {
+            return plan;
+        }
+        log.debug("Not syncing {} services written since the agent was observed", skipped);
+        return new ServiceReconciler.Plan(registrations, deregistrations);
+    }
 
-        if (registeredServices == null) {
+    /**
+     * Deregisters the services a sync found orphaned, unless Helios has registered them since
+     * the agent was observed. The check and the request happen on the service's actor, so they
+     * can not interleave with a registration by Helios.
+     */
+    private ListenableFuture<List<HttpResponse>> reap(final List<String> serviceIds,
+                                                      final long observed) {
+        final List<ListenableFuture<HttpResponse>> futures = new ArrayList<>(serviceIds.size());
+        for (final String serviceId : serviceIds) {
+            futures.add(recover(RecoveryScheduler.Lane.DEREGISTER, serviceId,
+                                new Callable<ListenableFuture<HttpResponse>>() {
+                @Override
+                public ListenableFuture<HttpResponse> call() {
+                    final RegistrarState current = state.get();
+                    if (current.contains(serviceId) || current.writtenSince(serviceId, observed)) {
+                        log.debug("Not reaping service {}, written during the sync", serviceId);
+                        return null;
+                    }
+                    return operations.deregister(serviceId);
+                }
+            }));
+        }
+        return Futures.successfulAsList(futures);
+    }
+
+    /**
+     * Registers the services a sync found missing or out of date, unless Helios has replaced or
+     * unregistered them since the agent was observed, so that a sync never brings back a service
+     * Helios has just removed. Services that were healthy go first.
+     */
+    private ListenableFuture<List<HttpResponse>> reregister(
+            final List<DesiredService> registrations, final long observed) {
+        final List<DesiredService> passing = new ArrayList<>();
+        final List<DesiredService> others = new ArrayList<>();
+        for (final DesiredService service : registrations) {
+            (wasPassing(service) ? passing : others).add(service);
+        }
+        final List<ListenableFuture<HttpResponse>> futures =
+                new ArrayList<>(registrations.size());
+        futures.addAll(reregister(RecoveryScheduler.Lane.PASSING, passing, observed));
+        futures.addAll(reregister(RecoveryScheduler.Lane.OTHER, others, observed));
+        return Futures.successfulAsList(futures);
+    }
+
+    private List<ListenableFuture<HttpResponse>> reregister(
+            final RecoveryScheduler.Lane lane, final List<DesiredService> registrations,
+            final long observed) {
+        final List<ListenableFuture<HttpResponse>> futures =
+                new ArrayList<>(registrations.size());
+        for (final DesiredService service : registrations) {
+            futures.add(recover(lane, service.getId(),
+                                new Callable<ListenableFuture<HttpResponse>>() {
+                @Override
+                public ListenableFuture<HttpResponse> call() {
+                    if (state.get().writtenSince(service.getId(), observed)) {
+                        log.debug("Not re-registering service {}, changed during the sync",
+                                  service.getId());
+                        return null;
+                    }
+                    return operations.register(service);
+                }
+            }));
+        }
+        return futures;
+    }
+
+    /**
+     * Runs a write of a sync on the service's actor once the recovery budget allows it.
+     */
+    private ListenableFuture<HttpResponse> recover(
+            final RecoveryScheduler.Lane lane, final String serviceId,
+            final Callable<ListenableFuture<HttpResponse>> write) {
+        return recovery.submit(lane, serviceId, new Callable<ListenableFuture<HttpResponse>>() {
+            @Override
+            public ListenableFuture<HttpResponse> call() {
+                return actors.submit(serviceId, write);
+            }
+        });
+    }
+
+    /**
+     * Records whether all checks of each service in the agent's checks were passing. Services
+     * the agent has no checks for keep what was last recorded for them.
+     */
+    private void rememberHealth(final Map<String, AgentCheck> checks) {
+        if (checks == null) {
             return;
         }
+        final Map<String, Boolean> passing = new LinkedHashMap<>();
+        for (final AgentCheck check : checks.values()) {
+            if (check.getServiceId() == null || check.getServiceId().isEmpty()) {
+                continue;
+            }
+            final Boolean previous = passing.get(check.getServiceId());
+            passing.put(check.getServiceId(), (previous == null || previous) &&
+                                              "passing".equals(check.getStatus()));
+        }
+        lastPassing.putAll(passing);
+    }
+
+    /**
+     * @return true if the service has no check, or its checks were passing when last reported.
+     */
+    private boolean wasPassing(final DesiredService service) {
+        return service.getService().getCheck() == null ||
+               Boolean.TRUE.equals(lastPassing.get(service.getId()));
+    }
+
+    int getRegisteredEndpoints() {
+        int endpoints = 0;
+        for (final ServiceRegistration registration : handles.values()) {
+            endpoints += registration.getEndpoints().size();
+        }
+        return endpoints;
+    }
+
+    int getPendingOperations() {
+        return operations.getInFlight();
+    }
+
+    int getQueuedRequests() {
+        return consulClient.getPendingRequests();
+    }
+
+    int getQueuedRecoveryWrites() {
+        return recovery.getQueued();
+    }
+
+    long getLastSyncDurationMillis() {
+        final long nanos = lastSyncNanos;
+        return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    long getFailedSyncs() {
+        return failedSyncs.get();
+    }
 
-        // 2. De-register all services not known by Helios
-        for (String service : registeredServices.keySet()) {
-            if (!endpoints.contains(service)) {
-                log.info("Service '{}' not known by Helios. Sending deregistration.", service);
-                consulClient.deregister(service);
+    long getFailedWrites() {
+        return operations.getFailures();
+    }
+
+    int getSyncInterval() {
+        return syncInterval;
+    }
+
+    /**
+     * Changes the time between checks of the agent when polling it, or between checks of whether
+     * a full sync is due when watching it. The check already scheduled is moved to the new
+     * interval, and the full sync interval starts over from it.
+     */
+    void setSyncInterval(final int syncInterval) {
+        Preconditions.checkArgument(syncInterval >= 1, "syncInterval must be at least 1");
+        this.syncInterval = syncInterval;
+        log.info("Checking the Consul agent every {} seconds", syncInterval);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // A check that is running schedules the next one with the new interval
+                    if (nextCheck != null && nextCheck.cancel(false)) {
+                        if (polling) {
+                            startPolling();
+                        } else {
+                            startFullSyncs();
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("Not rescheduling the sync, executor is shut down");
+        }
+    }
+
+    int getHealthCheckInterval() {
+        return serviceUtil.getHealthCheckInterval();
+    }
+
+    /**
+     * Changes the interval of the health checks, and registers the services with a health check
+     * again with it: those of Helios, and those adopted from the journal. The registrations are
+     * paced like the repairs of a sync.
+     */
+    void setHealthCheckInterval(final int healthCheckInterval) {
+        Preconditions.checkArgument(healthCheckInterval >= 1,
+                                    "healthCheckInterval must be at least 1");
+        serviceUtil.setHealthCheckInterval(healthCheckInterval);
+        log.info("Health checks run every {} seconds. Registering the services again.",
+                 healthCheckInterval);
+
+        final List<DesiredService> checked = new ArrayList<>();
+        for (final DesiredService service : state.get().getServices().values()) {
+            if (service.getService().getCheck() != null) {
+                checked.add(service);
             }
         }
 
-        // 3. Register all services not known by Consul
-        for (ServiceRegistration handle : handles.values()) {
-            for (ServiceRegistration.Endpoint endpoint : handle.getEndpoints()) {
-                if (!registeredServices.containsKey(endpoint.getName())) {
-                    log.info("Service '{}' not known by Consul. Re-registering Helios job.",
-                            endpoint.getName());
+        final List<ListenableFuture<HttpResponse>> futures = new ArrayList<>(checked.size());
+        for (final DesiredService service : checked) {
+            final RecoveryScheduler.Lane lane = wasPassing(service)
+                    ? RecoveryScheduler.Lane.PASSING : RecoveryScheduler.Lane.OTHER;
+            futures.add(recover(lane, service.getId(),
+                                new Callable<ListenableFuture<HttpResponse>>() {
+                @Override
+                public ListenableFuture<HttpResponse> call() {
+                    // Built from the service desired by then, which may have been replaced
+                    final DesiredService current = state.get().get(service.getId());
+                    if (current == null) {
+                        // Unregistered since
+                        return null;
+                    }
+                    final DesiredService updated;
                     try {
-                        sendRegistration(handle);
-                    } catch (Exception e) {
+                        updated = DesiredService.of(
+                                serviceUtil.withHealthCheckInterval(current.getService()));
+                    } catch (JsonProcessingException e) {
                         log.warn("Error performing registration", e);
+                        return null;
+                    }
+                    if (!replaceService(current, updated)) {
+                        // Replaced or unregistered meanwhile, with the new interval
+                        return null;
                     }
-                    break;
+                    // Still reaped after the grace period unless Helios registers it again
+                    adopted.replace(updated.getId(), current, updated);
+                    journalPut(Collections.singletonList(updated));
+                    return operations.register(updated);
                 }
-            }
+            }));
+        }
+        logFailures(Futures.successfulAsList(futures), "re-register", checked.size());
+    }
+
+    int getMaxConcurrentRequests() {
+        return consulClient.getMaxConcurrentRequests();
+    }
+
+    void setMaxConcurrentRequests(final int maxConcurrentRequests) {
+        consulClient.setMaxConcurrentRequests(maxConcurrentRequests);
+    }
+
+    /**
+     * Logs once per batch if any of its requests did not get a successful response.
+     */
+    private static void logFailures(final ListenableFuture<List<HttpResponse>> batch,
+                                    final String operation, final int size) {
+        if (size == 0) {
+            return;
         }
+        Futures.addCallback(batch, new FutureCallback<List<HttpResponse>>() {
+            @Override
+            public void onSuccess(final List<HttpResponse> responses) {
+                int failed = 0;
+                for (final HttpResponse response : responses) {
+                    if (response != null && response.getStatusLine().getStatusCode() >= 400) {
+                        failed++;
+                    }
+                }
+                // Failed or superseded requests have no response; they were logged by the client
+                if (failed > 0) {
+                    log.warn("Failed to {} {} of {} services. Retrying on the next sync.",
+                             operation, failed, size);
+                }
+            }
+
+            @Override
+            public void onFailure(final Throwable t) {
+                log.warn("Failed to {} {} services", operation, size, t);
+            }
+        });
+    }
+
+    /**
+     * Exposes the registrar through an MXBean, which is unregistered when the registrar is
+     * closed.
+     */
+    void setManagement(final RegistrarManagement management) {
+        this.management = management;
     }
 
     ConsulClient getConsulClient() {
@@ -25,10 +25,18 @@ import com.spotify.helios.serviceregistration.ServiceRegistrar;
 import com.spotify.helios.serviceregistration.ServiceRegistrarFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import se.svt.helios.serviceregistration.consul.metrics.DefaultRegistrarMetrics;
+import se.svt.helios.serviceregistration.consul.metrics.PrometheusHttpServer;
+import se.svt.helios.serviceregistration.consul.model.ConsulClientConfig;
 import se.svt.helios.serviceregistration.consul.model.RegistrarConfig;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class ConsulServiceRegistrarFactory implements ServiceRegistrarFactory {
     private static final Logger log =
@@ -37,6 +45,50 @@ public class ConsulServiceRegistrarFactory implements ServiceRegistrarFactory {
     static final String PROP_HEALTH_CHECK_INTERVAL = "helios-consul.healthCheckInterval";
     static final String PROP_DEPLOY_TAG = "helios-consul.deployTag";
     static final String PROP_SYNC_INTERVAL = "helios-consul.syncInterval";
+    static final String PROP_MAX_SYNC_INTERVAL = "helios-consul.maxSyncInterval";
+    static final String PROP_WATCH = "helios-consul.watch";
+    static final String PROP_WATCH_WAIT = "helios-consul.watchWait";
+    static final String PROP_METRICS_ADDRESS = "helios-consul.metricsAddress";
+    static final String PROP_METRICS_PORT = "helios-consul.metricsPort";
+    static final String PROP_JOURNAL = "helios-consul.journal";
+    static final String PROP_JOURNAL_GRACE_PERIOD = "helios-consul.journalGracePeriod";
+    static final String PROP_RECOVERY_RATE = "helios-consul.recoveryRate";
+    static final String PROP_RECOVERY_BURST = "helios-consul.recoveryBurst";
+    static final String PROP_OWNER_ID = "helios-consul.ownerId";
+    static final String PROP_TAKEOVER_GRACE_PERIOD = "helios-consul.takeoverGracePeriod";
+    static final String PROP_MAX_CONCURRENT_REQUESTS = "helios-consul.maxConcurrentRequests";
+    static final String PROP_MAX_QUEUED_REQUESTS = "helios-consul.maxQueuedRequests";
+    static final String PROP_REQUEST_TIMEOUT = "helios-consul.requestTimeout";
+    static final String PROP_KEEP_ALIVE = "helios-consul.keepAlive";
+    static final String PROP_IO_THREADS = "helios-consul.ioThreads";
+
+    // How often the agents found for a domain are resolved again, to follow changes to them
+    private static final int AGENT_REFRESH_INTERVAL = 60; // s
+
+    private static final ConsulAgentResolver DEFAULT_RESOLVER = new ConsulAgentResolver() {
+        private final ConsulAgentResolver staticResolver = new StaticAgentResolver();
+        private final ConsulAgentResolver srvResolver = new SrvAgentResolver();
+
+        @Override
+        public List<String> resolve(final String domain) throws Exception {
+            return domain.contains("://")
+                    ? staticResolver.resolve(domain)
+                    : srvResolver.resolve(domain);
+        }
+    };
+
+    private final ConsulAgentResolver resolver;
+
+    public ConsulServiceRegistrarFactory() {
+        this(DEFAULT_RESOLVER);
+    }
+
+    /**
+     * @param resolver Finds the agents for {@link #createForDomain(String)}.
+     */
+    public ConsulServiceRegistrarFactory(final ConsulAgentResolver resolver) {
+        this.resolver = resolver;
+    }
 
     @Override
     public ServiceRegistrar create(final String consulUri) {
@@ -54,22 +106,77 @@ public class ConsulServiceRegistrarFactory implements ServiceRegistrarFactory {
         }
 
         log.info("Creating new ConsulServiceRegistrar: consulUri={}", uri.toString());
+        return create(Collections.singletonList(uri.toString()), null);
+    }
 
-        final ConsulClient consulClient = new ConsulClient(uri.toString());
-        final RegistrarConfig config = createConfig();
+    /**
+     * Creates a registrar that talks to one of the Consul agents found for the domain: the first
+     * one answering, and the one it has registered services through once it has, until that one
+     * fails for long. The agents are resolved again every minute.
+     *
+     * @param domain A comma separated list of agent URIs (if it contains "://"), or a domain with
+     *               SRV records for {@code _consul._tcp.<domain>}. Another way of resolving the
+     *               agents can be plugged in through
+     *               {@link #ConsulServiceRegistrarFactory(ConsulAgentResolver)}.
+     */
+    @Override
+    public ServiceRegistrar createForDomain(final String domain) {
+        if (domain == null || domain.isEmpty()) {
+            throw new RuntimeException("Empty domain!");
+        }
+
+        final List<String> agents;
+        try {
+            agents = resolver.resolve(domain);
+        } catch (Exception e) {
+            throw new RuntimeException("Could not resolve Consul agents for " + domain, e);
+        }
 
-        return new ConsulServiceRegistrar(consulClient, config);
+        log.info("Creating new ConsulServiceRegistrar: domain={}, agents={}", domain, agents);
+        return create(agents, domain);
     }
 
-    @Override
-    public ServiceRegistrar createForDomain(String s) {
-        throw new UnsupportedOperationException("Not implemented!");
+    /**
+     * @param domain The domain to resolve the agents for again while running, or null if they
+     *               are fixed.
+     */
+    private ServiceRegistrar create(final List<String> agents, final String domain) {
+        final RegistrarConfig config = createConfig();
+        final DefaultRegistrarMetrics metrics = new DefaultRegistrarMetrics();
+        final ConsulClient consulClient = new ConsulClient(agents, createClientConfig(), metrics);
+        if (domain != null) {
+            consulClient.refreshAgents(resolver, domain, AGENT_REFRESH_INTERVAL,
+                                       TimeUnit.SECONDS);
+        }
+
+        PrometheusHttpServer metricsServer = null;
+        if (config.getMetricsPort() > 0) {
+            try {
+                metricsServer = new PrometheusHttpServer(new InetSocketAddress(
+                        config.getMetricsAddress(), config.getMetricsPort()), metrics);
+            } catch (IOException e) {
+                log.warn("Could not serve metrics on {}:{}",
+                         config.getMetricsAddress(), config.getMetricsPort(), e);
+            }
+        }
+
+        final ConsulServiceRegistrar registrar =
+                new ConsulServiceRegistrar(consulClient, config, metrics, metricsServer);
+        registrar.setManagement(RegistrarManagement.register(registrar));
+        return registrar;
     }
 
     public static RegistrarConfig createConfig() {
         // Default values
         final int healthCheckInterval;
         final int syncInterval;
+        final int maxSyncInterval;
+        final int watchWait;
+        final int metricsPort;
+        final int journalGracePeriod;
+        final int recoveryRate;
+        final int recoveryBurst;
+        final int takeoverGracePeriod;
         final String deployTag;
 
         try {
@@ -79,6 +186,27 @@ public class ConsulServiceRegistrarFactory implements ServiceRegistrarFactory {
             syncInterval = Integer.parseInt(
                     System.getProperty(PROP_SYNC_INTERVAL, "30")
             );
+            maxSyncInterval = Integer.parseInt(
+                    System.getProperty(PROP_MAX_SYNC_INTERVAL, "300")
+            );
+            watchWait = Integer.parseInt(
+                    System.getProperty(PROP_WATCH_WAIT, "60")
+            );
+            metricsPort = Integer.parseInt(
+                    System.getProperty(PROP_METRICS_PORT, "0")
+            );
+            journalGracePeriod = Integer.parseInt(
+                    System.getProperty(PROP_JOURNAL_GRACE_PERIOD, "300")
+            );
+            recoveryRate = Integer.parseInt(
+                    System.getProperty(PROP_RECOVERY_RATE, "50")
+            );
+            recoveryBurst = Integer.parseInt(
+                    System.getProperty(PROP_RECOVERY_BURST, "50")
+            );
+            takeoverGracePeriod = Integer.parseInt(
+                    System.getProperty(PROP_TAKEOVER_GRACE_PERIOD, "600")
+            );
         } catch (NumberFormatException e) {
             throw new RuntimeException("Could not parse config", e);
         }
@@ -88,6 +216,106 @@ public class ConsulServiceRegistrarFactory implements ServiceRegistrarFactory {
             throw new RuntimeException("Could not parse config: deployTag can not be empty!");
         }
 
-        return new RegistrarConfig(syncInterval, healthCheckInterval, deployTag);
+        if (recoveryRate < 0) {
+            throw new RuntimeException("Could not parse config: recoveryRate can not be negative!");
+        }
+        if (recoveryBurst < 1) {
+            throw new RuntimeException("Could not parse config: recoveryBurst must be at least 1!");
+        }
+        if (takeoverGracePeriod < 0) {
+            throw new RuntimeException(
+                    "Could not parse config: takeoverGracePeriod can not be negative!");
+        }
+
+        final boolean watch = Boolean.parseBoolean(System.getProperty(PROP_WATCH, "true"));
+
+        String journalPath = System.getProperty(PROP_JOURNAL);
+        if (journalPath != null && journalPath.isEmpty()) {
+            journalPath = null;
+        }
+
+        final String metricsAddress = System.getProperty(PROP_METRICS_ADDRESS, "127.0.0.1");
+        if (metricsAddress.isEmpty()) {
+            throw new RuntimeException("Could not parse config: metricsAddress can not be empty!");
+        }
+
+        String ownerId = System.getProperty(PROP_OWNER_ID);
+        if (ownerId != null && ownerId.isEmpty()) {
+            ownerId = null;
+        }
+
+        return RegistrarConfig.builder()
+                .setSyncInterval(syncInterval)
+                .setMaxSyncInterval(maxSyncInterval)
+                .setHealthCheckInterval(healthCheckInterval)
+                .setDeployTag(deployTag)
+                .setWatch(watch)
+                .setWatchWait(watchWait)
+                .setMetricsAddress(metricsAddress)
+                .setMetricsPort(metricsPort)
+                .setJournalPath(journalPath)
+                .setJournalGracePeriod(journalGracePeriod)
+                .setRecoveryRate(recoveryRate)
+                .setRecoveryBurst(recoveryBurst)
+                .setOwnerId(ownerId)
+                .setTakeoverGracePeriod(takeoverGracePeriod)
+                .build();
+    }
+
+    public static ConsulClientConfig createClientConfig() {
+        final int maxConcurrentRequests;
+        final int maxQueuedRequests;
+        final int requestTimeout;
+        final int keepAlive;
+        final int ioThreads;
+
+        try {
+            maxConcurrentRequests = Integer.parseInt(
+                    System.getProperty(PROP_MAX_CONCURRENT_REQUESTS, "4")
+            );
+            maxQueuedRequests = Integer.parseInt(
+                    System.getProperty(PROP_MAX_QUEUED_REQUESTS, "4096")
+            );
+            requestTimeout = Integer.parseInt(
+                    System.getProperty(PROP_REQUEST_TIMEOUT, "30")
+            );
+            keepAlive = Integer.parseInt(
+                    System.getProperty(PROP_KEEP_ALIVE, "30")
+            );
+            ioThreads = Integer.parseInt(
+                    System.getProperty(PROP_IO_THREADS, "1")
+            );
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Could not parse config", e);
+        }
+
+        if (maxConcurrentRequests < 1) {
+            throw new RuntimeException(
+                    "Could not parse config: maxConcurrentRequests must be at least 1!");
+        }
+        if (maxQueuedRequests < 0) {
+            throw new RuntimeException(
+                    "Could not parse config: maxQueuedRequests can not be negative!");
+        }
+        if (requestTimeout < 0) {
+            throw new RuntimeException(
+                    "Could not parse config: requestTimeout can not be negative!");
+        }
+        if (keepAlive < 1) {
+            throw new RuntimeException(
+                    "Could not parse config: keepAlive must be at least 1!");
+        }
+        if (ioThreads < 1) {
+            throw new RuntimeException(
+                    "Could not parse config: ioThreads must be at least 1!");
+        }
+
+        return ConsulClientConfig.builder()
+                .setMaxConcurrentRequests(maxConcurrentRequests)
+                .setMaxQueuedRequests(maxQueuedRequests)
+                .setRequestTimeout(requestTimeout)
+                .setKeepAlive(keepAlive)
+                .setIoThreads(ioThreads)
+                .build();
     }
 }
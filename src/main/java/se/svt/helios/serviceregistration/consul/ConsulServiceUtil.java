@@ -45,12 +45,44 @@ public class ConsulServiceUtil {
     private static final Pattern ENDPOINT_NAME_PATTERN =
             Pattern.compile("(?<name>.+)-(?<tag>v\\d+)$");
 
-    private final int healthCheckInterval;
+    private volatile int healthCheckInterval;
     private final String deployTag;
+    private final String ownerTag;
+    private final boolean hostAddress;
 
     public ConsulServiceUtil(int healthCheckInterval, String deployTag) {
+        this(healthCheckInterval, deployTag, null);
+    }
+
+    /**
+     * @param ownerTag A tag identifying the registrar that registers the services, or null.
+     */
+    public ConsulServiceUtil(int healthCheckInterval, String deployTag, String ownerTag) {
+        this(healthCheckInterval, deployTag, ownerTag, false);
+    }
+
+    /**
+     * @param hostAddress Whether to register the services with the address of the Helios host,
+     *                    which is needed when they may be registered through an agent on
+     *                    another host. Otherwise they get the address of the agent's node.
+     */
+    public ConsulServiceUtil(int healthCheckInterval, String deployTag, String ownerTag,
+                             boolean hostAddress) {
         this.healthCheckInterval = healthCheckInterval;
         this.deployTag = deployTag;
+        this.ownerTag = ownerTag;
+        this.hostAddress = hostAddress;
+    }
+
+    public int getHealthCheckInterval() {
+        return healthCheckInterval;
+    }
+
+    /**
+     * Changes the interval of the health checks of the services created from now on.
+     */
+    public void setHealthCheckInterval(int healthCheckInterval) {
+        this.healthCheckInterval = healthCheckInterval;
     }
 
     public Service createService(final Endpoint endpoint) {
@@ -60,7 +92,9 @@ public class ConsulServiceUtil {
         final List<String> tags = tags(endpoint);
         final ServiceCheck check = serviceCheck(endpoint);
 
-        return new Service(id, name, tags, port, check);
+        final String address = hostAddress ? endpoint.getHost() : null;
+
+        return new Service(id, name, tags, address, port, check);
     }
 
     public ServiceCheck serviceCheck(final Endpoint endpoint) {
@@ -90,11 +124,28 @@ public class ConsulServiceUtil {
         String name = String.format("HTTP health check for %s",
                 url.toString());
 
+        return httpCheck(id, name, url.toString());
+    }
+
+    /**
+     * @return The service with its health check, if it has one, running at the current interval.
+     */
+    public Service withHealthCheckInterval(final Service service) {
+        final ServiceCheck check = service.getCheck();
+        if (check == null) {
+            return service;
+        }
+        return new Service(service.getId(), service.getName(), service.getTags(),
+                service.getAddress(), service.getPort(),
+                httpCheck(check.getId(), check.getName(), check.getHttp()));
+    }
+
+    private ServiceCheck httpCheck(final String id, final String name, final String url) {
         String interval = String.format("%ds", healthCheckInterval);
         String notes = String.format("HTTP health check requesting %s every %s",
-                url.toString(), interval);
+                url, interval);
 
-        return new ServiceCheck(id, name, url.toString(), interval, notes);
+        return new ServiceCheck(id, name, url, interval, notes);
     }
 
     public List<String> tags(final Endpoint endpoint) {
@@ -103,6 +154,11 @@ public class ConsulServiceUtil {
         // Indicate that this service is deployed by Helios
         tags.add(deployTag);
 
+        // Indicate which registrar owns this service
+        if (ownerTag != null) {
+            tags.add(ownerTag);
+        }
+
         // Add the protocol as a tag
         tags.add(String.format("protocol-%s", endpoint.getProtocol()));
 
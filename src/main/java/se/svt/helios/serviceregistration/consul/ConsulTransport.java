@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import java.io.Closeable;
+
+/**
+ * Sends HTTP requests to the Consul agents on behalf of a {@link ConsulClient}. The client
+ * decides which agent a request goes to, when it is sent and how long it may take; a transport
+ * only has to move the request and its response.
+ *
+ * <p>Implementations must be thread safe, and must not block in {@link #send}.
+ */
+public interface ConsulTransport extends Closeable {
+    /**
+     * Prepares the transport for sending requests. Called once, before the first request.
+     */
+    void start();
+
+    /**
+     * Sends the request to the absolute URI it targets.
+     *
+     * @return A future that completes with the response, or fails if no response was received.
+     * Cancelling the future aborts the request.
+     * @throws IllegalStateException If the transport has been closed.
+     */
+    ListenableFuture<HttpResponse> send(HttpUriRequest request);
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.base.Strings;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import se.svt.helios.serviceregistration.consul.model.AgentService;
+import se.svt.helios.serviceregistration.consul.model.Service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable entry in the registrar's desired-state table: a service that should be registered
+ * in Consul, together with its pre-encoded registration payload and a fingerprint of the fields
+ * the Consul agent reports back in its service list.
+ *
+ * <p>Entries are created once per endpoint when Helios registers it, so re-registrations and
+ * syncs send the same bytes without deriving or serializing the service again.
+ */
+public final class DesiredService {
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private final Service service;
+    private final byte[] payload;
+    private final long fingerprint;
+
+    private DesiredService(final Service service, final byte[] payload) {
+        this.service = service;
+        this.payload = payload;
+        this.fingerprint = fingerprint(service.getId(), service.getName(), service.getTags(),
+                                       service.getAddress(), service.getPort());
+    }
+
+    public static DesiredService of(final Service service) throws JsonProcessingException {
+        return new DesiredService(service, ConsulCodec.encode(service));
+    }
+
+    public String getId() {
+        return service.getId();
+    }
+
+    public Service getService() {
+        return service;
+    }
+
+    /**
+     * @return The UTF-8 encoded JSON registration. Must not be modified.
+     */
+    byte[] getPayload() {
+        return payload;
+    }
+
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return true if the agent reports the service with the same name, address, port and tags.
+     */
+    public boolean matches(final AgentService agentService) {
+        return fingerprint == fingerprint(agentService.getId(), agentService.getService(),
+                                          agentService.getTags(), agentService.getAddress(),
+                                          agentService.getPort());
+    }
+
+    /**
+     * Hashes the fields that are both part of a registration and of the agent's service list.
+     * The order of the tags does not matter. An empty address, which is how the agent reports a
+     * service without one, is the same as none.
+     */
+    static long fingerprint(final String id, final String name, final List<String> tags,
+                            final String address, final Integer port) {
+        final Hasher hasher = HASH_FUNCTION.newHasher();
+        putString(hasher, id);
+        putString(hasher, name);
+        putString(hasher, Strings.emptyToNull(address));
+        hasher.putInt(port == null ? -1 : port);
+
+        if (tags != null) {
+            final List<String> sortedTags = new ArrayList<>(tags);
+            Collections.sort(sortedTags);
+            String previous = null;
+            for (final String tag : sortedTags) {
+                if (!tag.equals(previous)) {
+                    putString(hasher, tag);
+                }
+                previous = tag;
+            }
+        }
+
+        return hasher.hash().asLong();
+    }
+
+    private static void putString(final Hasher hasher, final String value) {
+        if (value == null) {
+            hasher.putInt(-1);
+        } else {
+            hasher.putInt(value.length());
+            hasher.putString(value, Charsets.UTF_8);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("service", service)
+                .add("fingerprint", fingerprint)
+                .toString();
+    }
+}
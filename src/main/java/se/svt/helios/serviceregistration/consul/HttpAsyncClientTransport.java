@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+
+/**
+ * A transport backed by an Apache {@link CloseableHttpAsyncClient}, normally the pooled NIO
+ * client of a {@link ConsulConnectionPool}.
+ */
+class HttpAsyncClientTransport implements ConsulTransport {
+    private final CloseableHttpAsyncClient httpClient;
+
+    HttpAsyncClientTransport(final CloseableHttpAsyncClient httpClient) {
+        this.httpClient = httpClient;
+    }
+
+    @Override
+    public void start() {
+        httpClient.start();
+    }
+
+    @Override
+    public ListenableFuture<HttpResponse> send(final HttpUriRequest request) {
+        final SettableFuture<HttpResponse> result = SettableFuture.create();
+        final Future<HttpResponse> sent = httpClient.execute(request,
+                new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(final HttpResponse response) {
+                result.set(response);
+            }
+
+            @Override
+            public void failed(final Exception ex) {
+                result.setException(ex);
+            }
+
+            @Override
+            public void cancelled() {
+                result.cancel(false);
+            }
+        });
+        result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (result.isCancelled() && sent != null) {
+                    sent.cancel(true);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * A transport that hands each request to a {@link Handler} in the calling thread, without any
+ * I/O. Meant for tests and benchmarks that want to exercise a {@link ConsulClient} without a
+ * Consul agent or a socket.
+ */
+public class InMemoryTransport implements ConsulTransport {
+    /**
+     * Plays the part of the Consul agent.
+     */
+    public interface Handler {
+        /**
+         * @return The response of the agent.
+         * @throws Exception To fail the request as if no response was received.
+         */
+        HttpResponse handle(HttpUriRequest request) throws Exception;
+    }
+
+    private final Handler handler;
+    private volatile boolean closed = false;
+
+    public InMemoryTransport(final Handler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public ListenableFuture<HttpResponse> send(final HttpUriRequest request) {
+        if (closed) {
+            throw new IllegalStateException("Transport is closed");
+        }
+        try {
+            return Futures.immediateFuture(handler.handle(request));
+        } catch (Exception e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces the writes a sync sends to repair the agent, so that an agent that has just restarted
+ * and lost its services gets them back at a steady rate instead of all at once.
+ *
+ * <p>Writes spend tokens from a bucket that refills at the configured rate and holds at most the
+ * configured burst, so a small repair goes out right away. Writes that find the bucket empty
+ * wait in one of three lanes, and the lanes are served strictly in order: deregistrations of
+ * services that are gone, then services that were healthy before, which become routable as soon
+ * as they are back, then the rest.
+ *
+ * <p>Each service has at most one write waiting and one in flight. A sync that runs while the
+ * previous one's writes are still waiting replaces them instead of queueing them again, and
+ * writes for services with a write in flight are left to that one.
+ *
+ * @param <T> The result of the writes.
+ */
+class RecoveryScheduler<T> {
+    private static final Logger log = LoggerFactory.getLogger(RecoveryScheduler.class);
+
+    /**
+     * The lanes writes wait in, in the order they are served.
+     */
+    enum Lane {
+        /** Deregistrations of services Helios no longer runs. */
+        DEREGISTER,
+        /** Registrations of services whose checks were passing, or that have none. */
+        PASSING,
+        /** All other registrations. */
+        OTHER
+    }
+
+    private final double ratePerNano;
+    private final double burst;
+    private final int maxQueued;
+    private final ScheduledExecutorService executor;
+    private final Ticker ticker;
+
+    // Guarded by this
+    private final Map<Lane, Queue<Entry>> lanes = new EnumMap<>(Lane.class);
+    private final Map<String, Entry> queued = new HashMap<>();
+    private final Map<String, ListenableFuture<T>> inFlight = new HashMap<>();
+    private double tokens;
+    private long refilledNanos;
+    private boolean wakeUpScheduled = false;
+
+    /**
+     * @param rate      Writes per second, or 0 for no limit.
+     * @param burst     The most writes sent at once when there has been no write for a while.
+     * @param maxQueued The most writes waiting for tokens. Writes beyond that are rejected.
+     * @param executor  Sends the writes that had to wait for tokens.
+     */
+    RecoveryScheduler(final int rate, final int burst, final int maxQueued,
+                      final ScheduledExecutorService executor, final Ticker ticker) {
+        this.ratePerNano = rate / (double) TimeUnit.SECONDS.toNanos(1);
+        this.burst = Math.max(burst, 1);
+        this.maxQueued = maxQueued;
+        this.executor = executor;
+        this.ticker = ticker;
+        this.tokens = this.burst;
+        this.refilledNanos = ticker.read();
+        for (final Lane lane : Lane.values()) {
+            lanes.put(lane, new ArrayDeque<Entry>());
+        }
+    }
+
+    /**
+     * Starts the write once a token is available and no write in an earlier lane is waiting.
+     * Writes in the same lane start in the order they were submitted.
+     *
+     * <p>If a write for the same service is already waiting, this write takes its place, in this
+     * lane, and both futures get the result of this write. If one is in flight, this write is
+     * dropped and the future is that of the write in flight.
+     *
+     * @param serviceId The service the write is for.
+     * @param write     Starts the write, and returns its future, or null if it started none.
+     * @return A future of the result of the write's future, failed with a
+     * {@link RejectedExecutionException} if too many writes are waiting.
+     */
+    ListenableFuture<T> submit(final Lane lane, final String serviceId,
+                               final Callable<ListenableFuture<T>> write) {
+        final Entry entry;
+        synchronized (this) {
+            final ListenableFuture<T> running = inFlight.get(serviceId);
+            if (running != null) {
+                log.debug("Not queueing a write for service {}, one is in flight", serviceId);
+                return running;
+            }
+            final Entry waiting = queued.get(serviceId);
+            if (waiting != null) {
+                waiting.write = write;
+                if (waiting.lane != lane) {
+                    lanes.get(waiting.lane).remove(waiting);
+                    waiting.lane = lane;
+                    lanes.get(lane).add(waiting);
+                }
+                return waiting.result;
+            }
+            if (queued.size() >= maxQueued) {
+                return Futures.immediateFailedFuture(new RejectedExecutionException(
+                        "More than " + maxQueued + " recovery writes waiting"));
+            }
+            entry = new Entry(serviceId, lane, write);
+            queued.put(serviceId, entry);
+            lanes.get(lane).add(entry);
+        }
+        drain();
+        return entry.result;
+    }
+
+    /**
+     * @return The number of writes waiting for tokens.
+     */
+    synchronized int getQueued() {
+        return queued.size();
+    }
+
+    /**
+     * Starts the waiting writes there are tokens for, and schedules a wake-up for the rest.
+     */
+    private void drain() {
+        while (true) {
+            final Entry entry;
+            long wait = 0;
+            synchronized (this) {
+                entry = next();
+                if (entry == null) {
+                    if (wakeUpScheduled || queued.isEmpty()) {
+                        return;
+                    }
+                    wakeUpScheduled = true;
+                    wait = (long) Math.ceil((1 - tokens) / ratePerNano);
+                }
+            }
+            if (entry == null) {
+                scheduleWakeUp(wait);
+                return;
+            }
+            entry.start();
+        }
+    }
+
+    /**
+     * @return The next write to start, with the token for it taken and marked as in flight, or
+     * null if there is none or no token for it.
+     */
+    private Entry next() {
+        if (ratePerNano > 0) {
+            final long now = ticker.read();
+            tokens = Math.min(burst, tokens + (now - refilledNanos) * ratePerNano);
+            refilledNanos = now;
+            if (tokens < 1) {
+                return null;
+            }
+        }
+        for (final Queue<Entry> queue : lanes.values()) {
+            final Entry entry = queue.poll();
+            if (entry != null) {
+                tokens -= 1;
+                queued.remove(entry.serviceId);
+                inFlight.put(entry.serviceId, entry.result);
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private void scheduleWakeUp(final long delayNanos) {
+        try {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (RecoveryScheduler.this) {
+                        wakeUpScheduled = false;
+                    }
+                    drain();
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, so the waiting writes are dropped along with the rest
+            log.debug("Not sending {} waiting writes, executor is shut down", getQueued());
+        }
+    }
+
+    private class Entry {
+        private final String serviceId;
+        private final SettableFuture<ListenableFuture<T>> started = SettableFuture.create();
+        private final ListenableFuture<T> result = Futures.dereference(started);
+
+        // Guarded by RecoveryScheduler.this until started
+        private Lane lane;
+        private Callable<ListenableFuture<T>> write;
+
+        Entry(final String serviceId, final Lane lane, final Callable<ListenableFuture<T>> write) {
+            this.serviceId = serviceId;
+            this.lane = lane;
+            this.write = write;
+        }
+
+        void start() {
+            result.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (RecoveryScheduler.this) {
+                        if (inFlight.get(serviceId) == result) {
+                            inFlight.remove(serviceId);
+                        }
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+            try {
+                final ListenableFuture<T> future = write.call();
+                started.set(future != null ? future : Futures.<T>immediateFuture(null));
+            } catch (Exception e) {
+                started.setException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul;
+
+import com.google.common.collect.ImmutableMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.svt.helios.serviceregistration.consul.model.Service;
+import se.svt.helios.serviceregistration.consul.model.ServiceCheck;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only file of the services the registrar wants registered, so that a restarted
+ * registrar knows which services in Consul it registered before.
+ *
+ * <p>Each record is framed by its length and a CRC32 of its contents. A record that was only
+ * partly written when the process died is detected on replay and cut off. When the file holds
+ * more than twice as many records as live services, it is compacted by writing the live services
+ * to a new file that atomically replaces the old one.
+ */
+class RegistrarJournal implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(RegistrarJournal.class);
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final int FRAME_HEADER = 8; // length and CRC32
+    private static final int MIN_COMPACTION_RECORDS = 64;
+
+    private final Path path;
+    private final Map<String, Service> entries = new LinkedHashMap<>();
+    private final Map<String, Service> replayed;
+    private FileChannel channel;
+    private int records;
+
+    private RegistrarJournal(final Path path) throws IOException {
+        this.path = path;
+        final Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                        StandardOpenOption.WRITE);
+        replay();
+        this.replayed = ImmutableMap.copyOf(entries);
+    }
+
+    /**
+     * Opens the journal at the given path, creating it if needed, and replays it.
+     */
+    static RegistrarJournal open(final String path) throws IOException {
+        return new RegistrarJournal(Paths.get(path));
+    }
+
+    /**
+     * @return The services in the journal when it was opened, by ID.
+     */
+    Map<String, Service> getReplayed() {
+        return replayed;
+    }
+
+    synchronized void put(final Collection<DesiredService> services) throws IOException {
+        if (services.isEmpty()) {
+            return;
+        }
+        final List<byte[]> frames = new ArrayList<>(services.size());
+        for (final DesiredService service : services) {
+            frames.add(encodePut(service.getService()));
+            entries.put(service.getId(), service.getService());
+        }
+        append(frames);
+    }
+
+    synchronized void remove(final Collection<String> serviceIds) throws IOException {
+        final List<byte[]> frames = new ArrayList<>(serviceIds.size());
+        for (final String serviceId : serviceIds) {
+            if (entries.remove(serviceId) != null) {
+                frames.add(encodeRemove(serviceId));
+            }
+        }
+        if (!frames.isEmpty()) {
+            append(frames);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private void append(final List<byte[]> frames) throws IOException {
+        if (records + frames.size() > Math.max(MIN_COMPACTION_RECORDS, 2 * entries.size())) {
+            compact();
+            return;
+        }
+
+        int size = 0;
+        for (final byte[] frame : frames) {
+            size += frame.length;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (final byte[] frame : frames) {
+            buffer.put(frame);
+        }
+        buffer.flip();
+
+        channel.position(channel.size());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+        records += frames.size();
+    }
+
+    /**
+     * Replaces the journal with one holding a single record per live service.
+     */
+    private void compact() throws IOException {
+        final Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        try (final FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (final Service service : entries.values()) {
+                final ByteBuffer buffer = ByteBuffer.wrap(encodePut(service));
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            }
+            out.force(true);
+        }
+
+        channel.close();
+        Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        records = entries.size();
+        log.debug("Compacted journal {} to {} services", path, records);
+    }
+
+    private void replay() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+        channel.position(0);
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            // Read the whole file
+        }
+        buffer.flip();
+
+        while (buffer.remaining() >= FRAME_HEADER) {
+            final int start = buffer.position();
+            final int length = buffer.getInt();
+            final int checksum = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                buffer.position(start);
+                break;
+            }
+            final byte[] body = new byte[length];
+            buffer.get(body);
+            if (checksum != checksum(body)) {
+                buffer.position(start);
+                break;
+            }
+            decode(body);
+            records++;
+        }
+
+        if (buffer.hasRemaining()) {
+            log.warn("Discarding {} bytes of incomplete records at the end of journal {}",
+                     buffer.remaining(), path);
+            channel.truncate(buffer.position());
+            channel.force(false);
+        }
+    }
+
+    private void decode(final byte[] body) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        final byte type = in.readByte();
+        final String id = in.readUTF();
+        if (type == REMOVE) {
+            entries.remove(id);
+            return;
+        }
+
+        final Service.Builder builder = Service.builder().setId(id).setName(in.readUTF())
+                .setAddress(readNullable(in));
+        final int port = in.readInt();
+        if (port >= 0) {
+            builder.setPort(port);
+        }
+        final int tagCount = in.readInt();
+        if (tagCount >= 0) {
+            final List<String> tags = new ArrayList<>(tagCount);
+            for (int i = 0; i < tagCount; i++) {
+                tags.add(in.readUTF());
+            }
+            builder.setTags(tags);
+        }
+        if (in.readBoolean()) {
+            builder.setCheck(new ServiceCheck(readNullable(in), readNullable(in),
+                    readNullable(in), readNullable(in), readNullable(in)));
+        }
+        entries.put(id, builder.build());
+    }
+
+    private static byte[] encodePut(final Service service) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(PUT);
+        out.writeUTF(service.getId());
+        out.writeUTF(service.getName());
+        writeNullable(out, service.getAddress());
+        out.writeInt(service.getPort() == null ? -1 : service.getPort());
+        if (service.getTags() == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(service.getTags().size());
+            for (final String tag : service.getTags()) {
+                out.writeUTF(tag);
+            }
+        }
+        final ServiceCheck check = service.getCheck();
+        out.writeBoolean(check != null);
+        if (check != null) {
+            writeNullable(out, check.getId());
+            writeNullable(out, check.getName());
+            writeNullable(out, check.getHttp());
+            writeNullable(out, check.getInterval());
+            writeNullable(out, check.getNotes());
+        }
+        return frame(bytes.toByteArray());
+    }
+
+    private static byte[] encodeRemove(final String serviceId) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(REMOVE);
+        out.writeUTF(serviceId);
+        return frame(bytes.toByteArray());
+    }
+
+    private static byte[] frame(final byte[] body) {
+        return ByteBuffer.allocate(FRAME_HEADER + body.length)
+                .putInt(body.length)
+                .putInt(checksum(body))
+                .put(body)
+                .array();
+    }
+
+    private static int checksum(final byte[] body) {
+        final CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        return (int) crc.getValue();
+    }
+
+    private static void writeNullable(final DataOutputStream out, final String value)
+            throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(final DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
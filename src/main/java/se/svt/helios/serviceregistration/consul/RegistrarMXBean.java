@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul;
+
+/**
+ * The JMX view of a {@link ConsulServiceRegistrar}, registered as
+ * {@code se.svt.helios.serviceregistration.consul:type=ConsulServiceRegistrar,id=<n>}. The
+ * writable attributes tune the running registrar and are not persisted.
+ */
+public interface RegistrarMXBean {
+    /**
+     * @return The number of endpoints registered by Helios.
+     */
+    int getRegisteredEndpoints();
+
+    /**
+     * @return The number of service IDs with a registration or deregistration outstanding or
+     * waiting to be retried.
+     */
+    int getPendingOperations();
+
+    /**
+     * @return The number of requests waiting for a free slot to the agent.
+     */
+    int getQueuedRequests();
+
+    /**
+     * @return The number of writes of syncs waiting for the recovery rate limit.
+     */
+    int getQueuedRecoveryWrites();
+
+    /**
+     * @return The duration of the last sync in milliseconds, or -1 if there has been none.
+     */
+    long getLastSyncDurationMillis();
+
+    /**
+     * @return The number of syncs that could not look up the agent's services.
+     */
+    long getFailedSyncs();
+
+    /**
+     * @return The number of registrations and deregistrations that failed, retried or not.
+     */
+    long getFailedWrites();
+
+    /**
+     * @return The time (in seconds) between checks of the agent when polling it, and the
+     * shortest time between full syncs.
+     */
+    int getSyncInterval();
+
+    /**
+     * Changes the time between checks of the agent, starting with the next check. The full sync
+     * interval starts over from it.
+     */
+    void setSyncInterval(int syncInterval);
+
+    /**
+     * @return The interval (in seconds) of the health checks of the services.
+     */
+    int getHealthCheckInterval();
+
+    /**
+     * Changes the interval of the health checks, and registers the services with a health check
+     * again with the new interval, including those adopted from the journal.
+     */
+    void setHealthCheckInterval(int healthCheckInterval);
+
+    /**
+     * @return The number of requests outstanding against the agent at once.
+     */
+    int getMaxConcurrentRequests();
+
+    /**
+     * Changes the number of requests outstanding against the agent at once.
+     */
+    void setMaxConcurrentRequests(int maxConcurrentRequests);
+}
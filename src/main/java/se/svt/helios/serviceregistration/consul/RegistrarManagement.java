@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exposes a registrar as a {@link RegistrarMXBean} in the platform MBean server.
+ */
+class RegistrarManagement implements RegistrarMXBean, AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(RegistrarManagement.class);
+    private static final String OBJECT_NAME =
+            "se.svt.helios.serviceregistration.consul:type=ConsulServiceRegistrar,id=%d";
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+    private final ConsulServiceRegistrar registrar;
+    private final ObjectName name;
+
+    private RegistrarManagement(final ConsulServiceRegistrar registrar, final ObjectName name) {
+        this.registrar = registrar;
+        this.name = name;
+    }
+
+    /**
+     * @return The registered MXBean, which unregisters it when closed, or null if it could not
+     * be registered.
+     */
+    static RegistrarManagement register(final ConsulServiceRegistrar registrar) {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final ObjectName name =
+                    new ObjectName(String.format(OBJECT_NAME, NEXT_ID.getAndIncrement()));
+            final RegistrarManagement management = new RegistrarManagement(registrar, name);
+            server.registerMBean(management, name);
+            return management;
+        } catch (JMException e) {
+            log.warn("Could not register the registrar in JMX", e);
+            return null;
+        }
+    }
+
+    ObjectName getName() {
+        return name;
+    }
+
+    @Override
+    public int getRegisteredEndpoints() {
+        return registrar.getRegisteredEndpoints();
+    }
+
+    @Override
+    public int getPendingOperations() {
+        return registrar.getPendingOperations();
+    }
+
+    @Override
+    public int getQueuedRequests() {
+        return registrar.getQueuedRequests();
+    }
+
+    @Override
+    public int getQueuedRecoveryWrites() {
+        return registrar.getQueuedRecoveryWrites();
+    }
+
+    @Override
+    public long getLastSyncDurationMillis() {
+        return registrar.getLastSyncDurationMillis();
+    }
+
+    @Override
+    public long getFailedSyncs() {
+        return registrar.getFailedSyncs();
+    }
+
+    @Override
+    public long getFailedWrites() {
+        return registrar.getFailedWrites();
+    }
+
+    @Override
+    public int getSyncInterval() {
+        return registrar.getSyncInterval();
+    }
+
+    @Override
+    public void setSyncInterval(final int syncInterval) {
+        registrar.setSyncInterval(syncInterval);
+    }
+
+    @Override
+    public int getHealthCheckInterval() {
+        return registrar.getHealthCheckInterval();
+    }
+
+    @Override
+    public void setHealthCheckInterval(final int healthCheckInterval) {
+        registrar.setHealthCheckInterval(healthCheckInterval);
+    }
+
+    @Override
+    public int getMaxConcurrentRequests() {
+        return registrar.getMaxConcurrentRequests();
+    }
+
+    @Override
+    public void setMaxConcurrentRequests(final int maxConcurrentRequests) {
+        registrar.setMaxConcurrentRequests(maxConcurrentRequests);
+    }
+
+    @Override
+    public void close() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (!server.isRegistered(name)) {
+            return;
+        }
+        try {
+            server.unregisterMBean(name);
+        } catch (JMException e) {
+            log.warn("Could not unregister the registrar from JMX", e);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Map;
+
+/**
+ * An immutable snapshot of the registrar's desired state: the service wanted for each service
+ * ID, and when each ID was last written.
+ *
+ * <p>Every local write produces a new snapshot with the next generation number, and records that
+ * generation for the ID it wrote, including IDs it removed. An observation of the agent that was
+ * requested at some generation says nothing about the IDs written after it, since the requests
+ * of those writes may not have reached the agent yet. Removed IDs are remembered until every
+ * observation older than their removal has been dealt with, see {@link #prune(long)}.
+ */
+final class RegistrarState {
+    static final RegistrarState EMPTY = new RegistrarState(
+            0, ImmutableMap.<String, DesiredService>of(), ImmutableMap.<String, Long>of());
+
+    private final long generation;
+    private final ImmutableMap<String, DesiredService> services;
+    // The generation of the last write of each ID, whether it is still desired or not
+    private final ImmutableMap<String, Long> written;
+
+    private RegistrarState(final long generation,
+                           final ImmutableMap<String, DesiredService> services,
+                           final ImmutableMap<String, Long> written) {
+        this.generation = generation;
+        this.services = services;
+        this.written = written;
+    }
+
+    long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return The desired services, by service ID.
+     */
+    ImmutableMap<String, DesiredService> getServices() {
+        return services;
+    }
+
+    DesiredService get(final String serviceId) {
+        return services.get(serviceId);
+    }
+
+    boolean contains(final String serviceId) {
+        return services.containsKey(serviceId);
+    }
+
+    /**
+     * @return true if the ID has been written after the given generation, so that an observation
+     * of the agent requested at that generation is out of date for it.
+     */
+    boolean writtenSince(final String serviceId, final long observed) {
+        final Long last = written.get(serviceId);
+        return last != null && last > observed;
+    }
+
+    RegistrarState put(final DesiredService service) {
+        final long next = generation + 1;
+        return new RegistrarState(next, with(services, service.getId(), service),
+                                  with(written, service.getId(), next));
+    }
+
+    RegistrarState remove(final String serviceId) {
+        final long next = generation + 1;
+        return new RegistrarState(next, with(services, serviceId, null),
+                                  with(written, serviceId, next));
+    }
+
+    /**
+     * Forgets when the removed IDs were removed, if it was no later than the given generation.
+     * Call once observations up to that generation can no longer arrive.
+     */
+    RegistrarState prune(final long observed) {
+        final ImmutableMap.Builder<String, Long> kept = ImmutableMap.builder();
+        boolean pruned = false;
+        for (final Map.Entry<String, Long> entry : written.entrySet()) {
+            if (entry.getValue() <= observed && !services.containsKey(entry.getKey())) {
+                pruned = true;
+            } else {
+                kept.put(entry);
+            }
+        }
+        return pruned ? new RegistrarState(generation, services, kept.build()) : this;
+    }
+
+    /**
+     * @return A copy of the map with the key mapped to the value, or removed if it is null.
+     */
+    private static <V> ImmutableMap<String, V> with(final ImmutableMap<String, V> map,
+                                                    final String key, final V value) {
+        final ImmutableMap.Builder<String, V> builder = ImmutableMap.builder();
+        for (final Map.Entry<String, V> entry : map.entrySet()) {
+            if (!entry.getKey().equals(key)) {
+                builder.put(entry);
+            }
+        }
+        if (value != null) {
+            builder.put(key, value);
+        }
+        return builder.build();
+    }
+}
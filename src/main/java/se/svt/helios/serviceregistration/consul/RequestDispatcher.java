@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import se.svt.helios.serviceregistration.consul.metrics.RegistrarMetrics;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Limits the number of requests outstanding against the Consul agent. Requests over the limit
+ * wait in a FIFO queue and are sent as earlier requests complete, so a burst of registrations
+ * drains at the rate the agent responds instead of timing out waiting for a connection. When the
+ * queue is full, requests are rejected immediately with a {@link RejectedExecutionException}.
+ *
+ * <p>Cancelling the future of a request aborts it if it has been sent, and frees its slot.
+ */
+class RequestDispatcher {
+    private final ConsulTransport transport;
+    private final RegistrarMetrics metrics;
+    private final int maxQueued;
+
+    // Guarded by this
+    private final Queue<PendingRequest> queue = new ArrayDeque<>();
+    private int inFlight = 0;
+    private int maxConcurrent;
+
+    // The requests waiting to be sent by a dispatch already running in the thread
+    private final ThreadLocal<Queue<PendingRequest>> dispatching = new ThreadLocal<>();
+
+    RequestDispatcher(final ConsulTransport transport, final RegistrarMetrics metrics,
+                      final int maxConcurrent, final int maxQueued) {
+        this.transport = transport;
+        this.metrics = metrics;
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * Sends the request now if fewer than the maximum number of requests are outstanding, and
+     * otherwise queues it.
+     *
+     * @return A future that completes when the agent has responded.
+     */
+    ListenableFuture<HttpResponse> execute(final HttpUriRequest request,
+                                           final Callback callback) {
+        final PendingRequest pending = new PendingRequest(request, callback);
+
+        boolean dispatchNow = false;
+        boolean rejected = false;
+        int queueDepth = 0;
+        synchronized (this) {
+            if (inFlight < maxConcurrent) {
+                inFlight++;
+                dispatchNow = true;
+            } else if (queue.size() < maxQueued) {
+                queue.add(pending);
+                queueDepth = queue.size();
+            } else {
+                rejected = true;
+            }
+        }
+
+        if (dispatchNow) {
+            dispatch(pending);
+        } else if (rejected) {
+            metrics.requestRejected();
+            pending.fail(new RejectedExecutionException(
+                    "Too many requests queued for the Consul agent: " + maxQueued));
+        } else {
+            metrics.queueDepthChanged(queueDepth);
+        }
+
+        return pending.future;
+    }
+
+    /**
+     * @return The number of requests waiting to be sent.
+     */
+    synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return The number of requests sent and waiting for a response.
+     */
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    synchronized int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * Changes the number of requests outstanding at once. A higher limit sends queued requests
+     * right away. With a lower limit, no queued request is sent until enough of the outstanding
+     * ones have completed.
+     */
+    void setMaxConcurrent(final int maxConcurrent) {
+        final List<PendingRequest> released = new ArrayList<>();
+        final int queueDepth;
+        synchronized (this) {
+            this.maxConcurrent = maxConcurrent;
+            while (inFlight < maxConcurrent && !queue.isEmpty()) {
+                released.add(queue.poll());
+                inFlight++;
+            }
+            queueDepth = queue.size();
+        }
+        if (!released.isEmpty()) {
+            metrics.queueDepthChanged(queueDepth);
+        }
+        for (final PendingRequest pending : released) {
+            dispatch(pending);
+        }
+    }
+
+    /**
+     * Sends a request that holds a slot. A transport may complete a request in the sending
+     * thread, which then hands the slot on to the next request. Requests handed on while this
+     * thread is already sending are left to the outermost call, so that draining the queue does
+     * not recurse once per request.
+     */
+    private void dispatch(final PendingRequest first) {
+        if (first == null) {
+            return;
+        }
+        final Queue<PendingRequest> current = dispatching.get();
+        if (current != null) {
+            current.add(first);
+            return;
+        }
+        final Queue<PendingRequest> handedOn = new ArrayDeque<>();
+        handedOn.add(first);
+        dispatching.set(handedOn);
+        try {
+            PendingRequest pending;
+            while ((pending = handedOn.poll()) != null) {
+                send(pending);
+            }
+        } finally {
+            dispatching.remove();
+        }
+    }
+
+    private void send(final PendingRequest pending) {
+        if (pending.future.isCancelled()) {
+            pending.callback.cancelled();
+        } else {
+            try {
+                pending.callback.sending();
+                final ListenableFuture<HttpResponse> sent = transport.send(pending.request);
+                pending.sent = sent;
+                if (pending.future.isCancelled()) {
+                    // Cancelled while being sent
+                    sent.cancel(true);
+                }
+                // Completes in this thread if the transport already has the response
+                Futures.addCallback(sent, pending);
+                return;
+            } catch (RuntimeException e) {
+                // Typically because the client is closed
+                pending.fail(e);
+            }
+        }
+        dispatch(next());
+    }
+
+    /**
+     * Hands the slot of a completed request to the next queued request, unless the limit has
+     * been lowered below the number of outstanding requests.
+     */
+    private PendingRequest next() {
+        final PendingRequest next;
+        final int queueDepth;
+        synchronized (this) {
+            next = inFlight > maxConcurrent ? null : queue.poll();
+            if (next == null) {
+                inFlight--;
+            }
+            queueDepth = queue.size();
+        }
+        if (next != null) {
+            metrics.queueDepthChanged(queueDepth);
+        }
+        return next;
+    }
+
+    /**
+     * Receives the outcome of a request, and is told when it leaves the queue.
+     */
+    interface Callback extends FutureCallback<HttpResponse> {
+        /**
+         * Called right before the request is handed to the transport. Not called for a request
+         * that is rejected or cancelled while queued.
+         */
+        void sending();
+    }
+
+    private class PendingRequest
+            implements com.google.common.util.concurrent.FutureCallback<HttpResponse> {
+        private final HttpUriRequest request;
+        private final Callback callback;
+        private final SettableFuture<HttpResponse> future = SettableFuture.create();
+        private volatile Future<HttpResponse> sent;
+
+        private PendingRequest(final HttpUriRequest request,
+                               final Callback callback) {
+            this.request = request;
+            this.callback = callback;
+
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    final Future<HttpResponse> current = sent;
+                    if (future.isCancelled() && current != null) {
+                        current.cancel(true);
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        @Override
+        public void onSuccess(final HttpResponse result) {
+            future.set(result);
+            callback.completed(result);
+            dispatch(next());
+        }
+
+        @Override
+        public void onFailure(final Throwable t) {
+            if (t instanceof CancellationException) {
+                future.cancel(false);
+                callback.cancelled();
+            } else {
+                fail(t instanceof Exception ? (Exception) t : new ExecutionException(t));
+            }
+            dispatch(next());
+        }
+
+        private void fail(final Exception ex) {
+            future.setException(ex);
+            callback.failed(ex);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Serializes the work on each service ID without a global lock. Each ID with work to do has an
+ * actor with its own mailbox; its tasks run one at a time, in the order they were submitted,
+ * while the tasks of other IDs run independently of it.
+ *
+ * <p>An actor has no thread of its own. When a task is submitted to an idle actor, the actor's
+ * mailbox is drained on the carrier executor, and the actor is discarded once the mailbox is
+ * empty, so only IDs with work in progress cost anything. Tasks must not block; they hand their
+ * requests to the client and return its future.
+ */
+class ServiceActors {
+    private static final Logger log = LoggerFactory.getLogger(ServiceActors.class);
+
+    private final Executor carrier;
+    private final ConcurrentMap<String, Actor> actors = new ConcurrentHashMap<>();
+
+    /**
+     * @param carrier Runs the actors. With a same-thread executor, a task submitted to an idle
+     *                actor runs before {@link #submit} returns.
+     */
+    ServiceActors(final Executor carrier) {
+        this.carrier = carrier;
+    }
+
+    /**
+     * Runs the task once the tasks submitted earlier for the same service ID are done.
+     *
+     * @param task Returns a future of the work it started, or null if it started none.
+     * @return A future of the result of the task's future, or of null if it returned null.
+     */
+    <T> ListenableFuture<T> submit(final String serviceId,
+                                   final Callable<ListenableFuture<T>> task) {
+        final SettableFuture<ListenableFuture<T>> started = SettableFuture.create();
+        enqueue(serviceId, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final ListenableFuture<T> future = task.call();
+                    started.set(future != null ? future : Futures.<T>immediateFuture(null));
+                } catch (Exception e) {
+                    started.setException(e);
+                }
+            }
+        });
+        return Futures.dereference(started);
+    }
+
+    /**
+     * @return The number of service IDs with tasks waiting or running.
+     */
+    int size() {
+        return actors.size();
+    }
+
+    private void enqueue(final String serviceId, final Runnable task) {
+        while (true) {
+            Actor actor = actors.get(serviceId);
+            if (actor == null) {
+                final Actor created = new Actor(serviceId);
+                actor = actors.putIfAbsent(serviceId, created);
+                if (actor == null) {
+                    actor = created;
+                }
+            }
+            if (actor.offer(task)) {
+                return;
+            }
+            // It retired after draining its mailbox; the next one takes over
+        }
+    }
+
+    private class Actor implements Runnable {
+        private final String serviceId;
+
+        // Guarded by this
+        private final Queue<Runnable> mailbox = new ArrayDeque<>();
+        private boolean scheduled = false;
+        private boolean retired = false;
+
+        private Actor(final String serviceId) {
+            this.serviceId = serviceId;
+        }
+
+        /**
+         * @return false if the actor has retired and can not take the task.
+         */
+        private boolean offer(final Runnable task) {
+            synchronized (this) {
+                if (retired) {
+                    return false;
+                }
+                mailbox.add(task);
+                if (scheduled) {
+                    return true;
+                }
+                scheduled = true;
+            }
+            carrier.execute(this);
+            return true;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final Runnable task;
+                synchronized (this) {
+                    task = mailbox.poll();
+                    if (task == null) {
+                        retired = true;
+                        actors.remove(serviceId, this);
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.warn("Task for service {} failed", serviceId, e);
+                }
+            }
+        }
+    }
+}
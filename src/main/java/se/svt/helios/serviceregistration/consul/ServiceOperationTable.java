@@ -0,0 +1,381 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.http.HttpResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.svt.helios.serviceregistration.consul.metrics.RegistrarMetrics;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps at most one register or deregister request per service ID on the wire, collapses the
+ * operations issued for the ID while it is outstanding, and retries the ones that fail.
+ *
+ * <p>While a request is outstanding, only the latest intent for the ID is kept and sent once the
+ * request completes. An intent equal to the outstanding request is dropped, and so is any intent
+ * kept before it, since the outstanding request already leaves the agent in the wanted state.
+ * So a register followed by a deregister while an earlier deregister is outstanding sends
+ * nothing more, and duplicate registrations from Helios and the sync loop are sent once.
+ *
+ * <p>A request that fails without a response, or with a server error, is sent again after an
+ * exponential backoff with jitter, so that a restarting agent is not hit by every registrar at
+ * the same moment. An intent issued while the retry is waiting replaces the failed one and is
+ * sent when the backoff ends. Other errors, such as an invalid definition, are not retried.
+ */
+class ServiceOperationTable {
+    private static final Logger log = LoggerFactory.getLogger(ServiceOperationTable.class);
+
+    static final long INITIAL_BACKOFF_MILLIS = 100;
+    static final long MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    static final int MAX_RETRIES = 10;
+
+    /**
+     * The state of a service ID in the table.
+     */
+    enum State {
+        /** A request for the ID is outstanding. Later intents wait for it to complete. */
+        IN_FLIGHT,
+        /** The last request failed and is waiting to be sent again. */
+        RETRYING,
+        /** The agent accepted the last registration. */
+        CONFIRMED,
+        /** The last registration failed and was not retried, or ran out of retries. */
+        FAILED
+    }
+
+    private final ConsulClient consulClient;
+    private final RegistrarMetrics metrics;
+    private final ScheduledExecutorService retryExecutor;
+
+    // Guarded by this
+    private final Map<String, Entry> entries = new HashMap<>();
+    private long failuresTotal = 0;
+
+    /**
+     * @param retryExecutor Schedules the retries of failed requests.
+     */
+    ServiceOperationTable(final ConsulClient consulClient, final RegistrarMetrics metrics,
+                          final ScheduledExecutorService retryExecutor) {
+        this.consulClient = consulClient;
+        this.metrics = metrics;
+        this.retryExecutor = retryExecutor;
+    }
+
+    /**
+     * @return A future that completes when the service has been registered, or is cancelled if
+     * a later operation for the same ID supersedes the registration before it is sent. It fails
+     * if the registration fails and is not retried, or is superseded while waiting to be retried.
+     */
+    ListenableFuture<HttpResponse> register(final DesiredService service) {
+        return submit(service.getId(), new Operation(service));
+    }
+
+    /**
+     * @return A future that completes when the service has been deregistered, like
+     * {@link #register(DesiredService)}.
+     */
+    ListenableFuture<HttpResponse> deregister(final String serviceId) {
+        return submit(serviceId, new Operation(null));
+    }
+
+    /**
+     * @return The number of service IDs with a request outstanding or waiting to be retried.
+     */
+    synchronized int getInFlight() {
+        int inFlight = 0;
+        for (final Entry entry : entries.values()) {
+            if (entry.state == State.IN_FLIGHT || entry.state == State.RETRYING) {
+                inFlight++;
+            }
+        }
+        return inFlight;
+    }
+
+    /**
+     * @return The number of requests that failed, retried or not.
+     */
+    synchronized long getFailures() {
+        return failuresTotal;
+    }
+
+    /**
+     * @return The state of the service ID, or null if the table does not know it, because it
+     * was never registered or its last deregistration is done, whether it succeeded or not.
+     * Entries are only kept for the IDs the registrar wants registered, so the table does not
+     * grow with IDs that come and go.
+     */
+    synchronized State getState(final String serviceId) {
+        final Entry entry = entries.get(serviceId);
+        return entry == null ? null : entry.state;
+    }
+
+    /**
+     * @return How long to wait before sending a request again after it failed the given number
+     * of times in a row: a random delay between half and all of the exponential backoff.
+     */
+    static long backoffMillis(final int failures) {
+        final long backoff = Math.min(MAX_BACKOFF_MILLIS,
+                                      INITIAL_BACKOFF_MILLIS << Math.min(failures - 1, 20));
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    private ListenableFuture<HttpResponse> submit(final String serviceId,
+                                                  final Operation operation) {
+        final Operation result;
+        Operation superseded = null;
+        boolean send = false;
+
+        synchronized (this) {
+            Entry entry = entries.get(serviceId);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(serviceId, entry);
+            }
+            if (entry.current == null) {
+                entry.start(operation);
+                result = operation;
+                send = true;
+            } else if (operation.isSameAs(entry.current)) {
+                superseded = entry.pending;
+                entry.pending = null;
+                result = entry.current;
+            } else if (operation.isSameAs(entry.pending)) {
+                result = entry.pending;
+            } else {
+                superseded = entry.pending;
+                entry.pending = operation;
+                result = operation;
+            }
+        }
+
+        if (superseded != null) {
+            superseded.future.cancel(false);
+            metrics.operationCoalesced();
+        }
+        if (send) {
+            send(serviceId, operation);
+        } else if (result != operation) {
+            metrics.operationCoalesced();
+        }
+        return result.future;
+    }
+
+    private void send(final String serviceId, final Operation operation) {
+        ListenableFuture<HttpResponse> future;
+        try {
+            future = operation.service == null
+                    ? consulClient.deregister(serviceId)
+                    : consulClient.register(operation.service);
+        } catch (RuntimeException e) {
+            future = Futures.immediateFailedFuture(e);
+        }
+        if (future == null) {
+            // The client did not report completion, so there is nothing to wait for
+            future = Futures.immediateFuture(null);
+        }
+
+        Futures.addCallback(future, new FutureCallback<HttpResponse>() {
+            @Override
+            public void onSuccess(final HttpResponse result) {
+                if (result != null && result.getStatusLine().getStatusCode() >= 500) {
+                    failed(serviceId, operation, result, null);
+                } else {
+                    completed(serviceId, operation, result);
+                }
+            }
+
+            @Override
+            public void onFailure(final Throwable t) {
+                failed(serviceId, operation, null, t);
+            }
+        });
+    }
+
+    private void completed(final String serviceId, final Operation operation,
+                           final HttpResponse response) {
+        final boolean accepted = response == null ||
+                                 response.getStatusLine().getStatusCode() < 300;
+        operation.future.set(response);
+
+        final Operation next;
+        synchronized (this) {
+            final Entry entry = entries.get(serviceId);
+            entry.failures = 0;
+            next = entry.pending;
+            if (next != null) {
+                entry.start(next);
+            } else if (operation.service == null) {
+                // Rejected or not, nothing more is sent for the ID until it is registered again
+                entries.remove(serviceId);
+            } else if (!accepted) {
+                entry.settle(State.FAILED);
+            } else {
+                entry.settle(State.CONFIRMED);
+            }
+        }
+        if (next != null) {
+            send(serviceId, next);
+        }
+    }
+
+    private void failed(final String serviceId, final Operation operation,
+                        final HttpResponse response, final Throwable t) {
+        final Operation next;
+        final long delay;
+        synchronized (this) {
+            final Entry entry = entries.get(serviceId);
+            entry.failures++;
+            failuresTotal++;
+            next = entry.pending;
+            if (next != null) {
+                // A later intent replaces the failed one, and is sent right away
+                entry.start(next);
+                delay = -1;
+            } else if (entry.failures <= MAX_RETRIES) {
+                entry.state = State.RETRYING;
+                delay = backoffMillis(entry.failures);
+            } else if (operation.service == null) {
+                entries.remove(serviceId);
+                delay = -1;
+            } else {
+                entry.settle(State.FAILED);
+                delay = -1;
+            }
+        }
+
+        if (next != null) {
+            complete(operation, response, t);
+            send(serviceId, next);
+        } else if (delay >= 0) {
+            log.debug("Retrying {} of service {} in {} ms", operation, serviceId, delay);
+            metrics.operationRetried();
+            scheduleRetry(serviceId, delay);
+        } else {
+            log.warn("Giving up {} of service {} after {} retries", operation, serviceId,
+                     MAX_RETRIES);
+            complete(operation, response, t);
+        }
+    }
+
+    private void scheduleRetry(final String serviceId, final long delay) {
+        try {
+            retryExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    retry(serviceId);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, so the retry is dropped along with the rest of the registrar
+            log.debug("Not retrying operation on service {}, executor is shut down", serviceId);
+        }
+    }
+
+    private void retry(final String serviceId) {
+        final Operation failed;
+        final Operation next;
+        synchronized (this) {
+            final Entry entry = entries.get(serviceId);
+            if (entry == null || entry.state != State.RETRYING) {
+                return;
+            }
+            failed = entry.current;
+            next = entry.pending != null ? entry.pending : failed;
+            entry.current = next;
+            entry.pending = null;
+            entry.state = State.IN_FLIGHT;
+        }
+        if (next != failed) {
+            failed.future.setException(new IllegalStateException(
+                    "Superseded while waiting to be retried"));
+        }
+        send(serviceId, next);
+    }
+
+    private static void complete(final Operation operation, final HttpResponse response,
+                                 final Throwable t) {
+        if (t != null) {
+            operation.future.setException(t);
+        } else {
+            operation.future.set(response);
+        }
+    }
+
+    private static class Entry {
+        private State state;
+        // The operation on the wire or waiting to be retried, or null when settled
+        private Operation current;
+        private Operation pending;
+        // Failed attempts in a row, of this or earlier operations
+        private int failures;
+
+        private void start(final Operation operation) {
+            state = State.IN_FLIGHT;
+            current = operation;
+            pending = null;
+        }
+
+        private void settle(final State settled) {
+            state = settled;
+            current = null;
+            failures = 0;
+        }
+    }
+
+    private static class Operation {
+        // The service to register, or null to deregister
+        private final DesiredService service;
+        private final SettableFuture<HttpResponse> future = SettableFuture.create();
+
+        private Operation(final DesiredService service) {
+            this.service = service;
+        }
+
+        private boolean isSameAs(final Operation other) {
+            if (other == null) {
+                return false;
+            }
+            if (service == null || other.service == null) {
+                return service == other.service;
+            }
+            return service == other.service ||
+                   Arrays.equals(service.getPayload(), other.service.getPayload());
+        }
+
+        @Override
+        public String toString() {
+            return service == null ? "deregistration" : "registration";
+        }
+    }
+}
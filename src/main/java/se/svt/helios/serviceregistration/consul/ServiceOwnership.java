@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.svt.helios.serviceregistration.consul.model.AgentService;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which of the services with the deploy tag a registrar may act on, so that registrars
+ * sharing one Consul agent do not deregister each other's services.
+ *
+ * <p>A registrar with an owner ID tags its services with it. Its syncs then only deregister the
+ * services with its own owner tag. Services with another registrar's owner tag are left alone.
+ * Services without any owner tag, left behind by a registrar without an owner ID, are taken over
+ * once they have been seen unchanged for the takeover grace period. Takeovers only advance
+ * when the registrar syncs, which it does at least every maximum sync interval, also while
+ * watching the agent, so a takeover may happen that much later. A registrar without an owner
+ * ID that is still running registers its services again after they are taken over, since they
+ * are missing from its point of view, and nothing in such a registration tells it apart from the
+ * one before. A service that comes back after it was taken over is therefore left to whoever
+ * registered it for as long as it stays on the agent.
+ *
+ * <p>A registrar without an owner ID acts on all services without an owner tag, like before
+ * owner IDs existed, and leaves the services with one alone.
+ */
+class ServiceOwnership {
+    private static final Logger log = LoggerFactory.getLogger(ServiceOwnership.class);
+
+    private static final String OWNER_TAG = "%s-owner:%s";
+
+    private final String ownerTag;
+    private final String ownerTagPrefix;
+    private final long takeoverGraceNanos;
+
+    // Ownerless services Helios does not want, and how far their takeover has got
+    private final Map<String, Takeover> takeovers = new HashMap<>();
+
+    /**
+     * @param ownerId The owner ID of the registrar, or null if it has none.
+     */
+    ServiceOwnership(final String deployTag, final String ownerId,
+                     final long takeoverGraceNanos) {
+        this.ownerTag = ownerId != null ? ownerTag(deployTag, ownerId) : null;
+        this.ownerTagPrefix = ownerTag(deployTag, "");
+        this.takeoverGraceNanos = takeoverGraceNanos;
+    }
+
+    /**
+     * @return The tag of the services registered by the registrar with the given owner ID.
+     */
+    static String ownerTag(final String deployTag, final String ownerId) {
+        return String.format(OWNER_TAG, deployTag, ownerId);
+    }
+
+    /**
+     * @return The tag to add to the registrar's services, or null if it has no owner ID.
+     */
+    String getOwnerTag() {
+        return ownerTag;
+    }
+
+    /**
+     * @param observed The services with the deploy tag that the agent knows about.
+     * @param desired  The IDs of the services Helios wants registered.
+     * @return The observed services the registrar may act on: the ones it owns, the ones Helios
+     * wants registered, and the ownerless ones it has taken over.
+     */
+    synchronized Map<String, AgentService> claimable(final Map<String, AgentService> observed,
+                                                     final Set<String> desired,
+                                                     final long nowNanos) {
+        final Map<String, AgentService> claimable = new LinkedHashMap<>();
+        for (final AgentService service : observed.values()) {
+            final String owner = owner(service);
+            if (desired.contains(service.getId())) {
+                claimable.put(service.getId(), service);
+            } else if (ownerTag == null) {
+                if (owner == null) {
+                    claimable.put(service.getId(), service);
+                }
+            } else if (ownerTag.equals(owner)) {
+                claimable.put(service.getId(), service);
+            } else if (owner == null && takeOver(service, nowNanos)) {
+                claimable.put(service.getId(), service);
+            }
+        }
+
+        for (final Iterator<Map.Entry<String, Takeover>> it = takeovers.entrySet().iterator();
+             it.hasNext(); ) {
+            final Map.Entry<String, Takeover> entry = it.next();
+            final String serviceId = entry.getKey();
+            final Takeover takeover = entry.getValue();
+            final AgentService service = observed.get(serviceId);
+            if (service == null) {
+                if (takeover.state == State.TAKEN_OVER) {
+                    // Removed, but remembered in case its registrar brings it back
+                    entry.setValue(new Takeover(State.GONE, takeover.fingerprint, nowNanos));
+                } else if (takeover.state != State.GONE ||
+                           nowNanos - takeover.sinceNanos >= takeoverGraceNanos) {
+                    it.remove();
+                }
+            } else if (desired.contains(serviceId) || owner(service) != null) {
+                it.remove();
+            }
+        }
+        return claimable;
+    }
+
+    /**
+     * Moves the takeover of the ownerless service along.
+     *
+     * @return Whether the registrar has taken over the service.
+     */
+    private boolean takeOver(final AgentService service, final long nowNanos) {
+        final long fingerprint = DesiredService.fingerprint(
+                service.getId(), service.getService(), service.getTags(), service.getAddress(),
+                service.getPort());
+        final Takeover takeover = takeovers.get(service.getId());
+        final Takeover next;
+        if (takeover == null) {
+            next = new Takeover(State.WAITING, fingerprint, nowNanos);
+        } else if (takeover.state == State.WAITING) {
+            if (takeover.fingerprint != fingerprint) {
+                next = new Takeover(State.WAITING, fingerprint, nowNanos);
+            } else if (nowNanos - takeover.sinceNanos >= takeoverGraceNanos) {
+                next = new Takeover(State.TAKEN_OVER, fingerprint, nowNanos);
+            } else {
+                next = takeover;
+            }
+        } else if (takeover.state == State.GONE) {
+            log.info("Service {} was registered again after it was taken over, leaving it to " +
+                     "the registrar that registered it", service.getId());
+            next = new Takeover(State.RELINQUISHED, fingerprint, nowNanos);
+        } else {
+            next = takeover;
+        }
+        takeovers.put(service.getId(), next);
+        return next.state == State.TAKEN_OVER;
+    }
+
+    /**
+     * @return The owner tag of the service, or null if it has none.
+     */
+    private String owner(final AgentService service) {
+        if (service.getTags() == null) {
+            return null;
+        }
+        for (final String tag : service.getTags()) {
+            if (tag.startsWith(ownerTagPrefix)) {
+                return tag;
+            }
+        }
+        return null;
+    }
+
+    private enum State {
+        /** Seen unchanged since sinceNanos, not yet for the whole grace period. */
+        WAITING,
+        /** May be removed by the registrar. */
+        TAKEN_OVER,
+        /** Taken over and since gone from the agent, since sinceNanos. */
+        GONE,
+        /** Registered again after it was gone, so another registrar still runs it. */
+        RELINQUISHED
+    }
+
+    private static final class Takeover {
+        private final State state;
+        private final long fingerprint;
+        private final long sinceNanos;
+
+        private Takeover(final State state, final long fingerprint, final long sinceNanos) {
+            this.state = state;
+            this.fingerprint = fingerprint;
+            this.sinceNanos = sinceNanos;
+        }
+    }
+}
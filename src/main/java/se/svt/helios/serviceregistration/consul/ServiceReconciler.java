@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Strings;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+import se.svt.helios.serviceregistration.consul.model.AgentCheck;
+import se.svt.helios.serviceregistration.consul.model.AgentService;
+import se.svt.helios.serviceregistration.consul.model.ServiceCheck;
+
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the services Helios wants registered with the services the Consul agent reports and
+ * computes the minimal set of registrations and deregistrations needed to make them match.
+ */
+public class ServiceReconciler {
+    // One part of a Go duration, like "1m30s", which is how the agent reports check intervals
+    private static final Pattern DURATION_PART =
+            Pattern.compile("(\\d+(?:\\.\\d*)?)(ns|us|\u00b5s|ms|s|m|h)");
+
+    /**
+     * @param desired  The services that should be registered, by service ID.
+     * @param observed The services with the deploy tag that the agent knows about, by service ID.
+     * @param checks   The checks that the agent knows about, by check ID. May be null if unknown,
+     *                 in which case health checks are not compared. A service whose check is
+     *                 missing, or has another HTTP target or interval, is registered again.
+     */
+    public Plan reconcile(final Map<String, DesiredService> desired,
+                          final Map<String, AgentService> observed,
+                          final Map<String, AgentCheck> checks) {
+        final ListMultimap<String, AgentCheck> serviceChecks = serviceChecks(checks);
+
+        final ImmutableList.Builder<DesiredService> registrations = ImmutableList.builder();
+        for (final DesiredService service : desired.values()) {
+            final AgentService agentService = observed.get(service.getId());
+            if (agentService == null) {
+                registrations.add(service);
+            } else if (!service.matches(agentService)) {
+                registrations.add(service);
+            } else if (serviceChecks != null && service.getService().getCheck() != null &&
+                       !hasCheck(service.getService().getCheck(),
+                                 serviceChecks.get(service.getId()))) {
+                registrations.add(service);
+            }
+        }
+
+        final ImmutableList.Builder<String> deregistrations = ImmutableList.builder();
+        for (final String serviceId : observed.keySet()) {
+            if (!desired.containsKey(serviceId)) {
+                deregistrations.add(serviceId);
+            }
+        }
+
+        return new Plan(registrations.build(), deregistrations.build());
+    }
+
+    private static ListMultimap<String, AgentCheck> serviceChecks(
+            final Map<String, AgentCheck> checks) {
+        if (checks == null) {
+            return null;
+        }
+        final ListMultimap<String, AgentCheck> serviceChecks = ArrayListMultimap.create();
+        for (final AgentCheck check : checks.values()) {
+            if (check.getServiceId() != null) {
+                serviceChecks.put(check.getServiceId(), check);
+            }
+        }
+        return serviceChecks;
+    }
+
+    /**
+     * @return true if one of the service's checks on the agent is the desired check.
+     */
+    private static boolean hasCheck(final ServiceCheck check, final List<AgentCheck> agentChecks) {
+        for (final AgentCheck agentCheck : agentChecks) {
+            if (sameCheck(check, agentCheck)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compares the HTTP target and interval if the agent reports the check's definition.
+     * Otherwise compares the notes, which are derived from both. A check the agent reports
+     * neither for is taken to be the same.
+     */
+    static boolean sameCheck(final ServiceCheck check, final AgentCheck agentCheck) {
+        if (agentCheck.getHttp() != null || agentCheck.getInterval() != null) {
+            return Objects.equal(check.getHttp(), agentCheck.getHttp()) &&
+                   sameDuration(check.getInterval(), agentCheck.getInterval());
+        }
+        return Strings.isNullOrEmpty(agentCheck.getNotes()) ||
+               agentCheck.getNotes().equals(check.getNotes());
+    }
+
+    private static boolean sameDuration(final String desired, final String reported) {
+        if (Objects.equal(desired, reported)) {
+            return true;
+        }
+        final long nanos = durationNanos(desired);
+        return nanos >= 0 && nanos == durationNanos(reported);
+    }
+
+    /**
+     * @return The length of the Go duration, like "10s" or "1m0s", or -1 if it is not one.
+     */
+    static long durationNanos(final String duration) {
+        if (Strings.isNullOrEmpty(duration)) {
+            return -1;
+        }
+        final Matcher matcher = DURATION_PART.matcher(duration);
+        double nanos = 0;
+        int end = 0;
+        while (matcher.find() && matcher.start() == end) {
+            nanos += Double.parseDouble(matcher.group(1)) * unitNanos(matcher.group(2));
+            end = matcher.end();
+        }
+        return end == duration.length() ? Math.round(nanos) : -1;
+    }
+
+    private static long unitNanos(final String unit) {
+        switch (unit) {
+            case "h":
+                return 3600000000000L;
+            case "m":
+                return 60000000000L;
+            case "s":
+                return 1000000000L;
+            case "ms":
+                return 1000000L;
+            case "ns":
+                return 1L;
+            default:
+                // Microseconds
+                return 1000L;
+        }
+    }
+
+    public static class Plan {
+        private final List<DesiredService> registrations;
+        private final List<String> deregistrations;
+
+        public Plan(final List<DesiredService> registrations, final List<String> deregistrations) {
+            this.registrations = registrations;
+            this.deregistrations = deregistrations;
+        }
+
+        /**
+         * @return Services that are missing in Consul or differ from what Helios wants.
+         */
+        public List<DesiredService> getRegistrations() {
+            return registrations;
+        }
+
+        /**
+         * @return IDs of services in Consul that Helios does not know about.
+         */
+        public List<String> getDeregistrations() {
+            return deregistrations;
+        }
+
+        public boolean isEmpty() {
+            return registrations.isEmpty() && deregistrations.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul;
+
+import com.google.common.collect.ImmutableList;
+
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+
+/**
+ * Looks up the agents with a DNS SRV query for {@code _consul._tcp.<domain>}, or for the domain
+ * itself if it already is a service name starting with an underscore. Records are ordered by
+ * priority and then by descending weight.
+ */
+public class SrvAgentResolver implements ConsulAgentResolver {
+    static final String SERVICE_PREFIX = "_consul._tcp.";
+
+    @Override
+    public List<String> resolve(final String domain) throws NamingException {
+        final String name = domain.startsWith("_") ? domain : SERVICE_PREFIX + domain;
+
+        final Hashtable<String, String> env = new Hashtable<>();
+        env.put(DirContext.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.dns.DnsContextFactory");
+        final DirContext context = new InitialDirContext(env);
+
+        final List<SrvRecord> records = new ArrayList<>();
+        try {
+            final Attributes attributes = context.getAttributes(name, new String[]{"SRV"});
+            final Attribute srv = attributes.get("SRV");
+            if (srv != null) {
+                final NamingEnumeration<?> values = srv.getAll();
+                while (values.hasMore()) {
+                    records.add(SrvRecord.parse(values.next().toString()));
+                }
+            }
+        } finally {
+            context.close();
+        }
+
+        if (records.isEmpty()) {
+            throw new NameNotFoundException("No SRV records for " + name);
+        }
+
+        Collections.sort(records);
+        final ImmutableList.Builder<String> agents = ImmutableList.builder();
+        for (final SrvRecord record : records) {
+            agents.add(record.toUri());
+        }
+        return agents.build();
+    }
+
+    static class SrvRecord implements Comparable<SrvRecord> {
+        private final int priority;
+        private final int weight;
+        private final int port;
+        private final String target;
+
+        SrvRecord(final int priority, final int weight, final int port, final String target) {
+            this.priority = priority;
+            this.weight = weight;
+            this.port = port;
+            this.target = target;
+        }
+
+        /**
+         * Parses the text form of a record: "priority weight port target".
+         */
+        static SrvRecord parse(final String value) {
+            final String[] fields = value.trim().split("\\s+");
+            if (fields.length != 4) {
+                throw new IllegalArgumentException("Invalid SRV record: " + value);
+            }
+            String target = fields[3];
+            if (target.endsWith(".")) {
+                target = target.substring(0, target.length() - 1);
+            }
+            return new SrvRecord(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]),
+                                 Integer.parseInt(fields[2]), target);
+        }
+
+        String toUri() {
+            return "http://" + target + ":" + port;
+        }
+
+        @Override
+        public int compareTo(final SrvRecord other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            if (weight != other.weight) {
+                return weight > other.weight ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * Treats the domain as a comma separated list of agent URIs, such as
+ * {@code http://localhost:8500,http://10.0.0.2:8500}.
+ */
+public class StaticAgentResolver implements ConsulAgentResolver {
+    private static final Splitter SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+    @Override
+    public List<String> resolve(final String domain) {
+        final List<String> agents = ImmutableList.copyOf(SPLITTER.split(domain));
+        if (agents.isEmpty()) {
+            throw new IllegalArgumentException("No Consul agents in '" + domain + "'");
+        }
+        return agents;
+    }
+}
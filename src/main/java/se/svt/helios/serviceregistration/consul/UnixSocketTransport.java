@@ -0,0 +1,528 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.Configurable;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentLengthStrategy;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.entity.LaxContentLengthStrategy;
+import org.apache.http.impl.io.ChunkedInputStream;
+import org.apache.http.impl.io.ContentLengthInputStream;
+import org.apache.http.impl.io.DefaultHttpRequestWriter;
+import org.apache.http.impl.io.DefaultHttpResponseParser;
+import org.apache.http.impl.io.HttpTransportMetricsImpl;
+import org.apache.http.impl.io.IdentityInputStream;
+import org.apache.http.impl.io.SessionInputBufferImpl;
+import org.apache.http.impl.io.SessionOutputBufferImpl;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A transport to a Consul agent serving its HTTP API on a Unix domain socket, addressed as
+ * {@code unix:///path/to/consul.sock}. It avoids the loopback TCP stack and its ephemeral
+ * ports, and lets the agent keep its HTTP API off the network.
+ *
+ * <p>Requests are sent on blocking connections, each by a thread of its own, so the number of
+ * threads follows the number of requests outstanding, which the client's dispatcher limits.
+ * Connections are kept open between requests for up to the keep-alive time. A request on a
+ * connection that turns out to be closed, for example because the agent was restarted, is sent
+ * again on a new connection. Cancelling a request closes its connection. The socket timeout of
+ * a request's {@link RequestConfig}, or the transport's default one, bounds each wait for the
+ * agent to take or send data, so a hung agent fails a request even without a request deadline,
+ * like the blocking queries of a watch have. Connect timeouts do not apply.
+ *
+ * <p>Only the path and query of a request's URI are sent. Unix domain socket channels need
+ * Java 16 or later. They are looked up reflectively, so the plugin still runs on older Java
+ * with TCP agents.
+ */
+class UnixSocketTransport implements ConsulTransport {
+    static final String SCHEME = "unix";
+    // The base URI requests to the agent are built on; only their paths are sent
+    static final String REQUEST_BASE_URI = "http://localhost";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    // SocketChannel.open(ProtocolFamily) and UnixDomainSocketAddress.of(String), or null if the
+    // runtime does not support Unix domain sockets
+    private static final ProtocolFamily UNIX;
+    private static final Method OPEN_CHANNEL;
+    private static final Method SOCKET_ADDRESS;
+
+    static {
+        ProtocolFamily family = null;
+        Method openChannel = null;
+        Method socketAddress = null;
+        try {
+            family = StandardProtocolFamily.valueOf("UNIX");
+            openChannel = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+            socketAddress = Class.forName("java.net.UnixDomainSocketAddress")
+                    .getMethod("of", String.class);
+        } catch (IllegalArgumentException | ReflectiveOperationException e) {
+            family = null;
+        }
+        UNIX = family;
+        OPEN_CHANNEL = family == null ? null : openChannel;
+        SOCKET_ADDRESS = family == null ? null : socketAddress;
+    }
+
+    private final String socketPath;
+    private final long keepAlive; // ms
+    private final int socketTimeout; // ms, or 0 for none
+    private final ExecutorService executor;
+
+    // Guarded by itself; the most recently used connection first
+    private final Deque<Connection> idle = new ArrayDeque<>();
+    private volatile boolean running = false;
+
+    /**
+     * @param keepAlive     The number of seconds a connection is kept open while idle.
+     * @param socketTimeout The socket timeout (in milliseconds) of the requests without one of
+     *                      their own, or 0 for none.
+     */
+    UnixSocketTransport(final String socketPath, final int keepAlive, final int socketTimeout) {
+        if (UNIX == null) {
+            throw new UnsupportedOperationException(
+                    "Unix domain sockets need Java 16 or later: " + socketPath);
+        }
+        this.socketPath = socketPath;
+        this.keepAlive = TimeUnit.SECONDS.toMillis(keepAlive);
+        this.socketTimeout = socketTimeout;
+        this.executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                .setNameFormat("consul-unix-%d").setDaemon(true).build());
+    }
+
+    /**
+     * @return True if the agent URI is a Unix domain socket.
+     */
+    static boolean isUnixSocket(final String agentUri) {
+        return agentUri.startsWith(SCHEME + ":");
+    }
+
+    /**
+     * @return The path of the socket file in a {@code unix://} agent URI.
+     */
+    static String socketPath(final String agentUri) {
+        final String path = URI.create(agentUri).getPath();
+        if (path == null || path.isEmpty()) {
+            throw new IllegalArgumentException("No socket path in " + agentUri);
+        }
+        return path;
+    }
+
+    /**
+     * @return True if the runtime supports Unix domain sockets.
+     */
+    static boolean isSupported() {
+        return UNIX != null;
+    }
+
+    /**
+     * @return The address of a Unix domain socket file. Only valid if {@link #isSupported()}.
+     */
+    static SocketAddress socketAddress(final String path) {
+        try {
+            return (SocketAddress) SOCKET_ADDRESS.invoke(null, path);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Could not create Unix socket address " + path, e);
+        }
+    }
+
+    static ProtocolFamily unixProtocolFamily() {
+        return UNIX;
+    }
+
+    @Override
+    public void start() {
+        running = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        executor.shutdownNow();
+        synchronized (idle) {
+            for (final Connection connection : idle) {
+                connection.close();
+            }
+            idle.clear();
+        }
+    }
+
+    @Override
+    public ListenableFuture<HttpResponse> send(final HttpUriRequest request) {
+        if (!running) {
+            throw new IllegalStateException("Transport is not running");
+        }
+        final Exchange exchange = new Exchange(request);
+        try {
+            executor.execute(exchange);
+        } catch (RejectedExecutionException e) {
+            exchange.fail(e);
+        }
+        return exchange;
+    }
+
+    private HttpResponse send(final Exchange exchange) throws IOException, HttpException {
+        final Connection reused = takeIdleConnection();
+        if (reused != null) {
+            try {
+                return send(exchange, reused);
+            } catch (IOException e) {
+                if (exchange.isCancelled()) {
+                    throw e;
+                }
+                // The agent closed the connection while it was idle
+            }
+        }
+        return send(exchange, new Connection());
+    }
+
+    private HttpResponse send(final Exchange exchange, final Connection connection)
+            throws IOException, HttpException {
+        exchange.connection = connection;
+        if (exchange.isCancelled()) {
+            connection.close();
+            throw new IOException("Request cancelled");
+        }
+        final boolean reusable;
+        final HttpResponse response;
+        try {
+            connection.socketTimeout = exchange.socketTimeout;
+            response = connection.send(exchange.request);
+            reusable = connection.reusable(response);
+        } catch (IOException | HttpException | RuntimeException e) {
+            connection.close();
+            throw e;
+        } finally {
+            exchange.connection = null;
+        }
+
+        if (reusable && running) {
+            connection.idleSince = System.nanoTime();
+            synchronized (idle) {
+                idle.addFirst(connection);
+            }
+        } else {
+            connection.close();
+        }
+        return response;
+    }
+
+    /**
+     * @return The most recently used idle connection, or null if there is none. Connections
+     * idle for longer than the keep-alive time are closed.
+     */
+    private Connection takeIdleConnection() {
+        final long now = System.nanoTime();
+        synchronized (idle) {
+            Connection connection;
+            while ((connection = idle.pollFirst()) != null) {
+                if (now - connection.idleSince < TimeUnit.MILLISECONDS.toNanos(keepAlive)) {
+                    return connection;
+                }
+                connection.close();
+            }
+            return null;
+        }
+    }
+
+    private class Exchange extends AbstractFuture<HttpResponse> implements Runnable {
+        private final HttpRequest request;
+        private final int socketTimeout; // ms, or 0 for none
+        private volatile Connection connection;
+
+        private Exchange(final HttpRequest request) {
+            this.request = request;
+            final RequestConfig config = request instanceof Configurable
+                    ? ((Configurable) request).getConfig()
+                    : null;
+            // Like HttpClient, a negative timeout means the default and 0 means none
+            this.socketTimeout = config != null && config.getSocketTimeout() >= 0
+                    ? config.getSocketTimeout()
+                    : UnixSocketTransport.this.socketTimeout;
+        }
+
+        @Override
+        public void run() {
+            if (isCancelled()) {
+                return;
+            }
+            try {
+                set(send(this));
+            } catch (Exception e) {
+                setException(e);
+            }
+        }
+
+        private void fail(final Throwable throwable) {
+            setException(throwable);
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            final boolean cancelled = super.cancel(mayInterruptIfRunning);
+            final Connection current = connection;
+            if (cancelled && current != null) {
+                // Unblocks the thread waiting for the response
+                current.close();
+            }
+            return cancelled;
+        }
+    }
+
+    /**
+     * A connection on a non-blocking channel, so that waits for the agent can time out. Unix
+     * domain socket channels have no socket to set a timeout on.
+     */
+    private class Connection {
+        private final SocketChannel channel;
+        private final Selector selector;
+        private final SelectionKey key;
+        private final SessionInputBufferImpl in;
+        private final SessionOutputBufferImpl out;
+        private final DefaultHttpRequestWriter requestWriter;
+        private final DefaultHttpResponseParser responseParser;
+        private long idleSince;
+        // Of the request being sent
+        private int socketTimeout; // ms, or 0 for none
+
+        private Connection() throws IOException {
+            try {
+                this.channel = (SocketChannel) OPEN_CHANNEL.invoke(null, UNIX);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IOException("Could not open Unix domain socket", e);
+            }
+            Selector opened = null;
+            try {
+                channel.connect(socketAddress(socketPath));
+                channel.configureBlocking(false);
+                opened = Selector.open();
+                this.key = channel.register(opened, 0);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                if (opened != null) {
+                    opened.close();
+                }
+                throw e;
+            }
+            this.selector = opened;
+
+            final HttpTransportMetricsImpl metrics = new HttpTransportMetricsImpl();
+            this.in = new SessionInputBufferImpl(metrics, BUFFER_SIZE);
+            this.in.bind(new ChannelInputStream());
+            this.out = new SessionOutputBufferImpl(metrics, BUFFER_SIZE);
+            this.out.bind(new ChannelOutputStream());
+            this.requestWriter = new DefaultHttpRequestWriter(out);
+            this.responseParser = new DefaultHttpResponseParser(in);
+        }
+
+        private HttpResponse send(final HttpRequest request) throws IOException, HttpException {
+            final URI uri = URI.create(request.getRequestLine().getUri());
+            final String target = uri.getRawQuery() == null
+                    ? uri.getRawPath()
+                    : uri.getRawPath() + "?" + uri.getRawQuery();
+            final String method = request.getRequestLine().getMethod();
+
+            final HttpEntity entity = request instanceof HttpEntityEnclosingRequest
+                    ? ((HttpEntityEnclosingRequest) request).getEntity()
+                    : null;
+            final HttpRequest wire;
+            byte[] body = null;
+            if (entity != null) {
+                body = EntityUtils.toByteArray(entity);
+                wire = new BasicHttpEntityEnclosingRequest(method, target);
+                wire.setHeaders(request.getAllHeaders());
+                wire.setHeader(HTTP.CONTENT_LEN, Integer.toString(body.length));
+                if (entity.getContentType() != null) {
+                    wire.setHeader(entity.getContentType());
+                }
+            } else {
+                wire = new BasicHttpRequest(method, target);
+                wire.setHeaders(request.getAllHeaders());
+            }
+            wire.setHeader(HTTP.TARGET_HOST, "localhost");
+
+            requestWriter.write(wire);
+            if (body != null) {
+                out.write(body);
+            }
+            out.flush();
+
+            final HttpResponse response = responseParser.parse();
+            if (hasBody(response)) {
+                final byte[] content = ByteStreams.toByteArray(bodyStream(response));
+                final ByteArrayEntity responseEntity = new ByteArrayEntity(content);
+                final Header contentType = response.getFirstHeader(HTTP.CONTENT_TYPE);
+                if (contentType != null) {
+                    responseEntity.setContentType(contentType);
+                }
+                response.setEntity(responseEntity);
+            }
+            return response;
+        }
+
+        private InputStream bodyStream(final HttpResponse response) throws HttpException {
+            final long length = LaxContentLengthStrategy.INSTANCE.determineLength(response);
+            if (length == ContentLengthStrategy.CHUNKED) {
+                return new ChunkedInputStream(in);
+            } else if (length == ContentLengthStrategy.IDENTITY) {
+                return new IdentityInputStream(in);
+            }
+            return new ContentLengthInputStream(in, length);
+        }
+
+        private boolean reusable(final HttpResponse response) throws HttpException {
+            // A body delimited by the end of the connection leaves nothing to reuse
+            return (!hasBody(response) || LaxContentLengthStrategy.INSTANCE
+                    .determineLength(response) != ContentLengthStrategy.IDENTITY) &&
+                   DefaultConnectionReuseStrategy.INSTANCE.keepAlive(response,
+                                                                     new BasicHttpContext());
+        }
+
+        private boolean hasBody(final HttpResponse response) {
+            final int status = response.getStatusLine().getStatusCode();
+            return status >= HttpStatus.SC_OK && status != HttpStatus.SC_NO_CONTENT &&
+                   status != HttpStatus.SC_NOT_MODIFIED;
+        }
+
+        /**
+         * Waits until the channel is ready for the operation, for at most the socket timeout.
+         */
+        private void await(final int operation) throws IOException {
+            final long timeout = TimeUnit.MILLISECONDS.toNanos(socketTimeout);
+            final long start = System.nanoTime();
+            try {
+                key.interestOps(operation);
+                long remaining = timeout;
+                // Selecting for 0 ms waits for as long as it takes
+                while (selector.select(timeout > 0
+                        ? Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining))
+                        : 0) == 0) {
+                    if (!channel.isOpen()) {
+                        throw new IOException("Connection closed");
+                    }
+                    remaining = timeout - (System.nanoTime() - start);
+                    if (timeout > 0 && remaining <= 0) {
+                        throw new SocketTimeoutException("No data from the Consul agent " +
+                                "within " + socketTimeout + " ms");
+                    }
+                }
+                selector.selectedKeys().clear();
+            } catch (ClosedSelectorException | CancelledKeyException e) {
+                throw new IOException("Connection closed", e);
+            }
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing more to do with it
+            }
+            try {
+                // Wakes up a thread waiting on it
+                selector.close();
+            } catch (IOException e) {
+                // Nothing more to do with it
+            }
+        }
+
+        private class ChannelInputStream extends InputStream {
+            @Override
+            public int read() throws IOException {
+                final byte[] b = new byte[1];
+                final int n = read(b, 0, 1);
+                return n < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                final ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                int n;
+                while ((n = channel.read(buffer)) == 0) {
+                    await(SelectionKey.OP_READ);
+                }
+                return n;
+            }
+        }
+
+        private class ChannelOutputStream extends OutputStream {
+            @Override
+            public void write(final int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                final ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                while (buffer.hasRemaining()) {
+                    if (channel.write(buffer) == 0) {
+                        await(SelectionKey.OP_WRITE);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul.metrics;
+
+import com.google.common.collect.ImmutableSortedMap;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps all measurements in memory using atomic counters. They can be read through the getters
+ * or exported with {@link PrometheusTextFormat}.
+ */
+public class DefaultRegistrarMetrics implements RegistrarMetrics {
+    private final Map<Operation, OperationMetrics> operations;
+
+    private final AtomicLong rejectedTotal = new AtomicLong();
+    private volatile int queueDepth;
+    private final AtomicLong coalescedTotal = new AtomicLong();
+    private final AtomicLong retriedTotal = new AtomicLong();
+
+    private final Histogram syncDuration = new Histogram();
+    private final AtomicLong deregisteredTotal = new AtomicLong();
+    private final AtomicLong reregisteredTotal = new AtomicLong();
+    private volatile int lastDeregistered;
+    private volatile int lastReregistered;
+
+    public DefaultRegistrarMetrics() {
+        operations = new EnumMap<>(Operation.class);
+        for (final Operation operation : Operation.values()) {
+            operations.put(operation, new OperationMetrics());
+        }
+    }
+
+    @Override
+    public void requestStarted(final Operation operation) {
+        operations.get(operation).inFlight.incrementAndGet();
+    }
+
+    @Override
+    public void requestCompleted(final Operation operation, final int statusCode,
+                                 final long durationNanos) {
+        final OperationMetrics metrics = operations.get(operation);
+        metrics.inFlight.decrementAndGet();
+        metrics.latency.record(durationNanos);
+
+        AtomicLong counter = metrics.statusCodes.get(statusCode);
+        if (counter == null) {
+            final AtomicLong newCounter = new AtomicLong();
+            counter = metrics.statusCodes.putIfAbsent(statusCode, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    @Override
+    public void requestFailed(final Operation operation, final long durationNanos) {
+        final OperationMetrics metrics = operations.get(operation);
+        metrics.inFlight.decrementAndGet();
+        metrics.latency.record(durationNanos);
+        metrics.failures.incrementAndGet();
+    }
+
+    @Override
+    public void queueDepthChanged(final int queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    @Override
+    public void requestRejected() {
+        rejectedTotal.incrementAndGet();
+    }
+
+    @Override
+    public void operationCoalesced() {
+        coalescedTotal.incrementAndGet();
+    }
+
+    @Override
+    public void operationRetried() {
+        retriedTotal.incrementAndGet();
+    }
+
+    @Override
+    public void syncCompleted(final long durationNanos, final int deregistered,
+                              final int reregistered) {
+        syncDuration.record(durationNanos);
+        deregisteredTotal.addAndGet(deregistered);
+        reregisteredTotal.addAndGet(reregistered);
+        lastDeregistered = deregistered;
+        lastReregistered = reregistered;
+    }
+
+    /**
+     * @return Latency of all requests of the operation, including failed ones.
+     */
+    public Histogram getLatency(final Operation operation) {
+        return operations.get(operation).latency;
+    }
+
+    /**
+     * @return The number of responses of the operation, by HTTP status code.
+     */
+    public SortedMap<Integer, Long> getStatusCodes(final Operation operation) {
+        final ImmutableSortedMap.Builder<Integer, Long> statusCodes =
+                ImmutableSortedMap.naturalOrder();
+        for (final Map.Entry<Integer, AtomicLong> entry :
+                operations.get(operation).statusCodes.entrySet()) {
+            statusCodes.put(entry.getKey(), entry.getValue().get());
+        }
+        return statusCodes.build();
+    }
+
+    public long getFailures(final Operation operation) {
+        return operations.get(operation).failures.get();
+    }
+
+    public int getInFlight(final Operation operation) {
+        return operations.get(operation).inFlight.get();
+    }
+
+    /**
+     * @return The number of requests waiting to be sent to the agent, as last reported.
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public long getRejectedTotal() {
+        return rejectedTotal.get();
+    }
+
+    public long getCoalescedTotal() {
+        return coalescedTotal.get();
+    }
+
+    public long getRetriedTotal() {
+        return retriedTotal.get();
+    }
+
+    public Histogram getSyncDuration() {
+        return syncDuration;
+    }
+
+    public long getDeregisteredTotal() {
+        return deregisteredTotal.get();
+    }
+
+    public long getReregisteredTotal() {
+        return reregisteredTotal.get();
+    }
+
+    public int getLastDeregistered() {
+        return lastDeregistered;
+    }
+
+    public int getLastReregistered() {
+        return lastReregistered;
+    }
+
+    private static class OperationMetrics {
+        private final Histogram latency = new Histogram();
+        private final ConcurrentMap<Integer, AtomicLong> statusCodes = new ConcurrentHashMap<>();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicInteger inFlight = new AtomicInteger();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations with fixed bucket bounds. Recording is a bucket lookup and
+ * three atomic increments.
+ */
+public class Histogram {
+    /**
+     * Upper bounds of the buckets, in seconds.
+     */
+    static final double[] BUCKETS = {
+        0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+
+    private static final long[] BUCKET_NANOS = new long[BUCKETS.length];
+
+    static {
+        for (int i = 0; i < BUCKETS.length; i++) {
+            BUCKET_NANOS[i] = (long) (BUCKETS[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    // One extra bucket for everything above the largest bound
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumNanos = new AtomicLong();
+
+    public void record(final long durationNanos) {
+        int bucket = 0;
+        while (bucket < BUCKET_NANOS.length && durationNanos > BUCKET_NANOS[bucket]) {
+            bucket++;
+        }
+        counts.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sumNanos.addAndGet(durationNanos);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSumNanos() {
+        return sumNanos.get();
+    }
+
+    /**
+     * @return The number of recorded durations less than or equal to each bound in
+     * {@link #BUCKETS}, followed by the total count.
+     */
+    public long[] getCumulativeCounts() {
+        final long[] cumulative = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < cumulative.length; i++) {
+            total += counts.get(i);
+            cumulative[i] = total;
+        }
+        return cumulative;
+    }
+}
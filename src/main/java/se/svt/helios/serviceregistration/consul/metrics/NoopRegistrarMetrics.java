@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul.metrics;
+
+public final class NoopRegistrarMetrics implements RegistrarMetrics {
+    public static final NoopRegistrarMetrics INSTANCE = new NoopRegistrarMetrics();
+
+    private NoopRegistrarMetrics() {
+    }
+
+    @Override
+    public void requestStarted(final Operation operation) {
+    }
+
+    @Override
+    public void requestCompleted(final Operation operation, final int statusCode,
+                                 final long durationNanos) {
+    }
+
+    @Override
+    public void requestFailed(final Operation operation, final long durationNanos) {
+    }
+
+    @Override
+    public void queueDepthChanged(final int queueDepth) {
+    }
+
+    @Override
+    public void requestRejected() {
+    }
+
+    @Override
+    public void operationCoalesced() {
+    }
+
+    @Override
+    public void operationRetried() {
+    }
+
+    @Override
+    public void syncCompleted(final long durationNanos, final int deregistered,
+                              final int reregistered) {
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul.metrics;
+
+/**
+ * The requests that the registrar sends to the Consul agent.
+ */
+public enum Operation {
+    REGISTER("register"),
+    DEREGISTER("deregister"),
+    AGENT_SERVICES("agent_services"),
+    AGENT_CHECKS("agent_checks"),
+    AGENT_SELF("agent_self");
+
+    private final String label;
+
+    Operation(final String label) {
+        this.label = label;
+    }
+
+    /**
+     * @return The name of the operation as used in exported metrics.
+     */
+    public String getLabel() {
+        return label;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves {@link DefaultRegistrarMetrics} in the Prometheus text format on /metrics.
+ */
+public class PrometheusHttpServer implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(PrometheusHttpServer.class);
+
+    private final HttpServer server;
+
+    /**
+     * Serves the metrics on the loopback interface only.
+     */
+    public PrometheusHttpServer(final int port, final DefaultRegistrarMetrics metrics)
+            throws IOException {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), metrics);
+    }
+
+    /**
+     * @param address The address to serve the metrics on. A wildcard address serves them on all
+     *                interfaces.
+     */
+    public PrometheusHttpServer(final InetSocketAddress address,
+                                final DefaultRegistrarMetrics metrics) throws IOException {
+        if (address.isUnresolved()) {
+            throw new IOException("Could not resolve " + address.getHostString());
+        }
+        this.server = HttpServer.create(address, 0);
+        this.server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                final StringBuilder body = new StringBuilder();
+                PrometheusTextFormat.write(metrics, body);
+                final byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+
+                exchange.getResponseHeaders().set("Content-Type",
+                                                  PrometheusTextFormat.CONTENT_TYPE);
+                exchange.sendResponseHeaders(200, bytes.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(bytes);
+                }
+            }
+        });
+        this.server.start();
+        log.info("Serving Prometheus metrics on {}", server.getAddress());
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul.metrics;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes {@link DefaultRegistrarMetrics} in the Prometheus text exposition format (version
+ * 0.0.4).
+ */
+public final class PrometheusTextFormat {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final String PREFIX = "helios_consul_";
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private PrometheusTextFormat() {
+    }
+
+    public static void write(final DefaultRegistrarMetrics metrics, final Appendable out)
+            throws IOException {
+        header(out, "request_duration_seconds", "histogram",
+               "Latency of requests to the Consul agent.");
+        for (final Operation operation : Operation.values()) {
+            histogram(out, "request_duration_seconds", operationLabel(operation),
+                      metrics.getLatency(operation));
+        }
+
+        header(out, "responses_total", "counter",
+               "Responses from the Consul agent by HTTP status code.");
+        for (final Operation operation : Operation.values()) {
+            for (final Map.Entry<Integer, Long> entry :
+                    metrics.getStatusCodes(operation).entrySet()) {
+                sample(out, "responses_total",
+                       operationLabel(operation) + ",code=\"" + entry.getKey() + "\"",
+                       entry.getValue());
+            }
+        }
+
+        header(out, "request_failures_total", "counter",
+               "Requests to the Consul agent that failed without a response.");
+        for (final Operation operation : Operation.values()) {
+            sample(out, "request_failures_total", operationLabel(operation),
+                   metrics.getFailures(operation));
+        }
+
+        header(out, "requests_in_flight", "gauge",
+               "Requests sent to the Consul agent and waiting for a response.");
+        for (final Operation operation : Operation.values()) {
+            sample(out, "requests_in_flight", operationLabel(operation),
+                   metrics.getInFlight(operation));
+        }
+
+        header(out, "request_queue_depth", "gauge",
+               "Requests waiting to be sent to the Consul agent.");
+        sample(out, "request_queue_depth", null, metrics.getQueueDepth());
+
+        header(out, "requests_rejected_total", "counter",
+               "Requests rejected because too many requests were queued for the Consul agent.");
+        sample(out, "requests_rejected_total", null, metrics.getRejectedTotal());
+
+        header(out, "operations_coalesced_total", "counter",
+               "Register and deregister operations dropped or replaced before being sent.");
+        sample(out, "operations_coalesced_total", null, metrics.getCoalescedTotal());
+
+        header(out, "operations_retried_total", "counter",
+               "Failed register and deregister operations scheduled to be sent again.");
+        sample(out, "operations_retried_total", null, metrics.getRetriedTotal());
+
+        header(out, "sync_duration_seconds", "histogram",
+               "Duration of syncs between the registrar and the Consul agent.");
+        histogram(out, "sync_duration_seconds", null, metrics.getSyncDuration());
+
+        header(out, "sync_deregistered_total", "counter",
+               "Orphaned services deregistered by syncs.");
+        sample(out, "sync_deregistered_total", null, metrics.getDeregisteredTotal());
+
+        header(out, "sync_reregistered_total", "counter",
+               "Endpoints registered again by syncs.");
+        sample(out, "sync_reregistered_total", null, metrics.getReregisteredTotal());
+
+        header(out, "last_sync_deregistered", "gauge",
+               "Orphaned services deregistered by the last sync.");
+        sample(out, "last_sync_deregistered", null, metrics.getLastDeregistered());
+
+        header(out, "last_sync_reregistered", "gauge",
+               "Endpoints registered again by the last sync.");
+        sample(out, "last_sync_reregistered", null, metrics.getLastReregistered());
+    }
+
+    private static String operationLabel(final Operation operation) {
+        return "operation=\"" + operation.getLabel() + "\"";
+    }
+
+    private static void header(final Appendable out, final String name, final String type,
+                               final String help) throws IOException {
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void histogram(final Appendable out, final String name, final String labels,
+                                  final Histogram histogram) throws IOException {
+        final long[] counts = histogram.getCumulativeCounts();
+        final String prefix = labels == null ? "" : labels + ",";
+        for (int i = 0; i < Histogram.BUCKETS.length; i++) {
+            sample(out, name + "_bucket", prefix + "le=\"" + Histogram.BUCKETS[i] + "\"",
+                   counts[i]);
+        }
+        sample(out, name + "_bucket", prefix + "le=\"+Inf\"", counts[counts.length - 1]);
+        sample(out, name + "_sum", labels, histogram.getSumNanos() / NANOS_PER_SECOND);
+        sample(out, name + "_count", labels, counts[counts.length - 1]);
+    }
+
+    private static void sample(final Appendable out, final String name, final String labels,
+                               final Number value) throws IOException {
+        out.append(PREFIX).append(name);
+        if (labels != null) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(String.valueOf(value)).append('\n');
+    }
+}
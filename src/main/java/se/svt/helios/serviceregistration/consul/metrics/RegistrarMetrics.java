@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul.metrics;
+
+/**
+ * Receives measurements from the Consul client and the registrar's sync loop.
+ *
+ * <p>Implementations are called on the request path and from the HTTP client's I/O threads, so
+ * they must be thread safe and must not block. {@link DefaultRegistrarMetrics} keeps the
+ * measurements in memory and can export them in the Prometheus text format; other monitoring
+ * systems can be plugged in by implementing this interface.
+ */
+public interface RegistrarMetrics {
+
+    /**
+     * Called when a request is sent to the agent.
+     */
+    void requestStarted(Operation operation);
+
+    /**
+     * Called when the agent has responded to a request.
+     */
+    void requestCompleted(Operation operation, int statusCode, long durationNanos);
+
+    /**
+     * Called when a request failed without a response or was cancelled.
+     */
+    void requestFailed(Operation operation, long durationNanos);
+
+    /**
+     * Called when the number of requests queued for the agent changes.
+     */
+    void queueDepthChanged(int queueDepth);
+
+    /**
+     * Called when a request is rejected because too many requests are queued for the agent.
+     */
+    void requestRejected();
+
+    /**
+     * Called when a register or deregister operation is dropped because an equal operation for
+     * the same service is outstanding, or replaced by a later one before it was sent.
+     */
+    void operationCoalesced();
+
+    /**
+     * Called when a failed register or deregister operation is scheduled to be sent again.
+     */
+    void operationRetried();
+
+    /**
+     * Called after each sync between the registrar's state and the agent.
+     *
+     * @param deregistered The number of orphaned services that were deregistered.
+     * @param reregistered The number of endpoints that were registered again.
+     */
+    void syncCompleted(long durationNanos, int deregistered, int reregistered);
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Objects;
+
+// Response from http://localhost:8500/v1/agent/checks
+public class AgentCheck {
+    private final String checkId;
+    private final String name;
+    private final String status;
+    private final String serviceId;
+    private final String notes;
+    private final String http;
+    private final String interval;
+
+    public AgentCheck(@JsonProperty("CheckID") final String checkId,
+                      @JsonProperty("Name") final String name,
+                      @JsonProperty("Status") final String status,
+                      @JsonProperty("ServiceID") final String serviceId) {
+        this(checkId, name, status, serviceId, null, null, null);
+    }
+
+    /**
+     * @param http     The URL of an HTTP check, from the check's definition.
+     * @param interval The check's interval as a Go duration, like "1m30s", from its definition.
+     */
+    public AgentCheck(final String checkId, final String name, final String status,
+                      final String serviceId, final String notes, final String http,
+                      final String interval) {
+        this.checkId = checkId;
+        this.name = name;
+        this.status = status;
+        this.serviceId = serviceId;
+        this.notes = notes;
+        this.http = http;
+        this.interval = interval;
+    }
+
+    public String getCheckId() {
+        return checkId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public String getServiceId() {
+        return serviceId;
+    }
+
+    public String getNotes() {
+        return notes;
+    }
+
+    /**
+     * @return The URL of the HTTP check, or null if it is not one or the agent is too old to
+     * report check definitions.
+     */
+    public String getHttp() {
+        return http;
+    }
+
+    /**
+     * @return The interval of the check, or null if the agent does not report it.
+     */
+    public String getInterval() {
+        return interval;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("checkId", checkId)
+                .add("name", name)
+                .add("status", status)
+                .add("serviceId", serviceId)
+                .add("notes", notes)
+                .add("http", http)
+                .add("interval", interval)
+                .toString();
+    }
+}
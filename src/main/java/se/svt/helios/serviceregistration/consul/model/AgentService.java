@@ -32,14 +32,22 @@ public class AgentService {
     private final String service;
     private final Integer port;
     private final List<String> tags;
+    private final String address;
+
+    public AgentService(final String id, final String service, final List<String> tags,
+                        final Integer port) {
+        this(id, service, tags, null, port);
+    }
 
     public AgentService(@JsonProperty("ID") final String id,
                         @JsonProperty("Service") final String service,
                         @JsonProperty("Tags") final List<String> tags,
+                        @JsonProperty("Address") final String address,
                         @JsonProperty("Port") final Integer port) {
         this.id = id;
         this.service = service;
         this.tags = tags;
+        this.address = address;
         this.port = port;
     }
 
@@ -55,6 +63,14 @@ public class AgentService {
         return tags;
     }
 
+    /**
+     * @return The address the service was registered with. Empty or null if it has none, in
+     * which case the agent's own address is used.
+     */
+    public String getAddress() {
+        return address;
+    }
+
     public Integer getPort() {
         return port;
     }
@@ -82,6 +98,9 @@ public class AgentService {
         if (tags != null ? !tags.equals(that.tags) : that.tags != null) {
             return false;
         }
+        if (address != null ? !address.equals(that.address) : that.address != null) {
+            return false;
+        }
 
         return true;
     }
@@ -92,6 +111,7 @@ public class AgentService {
         result = 31 * result + (service != null ? service.hashCode() : 0);
         result = 31 * result + (port != null ? port.hashCode() : 0);
         result = 31 * result + (tags != null ? tags.hashCode() : 0);
+        result = 31 * result + (address != null ? address.hashCode() : 0);
         return result;
     }
 
@@ -102,6 +122,7 @@ public class AgentService {
                 .add("service", service)
                 .add("port", port)
                 .add("tags", tags)
+                .add("address", address)
                 .toString();
     }
 }
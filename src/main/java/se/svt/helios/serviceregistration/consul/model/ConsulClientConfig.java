@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul.model;
+
+public class ConsulClientConfig {
+    private final int maxConcurrentRequests;
+    private final int maxQueuedRequests;
+    private final int requestTimeout;
+    private final int keepAlive;
+    private final int ioThreads;
+
+    private ConsulClientConfig(final Builder builder) {
+        this.maxConcurrentRequests = builder.maxConcurrentRequests;
+        this.maxQueuedRequests = builder.maxQueuedRequests;
+        this.requestTimeout = builder.requestTimeout;
+        this.keepAlive = builder.keepAlive;
+        this.ioThreads = builder.ioThreads;
+    }
+
+    /**
+     * @return The maximum number of requests sent to the Consul agent at the same time. Further
+     * requests are queued.
+     */
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    /**
+     * @return The maximum number of requests waiting to be sent. Further requests are rejected.
+     */
+    public int getMaxQueuedRequests() {
+        return maxQueuedRequests;
+    }
+
+    /**
+     * @return The number of seconds a request may take, including the time queued and any retry
+     * on another agent, before it fails with a timeout. Zero means no deadline.
+     */
+    public int getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    /**
+     * @return The maximum number of seconds a connection to the Consul agent is kept open while
+     * idle.
+     */
+    public int getKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * @return The number of threads handling I/O on the connections to the Consul agent.
+     */
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private int maxConcurrentRequests = 4;
+        private int maxQueuedRequests = 4096;
+        private int requestTimeout = 30;
+        private int keepAlive = 30;
+        private int ioThreads = 1;
+
+        public Builder() {
+        }
+
+        public Builder setMaxConcurrentRequests(int maxConcurrentRequests) {
+            this.maxConcurrentRequests = maxConcurrentRequests;
+            return this;
+        }
+
+        public Builder setMaxQueuedRequests(int maxQueuedRequests) {
+            this.maxQueuedRequests = maxQueuedRequests;
+            return this;
+        }
+
+        public Builder setRequestTimeout(int requestTimeout) {
+            this.requestTimeout = requestTimeout;
+            return this;
+        }
+
+        public Builder setKeepAlive(int keepAlive) {
+            this.keepAlive = keepAlive;
+            return this;
+        }
+
+        public Builder setIoThreads(int ioThreads) {
+            this.ioThreads = ioThreads;
+            return this;
+        }
+
+        public ConsulClientConfig build() {
+            return new ConsulClientConfig(this);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2014 SVT AB.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package se.svt.helios.serviceregistration.consul.model;
+
+import com.google.common.base.Objects;
+
+import java.util.Map;
+
+// Response from a blocking query to http://localhost:8500/v1/agent/services
+public class HashedAgentServices {
+    private final String hash;
+    private final Map<String, AgentService> services;
+
+    public HashedAgentServices(final String hash, final Map<String, AgentService> services) {
+        this.hash = hash;
+        this.services = services;
+    }
+
+    /**
+     * @return The value of the X-Consul-ContentHash header, or null if the agent does not support
+     * blocking queries on its service list.
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    public Map<String, AgentService> getServices() {
+        return services;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("hash", hash)
+                .add("services", services)
+                .toString();
+    }
+}
@@ -23,19 +23,57 @@ package se.svt.helios.serviceregistration.consul.model;
 
 public class RegistrarConfig {
     private final int syncInterval;
+    private final int maxSyncInterval;
     private final int healthCheckInterval;
     private final String deployTag;
+    private final boolean watch;
+    private final int watchWait;
+    private final String metricsAddress;
+    private final int metricsPort;
+    private final String journalPath;
+    private final int journalGracePeriod;
+    private final int recoveryRate;
+    private final int recoveryBurst;
+    private final String ownerId;
+    private final int takeoverGracePeriod;
 
     public RegistrarConfig(int syncInterval, int healthCheckInterval, String deployTag) {
-        this.syncInterval = syncInterval;
-        this.healthCheckInterval = healthCheckInterval;
-        this.deployTag = deployTag;
+        this(builder()
+                .setSyncInterval(syncInterval)
+                .setHealthCheckInterval(healthCheckInterval)
+                .setDeployTag(deployTag));
+    }
+
+    private RegistrarConfig(final Builder builder) {
+        this.syncInterval = builder.syncInterval;
+        this.maxSyncInterval = builder.maxSyncInterval;
+        this.healthCheckInterval = builder.healthCheckInterval;
+        this.deployTag = builder.deployTag;
+        this.watch = builder.watch;
+        this.watchWait = builder.watchWait;
+        this.metricsAddress = builder.metricsAddress;
+        this.metricsPort = builder.metricsPort;
+        this.journalPath = builder.journalPath;
+        this.journalGracePeriod = builder.journalGracePeriod;
+        this.recoveryRate = builder.recoveryRate;
+        this.recoveryBurst = builder.recoveryBurst;
+        this.ownerId = builder.ownerId;
+        this.takeoverGracePeriod = builder.takeoverGracePeriod;
     }
 
     public int getSyncInterval() {
         return syncInterval;
     }
 
+    /**
+     * @return The longest time (in seconds) between full syncs while the registrar and the agent
+     * agree and the agent's service count stays the same. The agent is still checked every sync
+     * interval.
+     */
+    public int getMaxSyncInterval() {
+        return maxSyncInterval;
+    }
+
     public int getHealthCheckInterval() {
         return healthCheckInterval;
     }
@@ -43,4 +81,183 @@ public class RegistrarConfig {
     public String getDeployTag() {
         return deployTag;
     }
+
+    /**
+     * @return true if the registrar should watch the Consul agent with blocking queries instead
+     * of polling it every sync interval.
+     */
+    public boolean isWatch() {
+        return watch;
+    }
+
+    /**
+     * @return The maximum time (in seconds) a blocking query waits for the agent's services to
+     * change.
+     */
+    public int getWatchWait() {
+        return watchWait;
+    }
+
+    /**
+     * @return The address of the interface to serve Prometheus metrics on: the loopback interface
+     * by default, or 0.0.0.0 for all interfaces.
+     */
+    public String getMetricsAddress() {
+        return metricsAddress;
+    }
+
+    /**
+     * @return The port to serve Prometheus metrics on, or 0 if they should not be served.
+     */
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    /**
+     * @return The file to journal the registered services in, so that they survive a restart of
+     * the Helios agent, or null if they should not be journaled.
+     */
+    public String getJournalPath() {
+        return journalPath;
+    }
+
+    /**
+     * @return The time (in seconds) after startup during which services found in the journal are
+     * kept registered, waiting for Helios to register them again, and no services are reaped.
+     */
+    public int getJournalGracePeriod() {
+        return journalGracePeriod;
+    }
+
+    /**
+     * @return The most registrations and deregistrations per second a sync sends to repair the
+     * agent, or 0 if they are not limited. Deregistrations go first, then services whose checks
+     * were passing.
+     */
+    public int getRecoveryRate() {
+        return recoveryRate;
+    }
+
+    /**
+     * @return The most registrations and deregistrations a sync sends at once before the
+     * recovery rate applies.
+     */
+    public int getRecoveryBurst() {
+        return recoveryBurst;
+    }
+
+    /**
+     * @return The ID that tags the services of this registrar, so that syncs only deregister
+     * services it registered, or null if syncs deregister all services with the deploy tag. Must
+     * be unique among the registrars sharing a Consul agent.
+     */
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    /**
+     * @return The time (in seconds) a service with the deploy tag but without an owner must stay
+     * unchanged before a registrar with an owner ID takes it over and may deregister it.
+     */
+    public int getTakeoverGracePeriod() {
+        return takeoverGracePeriod;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private int syncInterval = 30;
+        private int maxSyncInterval = 300;
+        private int healthCheckInterval = 10;
+        private String deployTag = "helios-deployed";
+        private boolean watch = false;
+        private int watchWait = 60;
+        private String metricsAddress = "127.0.0.1";
+        private int metricsPort = 0;
+        private String journalPath = null;
+        private int journalGracePeriod = 300;
+        private int recoveryRate = 0;
+        private int recoveryBurst = 50;
+        private String ownerId = null;
+        private int takeoverGracePeriod = 600;
+
+        public Builder() {
+        }
+
+        public Builder setSyncInterval(int syncInterval) {
+            this.syncInterval = syncInterval;
+            return this;
+        }
+
+        public Builder setMaxSyncInterval(int maxSyncInterval) {
+            this.maxSyncInterval = maxSyncInterval;
+            return this;
+        }
+
+        public Builder setHealthCheckInterval(int healthCheckInterval) {
+            this.healthCheckInterval = healthCheckInterval;
+            return this;
+        }
+
+        public Builder setDeployTag(String deployTag) {
+            this.deployTag = deployTag;
+            return this;
+        }
+
+        public Builder setWatch(boolean watch) {
+            this.watch = watch;
+            return this;
+        }
+
+        public Builder setWatchWait(int watchWait) {
+            this.watchWait = watchWait;
+            return this;
+        }
+
+        public Builder setMetricsAddress(String metricsAddress) {
+            this.metricsAddress = metricsAddress;
+            return this;
+        }
+
+        public Builder setMetricsPort(int metricsPort) {
+            this.metricsPort = metricsPort;
+            return this;
+        }
+
+        public Builder setJournalPath(String journalPath) {
+            this.journalPath = journalPath;
+            return this;
+        }
+
+        public Builder setJournalGracePeriod(int journalGracePeriod) {
+            this.journalGracePeriod = journalGracePeriod;
+            return this;
+        }
+
+        public Builder setRecoveryRate(int recoveryRate) {
+            this.recoveryRate = recoveryRate;
+            return this;
+        }
+
+        public Builder setRecoveryBurst(int recoveryBurst) {
+            this.recoveryBurst = recoveryBurst;
+            return this;
+        }
+
+        public Builder setOwnerId(String ownerId) {
+            this.ownerId = ownerId;
+            return this;
+        }
+
+        public Builder setTakeoverGracePeriod(int takeoverGracePeriod) {
+            this.takeoverGracePeriod = takeoverGracePeriod;
+            return this;
+        }
+
+        public RegistrarConfig build() {
+            return new RegistrarConfig(this);
+        }
+    }
 }
@@ -46,22 +46,33 @@ import java.util.List;
  */
 
 @JsonInclude(JsonInclude.Include.NON_NULL)
-@JsonPropertyOrder({"ID", "Name", "Tags", "Port", "Check"})
+@JsonPropertyOrder({"ID", "Name", "Tags", "Address", "Port", "Check"})
 public class Service {
     private final String id;
     private final String name;
     private final List<String> tags;
+    private final String address;
     private final Integer port;
     private final ServiceCheck check;
 
+    public Service(String id, String name, List<String> tags, Integer port, ServiceCheck check) {
+        this(id, name, tags, null, port, check);
+    }
+
+    /**
+     * @param address The address to advertise the service on, or null for the address of the
+     *                agent's node.
+     */
     public Service(@JsonProperty("ID") String id,
                     @JsonProperty("Name") String name,
                     @JsonProperty("Tags") List<String> tags,
+                    @JsonProperty("Address") String address,
                     @JsonProperty("Port") Integer port,
                     @JsonProperty("Check") ServiceCheck check) {
         this.id = id;
         this.name = Preconditions.checkNotNull(name);
         this.tags = tags;
+        this.address = address;
         this.port = port;
         this.check = check;
     }
@@ -78,6 +89,10 @@ public class Service {
         return tags;
     }
 
+    public String getAddress() {
+        return address;
+    }
+
     public Integer getPort() {
         return port;
     }
@@ -95,6 +110,7 @@ public class Service {
         private String id = null;
         private String name = null;
         private List<String> tags = null;
+        private String address = null;
         private Integer port = null;
         private ServiceCheck check = null;
 
@@ -121,13 +137,18 @@ public class Service {
             return this;
         }
 
+        public Builder setAddress(String address) {
+            this.address = address;
+            return this;
+        }
+
         public Builder setCheck(ServiceCheck check) {
             this.check = check;
             return this;
         }
 
         public Service build() {
-            return new Service(id, name, tags, port, check);
+            return new Service(id, name, tags, address, port, check);
         }
     }
 
@@ -137,6 +158,7 @@ public class Service {
                 .add("id", id)
                 .add("name", name)
                 .add("tags", tags)
+                .add("address", address)
                 .add("port", port)
                 .add("check", check)
                 .toString();
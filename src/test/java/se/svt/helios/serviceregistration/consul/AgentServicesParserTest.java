@@ -0,0 +1,74 @@
+package se.svt.helios.serviceregistration.consul;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import org.junit.Test;
+import se.svt.helios.serviceregistration.consul.model.AgentService;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AgentServicesParserTest {
+    private static final String TAG = "helios-deployed";
+
+    private final AgentServicesParser parser = new AgentServicesParser(new JsonFactory());
+
+    @Test
+    public void testParse() throws Exception {
+        Map<String, AgentService> services = parser.parse(json(
+                "{" +
+                "  \"consul\": {\"ID\": \"consul\", \"Service\": \"consul\", \"Tags\": [], " +
+                "              \"Port\": 8300},\n" +
+                "  \"redis-v1\": {\"ID\": \"redis-v1\", \"Service\": \"redis\", " +
+                "                \"Tags\": [\"v1\", \"helios-deployed\"], " +
+                "                \"Meta\": {\"a\": \"b\"}, \"Address\": \"helios-1\", " +
+                "                \"Port\": 9000, " +
+                "                \"Weights\": {\"Passing\": 1, \"Warning\": 1}, " +
+                "                \"EnableTagOverride\": false},\n" +
+                "  \"web\": {\"ID\": \"web\", \"Service\": \"web\", \"Tags\": null, " +
+                "           \"Port\": 80}\n" +
+                "}"), TAG);
+
+        assertEquals(1, services.size());
+        assertEquals(new AgentService("redis-v1", "redis", Arrays.asList("v1", TAG), "helios-1",
+                                      9000),
+                     services.get("redis-v1"));
+    }
+
+    @Test
+    public void testTagPrefix() throws Exception {
+        Map<String, AgentService> services = parser.parse(json(
+                "{\"x\": {\"ID\": \"x\", \"Service\": \"x\", " +
+                "         \"Tags\": [\"helios-deployed-not\", \"helios\"], \"Port\": 1}}"), TAG);
+
+        assertTrue(services.isEmpty());
+    }
+
+    @Test
+    public void testMissingFields() throws Exception {
+        Map<String, AgentService> services = parser.parse(json(
+                "{\"x\": {\"Tags\": [\"helios-deployed\"]}}"), TAG);
+
+        assertEquals(new AgentService(null, null, Arrays.asList(TAG), null), services.get("x"));
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        assertTrue(parser.parse(json("{}"), TAG).isEmpty());
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void testNotAnObject() throws Exception {
+        parser.parse(json("[]"), TAG);
+    }
+
+    private static InputStream json(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
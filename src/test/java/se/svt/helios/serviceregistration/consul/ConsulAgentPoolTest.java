@@ -0,0 +1,127 @@
+package se.svt.helios.serviceregistration.consul;
+
+import com.google.common.base.Ticker;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ConsulAgentPoolTest {
+    FakeTicker ticker;
+    ConsulAgentPool pool;
+    ConsulAgentPool.Agent local;
+    ConsulAgentPool.Agent remote;
+
+    @Before
+    public void setUp() {
+        ticker = new FakeTicker();
+        pool = new ConsulAgentPool(Arrays.asList("http://local:8500", "http://remote:8500"),
+                                   ticker);
+        local = pool.getAgents().get(0);
+        remote = pool.getAgents().get(1);
+    }
+
+    @Test
+    public void testPrefersFirstHealthyAgent() {
+        assertEquals(local, pool.select());
+        pool.succeeded(remote);
+        assertEquals(local, pool.select());
+    }
+
+    @Test
+    public void testStaysWithAgentServicesWereRegisteredThrough() {
+        pool.failed(local);
+        pool.registered(remote);
+        assertEquals(remote, pool.getHome());
+
+        // Even when the home agent fails and the first one has recovered
+        ticker.advance(TimeUnit.SECONDS.toNanos(1));
+        pool.failed(remote);
+        assertEquals(remote, pool.select());
+        assertEquals(remote, pool.select(remote));
+
+        pool.registered(local);
+        assertEquals(remote, pool.getHome());
+    }
+
+    @Test
+    public void testFailsOverFromHomeAgentFailingForLong() {
+        pool.registered(local);
+        pool.failed(local);
+        ticker.advance(TimeUnit.SECONDS.toNanos(30));
+        pool.failed(local);
+        assertEquals(local, pool.select());
+
+        ticker.advance(TimeUnit.SECONDS.toNanos(30));
+        pool.failed(local);
+        assertNull(pool.getHome());
+        assertEquals(remote, pool.select());
+
+        // The next registration makes a new home
+        pool.registered(remote);
+        assertEquals(remote, pool.getHome());
+    }
+
+    @Test
+    public void testUpdateKeepsRemainingAgents() {
+        pool.registered(local);
+        pool.failed(remote);
+
+        assertTrue(pool.update(Arrays.asList("http://remote:8500", "http://other:8500")));
+        assertNull(pool.getHome());
+        assertSame(remote, pool.getAgents().get(0));
+        // Still backing off
+        assertEquals("http://other:8500", pool.select().getBaseUri());
+
+        assertFalse(pool.update(Arrays.asList("http://remote:8500", "http://other:8500")));
+    }
+
+    @Test
+    public void testSkipsFailedAgentUntilBackoffPassed() {
+        pool.failed(local);
+        assertEquals(remote, pool.select());
+
+        ticker.advance(TimeUnit.SECONDS.toNanos(1));
+        assertEquals(local, pool.select());
+
+        // The back-off doubles
+        pool.failed(local);
+        ticker.advance(TimeUnit.SECONDS.toNanos(1));
+        assertEquals(remote, pool.select());
+    }
+
+    @Test
+    public void testUsesFirstRecoveringWhenAllFailed() {
+        pool.failed(remote);
+        pool.failed(remote);
+        pool.failed(local);
+        assertEquals(local, pool.select());
+    }
+
+    @Test
+    public void testSelectExcluding() {
+        assertEquals(remote, pool.select(local));
+        pool.failed(remote);
+        assertEquals(remote, pool.select(local));
+    }
+
+    private static class FakeTicker extends Ticker {
+        private long nanos = 0;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        void advance(long nanos) {
+            this.nanos += nanos;
+        }
+    }
+}
@@ -1,18 +1,50 @@
 package se.svt.helios.serviceregistration.consul;
 
+import com.google.common.base.Charsets;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.Configurable;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.message.BasicHttpResponse;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import se.svt.helios.serviceregistration.consul.metrics.DefaultRegistrarMetrics;
+import se.svt.helios.serviceregistration.consul.metrics.NoopRegistrarMetrics;
+import se.svt.helios.serviceregistration.consul.metrics.Operation;
+import se.svt.helios.serviceregistration.consul.model.ConsulClientConfig;
+import se.svt.helios.serviceregistration.consul.model.HashedAgentServices;
 import se.svt.helios.serviceregistration.consul.model.Service;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -39,6 +71,345 @@ public class ConsulClientTest {
         verify(httpClient).execute(any(HttpGet.class), Matchers.<FutureCallback<HttpResponse>>any());
     }
 
+    @Test
+    public void testBlockingAgentServices() throws Exception {
+        ArgumentCaptor<HttpGet> requestCaptor = ArgumentCaptor.forClass(HttpGet.class);
+
+        ConsulClient client = new ConsulClient(baseUri, httpClient);
+        client.agentServices("4f2a", 60);
+
+        verify(httpClient).execute(requestCaptor.capture(),
+                Matchers.<FutureCallback<HttpResponse>>any());
+        assertEquals(baseUri + "/v1/agent/services?hash=4f2a&wait=60s",
+                requestCaptor.getValue().getURI().toString());
+    }
+
+    @Test
+    public void testWatchAgentServicesByContentHash() throws Exception {
+        final List<String> uris = new ArrayList<>();
+        // Like a real agent: its service list has no X-Consul-Index, and it only blocks on hash
+        final InMemoryTransport transport = new InMemoryTransport(
+                new InMemoryTransport.Handler() {
+            @Override
+            public HttpResponse handle(HttpUriRequest request) throws Exception {
+                uris.add(request.getURI().toString());
+                BasicHttpResponse response =
+                        new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+                response.setHeader("X-Consul-ContentHash", "4f2a");
+                response.setEntity(new StringEntity(
+                        "{\"redis\":{\"ID\":\"redis\",\"Service\":\"redis\"," +
+                        "\"Tags\":[\"helios-deployed\"],\"Port\":9000}}"));
+                return response;
+            }
+        });
+
+        try (ConsulClient client = new ConsulClient(Arrays.asList(baseUri), transport,
+                ConsulClientConfig.builder().build(), NoopRegistrarMetrics.INSTANCE)) {
+            HashedAgentServices first =
+                    client.watchAgentServicesWithTag("helios-deployed", null, 60);
+            assertEquals("4f2a", first.getHash());
+            assertEquals(1, first.getServices().size());
+
+            HashedAgentServices next =
+                    client.watchAgentServicesWithTag("helios-deployed", first.getHash(), 60);
+            assertEquals("4f2a", next.getHash());
+        }
+
+        assertEquals(Arrays.asList(
+                baseUri + "/v1/agent/services",
+                baseUri + "/v1/agent/services?hash=4f2a&wait=60s"), uris);
+    }
+
+    @Test
+    public void testWatchWithoutContentHash() throws Exception {
+        final InMemoryTransport transport = new InMemoryTransport(
+                new InMemoryTransport.Handler() {
+            @Override
+            public HttpResponse handle(HttpUriRequest request) throws Exception {
+                BasicHttpResponse response =
+                        new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+                response.setEntity(new StringEntity("{}"));
+                return response;
+            }
+        });
+
+        try (ConsulClient client = new ConsulClient(Arrays.asList(baseUri), transport,
+                ConsulClientConfig.builder().build(), NoopRegistrarMetrics.INSTANCE)) {
+            assertNull(client.watchAgentServicesWithTag("helios-deployed", null, 60).getHash());
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<FutureCallback<HttpResponse>> callbackCaptor =
+                (ArgumentCaptor) ArgumentCaptor.forClass(FutureCallback.class);
+        DefaultRegistrarMetrics metrics = new DefaultRegistrarMetrics();
+
+        ConsulClient client = new ConsulClient(baseUri, httpClient,
+                ConsulClientConfig.builder().build(), metrics);
+        client.deregister("redis");
+        verify(httpClient).execute(any(HttpGet.class), callbackCaptor.capture());
+        assertEquals(1, metrics.getInFlight(Operation.DEREGISTER));
+
+        callbackCaptor.getValue().completed(
+                new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK"));
+        assertEquals(0, metrics.getInFlight(Operation.DEREGISTER));
+        assertEquals(1, metrics.getLatency(Operation.DEREGISTER).getCount());
+        assertEquals(Long.valueOf(1), metrics.getStatusCodes(Operation.DEREGISTER).get(200));
+    }
+
+    @Test
+    public void testAgentServiceCount() throws Exception {
+        @SuppressWarnings("unchecked")
+        final ArgumentCaptor<FutureCallback<HttpResponse>> callbackCaptor =
+                (ArgumentCaptor) ArgumentCaptor.forClass(FutureCallback.class);
+        final ConsulClient client = new ConsulClient(baseUri, httpClient);
+
+        final BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(new StringEntity(
+                "{\"Config\":{},\"Stats\":{\"agent\":{\"checks\":\"1\",\"services\":\"3\"}}}"));
+
+        final Thread responder = new Thread() {
+            @Override
+            public void run() {
+                verify(httpClient, timeout(1000)).execute(any(HttpGet.class),
+                        callbackCaptor.capture());
+                callbackCaptor.getValue().completed(response);
+            }
+        };
+        responder.start();
+
+        assertEquals(Integer.valueOf(3), client.getAgentServiceCount());
+        responder.join();
+    }
+
+    @Test
+    public void testInMemoryTransport() throws Exception {
+        final InMemoryTransport transport = new InMemoryTransport(
+                new InMemoryTransport.Handler() {
+            @Override
+            public HttpResponse handle(HttpUriRequest request) throws Exception {
+                assertEquals(baseUri + "/v1/agent/self", request.getURI().toString());
+                BasicHttpResponse response =
+                        new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+                response.setEntity(new StringEntity(
+                        "{\"Stats\":{\"agent\":{\"services\":\"3\"}}}"));
+                return response;
+            }
+        });
+
+        ConsulClient client = new ConsulClient(Arrays.asList(baseUri), transport,
+                ConsulClientConfig.builder().build(), NoopRegistrarMetrics.INSTANCE);
+        assertEquals(Integer.valueOf(3), client.fetchAgentServiceCount().get());
+
+        client.close();
+        try {
+            transport.send(new HttpGet(baseUri));
+            throw new AssertionError("Transport was not closed");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testServerSideFilter() throws Exception {
+        final List<String> uris = new ArrayList<>();
+        final InMemoryTransport transport = new InMemoryTransport(
+                new InMemoryTransport.Handler() {
+            @Override
+            public HttpResponse handle(HttpUriRequest request) throws Exception {
+                uris.add(request.getURI().toString());
+                BasicHttpResponse response =
+                        new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+                if (request.getURI().toString().endsWith("/v1/agent/self")) {
+                    response.setEntity(new StringEntity("{\"Config\":{\"Version\":\"1.4.0\"}}"));
+                } else {
+                    response.setEntity(new StringEntity(
+                            "{\"redis\":{\"ID\":\"redis\",\"Service\":\"redis\"," +
+                            "\"Tags\":[\"helios-deployed\"],\"Port\":9000}}"));
+                }
+                return response;
+            }
+        });
+
+        try (ConsulClient client = new ConsulClient(Arrays.asList(baseUri), transport,
+                ConsulClientConfig.builder().build(), NoopRegistrarMetrics.INSTANCE)) {
+            assertEquals(1, client.getAgentServicesWithTag("helios-deployed").size());
+            assertEquals(1, client.getAgentServicesWithTag("helios-deployed").size());
+            client.watchAgentServicesWithTag("helios-deployed", "4f2a", 60);
+        }
+
+        String filter = "filter=%22helios-deployed%22+in+Tags";
+        assertEquals(Arrays.asList(
+                baseUri + "/v1/agent/self",
+                baseUri + "/v1/agent/services?" + filter,
+                baseUri + "/v1/agent/services?" + filter,
+                baseUri + "/v1/agent/services?hash=4f2a&wait=60s&" + filter), uris);
+    }
+
+    @Test
+    public void testClientSideFilterForOldAgents() throws Exception {
+        final List<String> uris = new ArrayList<>();
+        final InMemoryTransport transport = new InMemoryTransport(
+                new InMemoryTransport.Handler() {
+            @Override
+            public HttpResponse handle(HttpUriRequest request) throws Exception {
+                uris.add(request.getURI().toString());
+                BasicHttpResponse response =
+                        new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+                if (request.getURI().toString().endsWith("/v1/agent/self")) {
+                    response.setEntity(new StringEntity("{\"Config\":{\"Version\":\"1.2.3\"}}"));
+                } else {
+                    response.setEntity(new StringEntity(
+                            "{\"redis\":{\"ID\":\"redis\",\"Service\":\"redis\"," +
+                            "\"Tags\":[\"helios-deployed\"],\"Port\":9000}," +
+                            "\"other\":{\"ID\":\"other\",\"Service\":\"other\"," +
+                            "\"Tags\":[],\"Port\":9001}}"));
+                }
+                return response;
+            }
+        });
+
+        try (ConsulClient client = new ConsulClient(Arrays.asList(baseUri), transport,
+                ConsulClientConfig.builder().build(), NoopRegistrarMetrics.INSTANCE)) {
+            assertEquals(Collections.singleton("redis"),
+                    client.getAgentServicesWithTag("helios-deployed").keySet());
+        }
+
+        assertEquals(Arrays.asList(baseUri + "/v1/agent/self", baseUri + "/v1/agent/services"),
+                uris);
+    }
+
+    @Test
+    public void testSupportsServiceFilter() throws Exception {
+        assertTrue(ConsulClient.supportsServiceFilter("1.4.0"));
+        assertTrue(ConsulClient.supportsServiceFilter("1.10.3+ent"));
+        assertTrue(ConsulClient.supportsServiceFilter("2.0.0"));
+        assertFalse(ConsulClient.supportsServiceFilter("1.3.1"));
+        assertFalse(ConsulClient.supportsServiceFilter("0.9.3"));
+        assertFalse(ConsulClient.supportsServiceFilter(""));
+    }
+
+    @Test
+    public void testFailover() throws Exception {
+        int deadPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            deadPort = socket.getLocalPort();
+        }
+
+        HttpHandler emptyObject = new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = "{}".getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        };
+        HttpServer agent = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // Answers the version lookup too, since the server closes the connection after a 404,
+        // which could fail the next request on it
+        agent.createContext("/v1/agent/self", emptyObject);
+        agent.createContext("/v1/agent/services", emptyObject);
+        agent.start();
+        String agentUri = "http://127.0.0.1:" + agent.getAddress().getPort();
+
+        try (ConsulClient client = new ConsulClient(
+                Arrays.asList("http://127.0.0.1:" + deadPort, agentUri),
+                ConsulClientConfig.builder().build(), NoopRegistrarMetrics.INSTANCE)) {
+            assertTrue(client.getAgentServicesWithTag("helios-deployed").isEmpty());
+
+            // The dead agent is skipped from now on
+            assertEquals(agentUri, client.getBaseUri());
+        } finally {
+            agent.stop(0);
+        }
+    }
+
+    @Test
+    public void testRegistrationsStayOnOneAgent() throws Exception {
+        final List<String> uris = new ArrayList<>();
+        final List<Integer> socketTimeouts = new ArrayList<>();
+        final InMemoryTransport transport = new InMemoryTransport(
+                new InMemoryTransport.Handler() {
+            @Override
+            public HttpResponse handle(HttpUriRequest request) throws Exception {
+                uris.add(request.getURI().getHost() + request.getURI().getPath());
+                RequestConfig config = ((Configurable) request).getConfig();
+                socketTimeouts.add(config == null ? null : config.getSocketTimeout());
+                if (request.getURI().getHost().equals("dead")) {
+                    throw new IOException("Connection refused");
+                }
+                BasicHttpResponse response =
+                        new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+                response.setEntity(new StringEntity("{}"));
+                return response;
+            }
+        });
+
+        try (ConsulClient client = new ConsulClient(
+                Arrays.asList("http://dead:8500", "http://live:8500"), transport,
+                ConsulClientConfig.builder().build(), NoopRegistrarMetrics.INSTANCE)) {
+            // Not retried, since it may have reached the agent
+            try {
+                client.register(Service.builder().setName("redis").build()).get();
+                throw new AssertionError("Registration was retried");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+            client.register(Service.builder().setName("redis").build()).get();
+            assertEquals("http://live:8500", client.getBaseUri());
+            client.fetchAgentChecks().get();
+        }
+
+        assertEquals(Arrays.asList(
+                "dead/v1/agent/service/register",
+                "live/v1/agent/service/register",
+                "live/v1/agent/checks"), uris);
+        // Half the timeouts while requests may fail over, the client's own once they can not
+        assertEquals(Arrays.asList(2500, 2500, null), socketTimeouts);
+    }
+
+    @Test
+    public void testRefreshAgents() throws Exception {
+        final ConsulAgentResolver resolver = new ConsulAgentResolver() {
+            @Override
+            public List<String> resolve(String domain) {
+                return Arrays.asList("http://new:8500");
+            }
+        };
+        try (ConsulClient client = new ConsulClient(Arrays.asList("http://old:8500"),
+                ConsulClientConfig.builder().build(), NoopRegistrarMetrics.INSTANCE)) {
+            client.refreshAgents(resolver, "example.com", 10, TimeUnit.MILLISECONDS);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!client.getBaseUri().equals("http://new:8500") &&
+                   System.nanoTime() - deadline < 0) {
+                Thread.sleep(10);
+            }
+            assertEquals("http://new:8500", client.getBaseUri());
+        }
+    }
+
+    @Test
+    public void testRequestTimeout() throws Exception {
+        // Accepts connections but never answers
+        try (ServerSocket agent = new ServerSocket(0);
+             ConsulClient client = new ConsulClient(
+                     "http://127.0.0.1:" + agent.getLocalPort(),
+                     ConsulClientConfig.builder().setRequestTimeout(1).build(),
+                     NoopRegistrarMetrics.INSTANCE)) {
+            long start = System.nanoTime();
+            try {
+                client.fetchAgentServicesWithTag("helios-deployed").get(10, TimeUnit.SECONDS);
+                throw new AssertionError("Request did not time out");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TimeoutException);
+            }
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        }
+    }
+
     @Test
     public void testClose() throws Exception {
         ConsulClient client = new ConsulClient(baseUri, httpClient);
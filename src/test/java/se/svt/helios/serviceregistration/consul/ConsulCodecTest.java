@@ -0,0 +1,84 @@
+package se.svt.helios.serviceregistration.consul;
+
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import org.junit.Test;
+import se.svt.helios.serviceregistration.consul.model.AgentCheck;
+import se.svt.helios.serviceregistration.consul.model.Service;
+import se.svt.helios.serviceregistration.consul.model.ServiceCheck;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ConsulCodecTest {
+    // How registrations used to be encoded
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
+            .configure(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY, true);
+
+    @Test
+    public void testEncodeLikeDatabind() throws Exception {
+        Service full = Service.builder()
+                .setId("redis-1")
+                .setName("redis")
+                .setTags(Arrays.asList("helios-deployed", "protocol-\"tcp\"",
+                                       "\u00e5\u00e4\u00f6"))
+                .setPort(8000)
+                .setCheck(ServiceCheck.builder()
+                        .setHttp("http://localhost:8000/health")
+                        .setInterval("10s")
+                        .build())
+                .build();
+        Service minimal = Service.builder().setName("redis").build();
+        Service noTags = Service.builder().setName("redis").setTags(
+                Collections.<String>emptyList()).setPort(0).build();
+
+        for (Service service : Arrays.asList(full, minimal, noTags)) {
+            assertArrayEquals(new String(OBJECT_MAPPER.writeValueAsBytes(service), Charsets.UTF_8),
+                              OBJECT_MAPPER.writeValueAsBytes(service),
+                              ConsulCodec.encode(service));
+        }
+    }
+
+    @Test
+    public void testEncodeReusesNoState() throws Exception {
+        byte[] first = ConsulCodec.encode(Service.builder().setName("a").build());
+        ConsulCodec.encode(Service.builder().setName("a much longer service name").build());
+
+        assertEquals("{\"name\":\"a\"}", new String(first, Charsets.UTF_8));
+    }
+
+    @Test
+    public void testParseAgentChecks() throws Exception {
+        String json = "{"
+                + "\"serfHealth\":{\"Node\":\"n1\",\"CheckID\":\"serfHealth\","
+                + "\"Name\":\"Serf Health Status\",\"Status\":\"passing\",\"ServiceID\":\"\"},"
+                + "\"service:redis-1\":{\"CheckID\":\"service:redis-1\",\"Status\":\"critical\","
+                + "\"ServiceID\":\"redis-1\",\"ServiceTags\":[\"a\",\"b\"],\"Output\":null,"
+                + "\"Notes\":\"Every 10s\",\"Definition\":{\"HTTP\":\"http://a:9000/health\","
+                + "\"Header\":{\"X\":[\"y\"]},\"Interval\":\"10s\",\"TCP\":\"\"},"
+                + "\"Name\":null}"
+                + "}";
+
+        Map<String, AgentCheck> checks = ConsulCodec.parseAgentChecks(
+                new ByteArrayInputStream(json.getBytes(Charsets.UTF_8)));
+
+        assertEquals(2, checks.size());
+        AgentCheck check = checks.get("service:redis-1");
+        assertEquals("service:redis-1", check.getCheckId());
+        assertEquals("critical", check.getStatus());
+        assertEquals("redis-1", check.getServiceId());
+        assertNull(check.getName());
+        assertEquals("Every 10s", check.getNotes());
+        assertEquals("http://a:9000/health", check.getHttp());
+        assertEquals("10s", check.getInterval());
+        assertNull(checks.get("serfHealth").getHttp());
+        assertEquals("Serf Health Status", checks.get("serfHealth").getName());
+    }
+}
@@ -0,0 +1,91 @@
+package se.svt.helios.serviceregistration.consul;
+
+import com.google.common.base.Charsets;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.svt.helios.serviceregistration.consul.model.ConsulClientConfig;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class ConsulConnectionPoolTest {
+    ConsulConnectionPool pool;
+
+    @Before
+    public void setUp() {
+        pool = new ConsulConnectionPool(ConsulClientConfig.builder().setKeepAlive(30).build(), 1,
+                                        RequestConfig.custom().setSocketTimeout(5000).build());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.getHttpClient().close();
+    }
+
+    @Test
+    public void testKeepAliveIsCapped() {
+        assertEquals(30000, pool.keepAliveDuration(response(null), new BasicHttpContext()));
+        assertEquals(5000, pool.keepAliveDuration(response("timeout=5"), new BasicHttpContext()));
+        assertEquals(30000, pool.keepAliveDuration(response("timeout=120"),
+                                                   new BasicHttpContext()));
+    }
+
+    @Test
+    public void testConnectionsAreReused() throws Exception {
+        final List<Integer> clientPorts = new CopyOnWriteArrayList<>();
+        HttpServer agent = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        agent.createContext("/v1/agent/self", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                byte[] body = "{}".getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        agent.start();
+        String uri = "http://127.0.0.1:" + agent.getAddress().getPort() + "/v1/agent/self";
+
+        try {
+            CloseableHttpAsyncClient httpClient = pool.getHttpClient();
+            httpClient.start();
+            httpClient.execute(new HttpGet(uri), null).get(5, TimeUnit.SECONDS);
+            httpClient.execute(new HttpGet(uri), null).get(5, TimeUnit.SECONDS);
+            assertEquals(clientPorts.get(0), clientPorts.get(1));
+            assertEquals(1, pool.getStats().getAvailable());
+
+            // After a failure, idle connections are dropped and the next request reconnects
+            pool.closeAllIdleConnections();
+            httpClient.execute(new HttpGet(uri), null).get(5, TimeUnit.SECONDS);
+            assertNotEquals(clientPorts.get(1), clientPorts.get(2));
+        } finally {
+            agent.stop(0);
+        }
+    }
+
+    private static HttpResponse response(String keepAlive) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        if (keepAlive != null) {
+            response.addHeader("Keep-Alive", keepAlive);
+        }
+        return response;
+    }
+}
@@ -87,6 +87,25 @@ public class ConsulServiceUtilTest {
         assertThat(actual, is(expected));
     }
 
+    @Test
+    public void testOwnerTag() throws Exception {
+        ConsulServiceUtil ownedUtil = new ConsulServiceUtil(15, "helios-deployed", "owner-tag");
+        List<String> tags = ownedUtil.tags(newEndpointBuilder().protocol("http").build());
+
+        assertTrue(tags.contains("helios-deployed"));
+        assertTrue(tags.contains("owner-tag"));
+    }
+
+    @Test
+    public void testHostAddress() throws Exception {
+        assertNull(serviceUtil.createService(newEndpointBuilder()
+                .name("redis").protocol("http").host("helios-1").build()).getAddress());
+
+        ConsulServiceUtil remoteUtil = new ConsulServiceUtil(15, "helios-deployed", null, true);
+        assertEquals("helios-1", remoteUtil.createService(newEndpointBuilder()
+                .name("redis").protocol("http").host("helios-1").build()).getAddress());
+    }
+
     @Test
     public void testKvTags() throws Exception {
         List<String> tags = Arrays.asList("tag1", "key::value", "tag2", "key2::value2::2");
@@ -0,0 +1,57 @@
+package se.svt.helios.serviceregistration.consul;
+
+import org.junit.Test;
+import se.svt.helios.serviceregistration.consul.model.AgentService;
+import se.svt.helios.serviceregistration.consul.model.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DesiredServiceTest {
+    private static final Service REDIS = Service.builder()
+            .setId("redis-v1")
+            .setName("redis")
+            .setTags(Arrays.asList("helios-deployed", "v1"))
+            .setPort(9000)
+            .build();
+
+    @Test
+    public void testPayload() throws Exception {
+        DesiredService service = DesiredService.of(REDIS);
+
+        assertEquals("{\"id\":\"redis-v1\",\"name\":\"redis\",\"tags\":[\"helios-deployed\",\"v1\"]," +
+                     "\"port\":9000}",
+                     new String(service.getPayload(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testMatches() throws Exception {
+        DesiredService service = DesiredService.of(REDIS);
+
+        assertTrue(service.matches(
+                new AgentService("redis-v1", "redis", Arrays.asList("v1", "helios-deployed"), 9000)));
+        assertFalse(service.matches(
+                new AgentService("redis-v1", "redis", Arrays.asList("helios-deployed"), 9000)));
+        assertFalse(service.matches(
+                new AgentService("redis-v1", "redis", Arrays.asList("helios-deployed", "v1"), 9001)));
+        assertFalse(service.matches(
+                new AgentService("redis-v1", "redis-2", Arrays.asList("helios-deployed", "v1"), 9000)));
+        assertFalse(service.matches(
+                new AgentService("redis-v2", "redis", Arrays.asList("helios-deployed", "v1"), 9000)));
+        // The agent reports a service without an address with an empty one
+        assertTrue(service.matches(new AgentService("redis-v1", "redis",
+                Arrays.asList("helios-deployed", "v1"), "", 9000)));
+        assertFalse(service.matches(new AgentService("redis-v1", "redis",
+                Arrays.asList("helios-deployed", "v1"), "helios-1", 9000)));
+    }
+
+    @Test
+    public void testFingerprintSeparatesFields() throws Exception {
+        assertFalse(DesiredService.fingerprint("ab", "c", null, null, null) ==
+                    DesiredService.fingerprint("a", "bc", null, null, null));
+    }
+}
@@ -0,0 +1,66 @@
+package se.svt.helios.serviceregistration.consul;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InMemoryTransportTest {
+
+    @Test
+    public void testRespondsInCallingThread() throws Exception {
+        final HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        final Thread caller = Thread.currentThread();
+        InMemoryTransport transport = new InMemoryTransport(new InMemoryTransport.Handler() {
+            @Override
+            public HttpResponse handle(HttpUriRequest request) {
+                assertEquals(caller, Thread.currentThread());
+                return response;
+            }
+        });
+
+        ListenableFuture<HttpResponse> future = transport.send(new HttpGet("http://localhost/"));
+
+        assertTrue(future.isDone());
+        assertEquals(response, future.get());
+    }
+
+    @Test
+    public void testHandlerFailure() throws Exception {
+        InMemoryTransport transport = new InMemoryTransport(new InMemoryTransport.Handler() {
+            @Override
+            public HttpResponse handle(HttpUriRequest request) throws IOException {
+                throw new IOException("Connection refused");
+            }
+        });
+
+        try {
+            transport.send(new HttpGet("http://localhost/")).get();
+            fail("Expected the request to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRejectsWhenClosed() throws Exception {
+        InMemoryTransport transport = new InMemoryTransport(new InMemoryTransport.Handler() {
+            @Override
+            public HttpResponse handle(HttpUriRequest request) {
+                return new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+            }
+        });
+        transport.close();
+        transport.send(new HttpGet("http://localhost/"));
+    }
+}
@@ -0,0 +1,220 @@
+package se.svt.helios.serviceregistration.consul;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RecoverySchedulerTest {
+    @Mock
+    ScheduledExecutorService executor;
+
+    FakeTicker ticker;
+    List<String> written;
+
+    @Before
+    public void setUp() {
+        ticker = new FakeTicker();
+        written = new ArrayList<>();
+    }
+
+    @Test
+    public void testBurstIsSentRightAway() throws Exception {
+        RecoveryScheduler<String> scheduler = new RecoveryScheduler<>(10, 2, 100, executor, ticker);
+
+        ListenableFuture<String> first =
+                scheduler.submit(RecoveryScheduler.Lane.OTHER, "a", write("a"));
+        ListenableFuture<String> second =
+                scheduler.submit(RecoveryScheduler.Lane.OTHER, "b", write("b"));
+        ListenableFuture<String> third =
+                scheduler.submit(RecoveryScheduler.Lane.OTHER, "c", write("c"));
+
+        assertEquals(Arrays.asList("a", "b"), written);
+        assertEquals("a", first.get());
+        assertEquals("b", second.get());
+        assertFalse(third.isDone());
+        assertEquals(1, scheduler.getQueued());
+        // One token per 100 ms at 10 per second
+        verify(executor).schedule(any(Runnable.class), eq(TimeUnit.MILLISECONDS.toNanos(100)),
+                                  eq(TimeUnit.NANOSECONDS));
+    }
+
+    @Test
+    public void testWaitingWritesAreServedInLaneOrder() throws Exception {
+        RecoveryScheduler<String> scheduler = new RecoveryScheduler<>(10, 1, 100, executor, ticker);
+        scheduler.submit(RecoveryScheduler.Lane.OTHER, "first", write("first"));
+        scheduler.submit(RecoveryScheduler.Lane.OTHER, "other", write("other"));
+        scheduler.submit(RecoveryScheduler.Lane.PASSING, "passing", write("passing"));
+        scheduler.submit(RecoveryScheduler.Lane.DEREGISTER, "deregister", write("deregister"));
+        assertEquals(Arrays.asList("first"), written);
+
+        for (int i = 0; i < 3; i++) {
+            ticker.advance(100);
+            wakeUp(i + 1);
+        }
+        assertEquals(Arrays.asList("first", "deregister", "passing", "other"), written);
+        assertEquals(0, scheduler.getQueued());
+    }
+
+    @Test
+    public void testTokensRefillUpToBurst() throws Exception {
+        RecoveryScheduler<String> scheduler = new RecoveryScheduler<>(10, 3, 100, executor, ticker);
+        for (int i = 0; i < 3; i++) {
+            scheduler.submit(RecoveryScheduler.Lane.OTHER, "a" + i, write("a" + i));
+        }
+        ticker.advance(10000);
+        for (int i = 0; i < 4; i++) {
+            scheduler.submit(RecoveryScheduler.Lane.OTHER, "b" + i, write("b" + i));
+        }
+
+        assertEquals(6, written.size());
+        assertEquals(1, scheduler.getQueued());
+    }
+
+    @Test
+    public void testUnlimitedRateNeverWaits() throws Exception {
+        RecoveryScheduler<String> scheduler = new RecoveryScheduler<>(0, 1, 100, executor, ticker);
+        for (int i = 0; i < 100; i++) {
+            scheduler.submit(RecoveryScheduler.Lane.OTHER, "a" + i, write("a" + i));
+        }
+
+        assertEquals(100, written.size());
+        verify(executor, never()).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+    }
+
+    @Test
+    public void testFailedWriteFailsItsFuture() throws Exception {
+        RecoveryScheduler<String> scheduler = new RecoveryScheduler<>(10, 1, 100, executor, ticker);
+        ListenableFuture<String> future = scheduler.submit(RecoveryScheduler.Lane.OTHER, "a",
+                new Callable<ListenableFuture<String>>() {
+            @Override
+            public ListenableFuture<String> call() throws Exception {
+                throw new IllegalStateException("closed");
+            }
+        });
+
+        assertTrue(future.isDone());
+        try {
+            future.get();
+        } catch (Exception e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+            return;
+        }
+        throw new AssertionError("Expected the future to fail");
+    }
+
+    @Test
+    public void testWaitingWriteIsReplaced() throws Exception {
+        RecoveryScheduler<String> scheduler = new RecoveryScheduler<>(10, 1, 100, executor, ticker);
+        scheduler.submit(RecoveryScheduler.Lane.OTHER, "first", write("first"));
+        ListenableFuture<String> stale =
+                scheduler.submit(RecoveryScheduler.Lane.OTHER, "redis", write("stale"));
+        ListenableFuture<String> fresh =
+                scheduler.submit(RecoveryScheduler.Lane.PASSING, "redis", write("fresh"));
+        assertEquals(1, scheduler.getQueued());
+
+        ticker.advance(100);
+        wakeUp(1);
+        assertEquals(Arrays.asList("first", "fresh"), written);
+        assertEquals("fresh", stale.get());
+        assertEquals("fresh", fresh.get());
+    }
+
+    @Test
+    public void testWriteInFlightIsNotRepeated() throws Exception {
+        RecoveryScheduler<String> scheduler = new RecoveryScheduler<>(0, 1, 100, executor, ticker);
+        final SettableFuture<String> response = SettableFuture.create();
+        ListenableFuture<String> first = scheduler.submit(RecoveryScheduler.Lane.OTHER, "redis",
+                new Callable<ListenableFuture<String>>() {
+            @Override
+            public ListenableFuture<String> call() {
+                written.add("first");
+                return response;
+            }
+        });
+        ListenableFuture<String> second =
+                scheduler.submit(RecoveryScheduler.Lane.OTHER, "redis", write("second"));
+        assertEquals(Arrays.asList("first"), written);
+
+        response.set("first");
+        assertEquals("first", second.get());
+        scheduler.submit(RecoveryScheduler.Lane.OTHER, "redis", write("third"));
+        assertEquals(Arrays.asList("first", "third"), written);
+        assertEquals("first", first.get());
+    }
+
+    @Test
+    public void testWaitingWritesAreBounded() throws Exception {
+        RecoveryScheduler<String> scheduler = new RecoveryScheduler<>(10, 1, 2, executor, ticker);
+        scheduler.submit(RecoveryScheduler.Lane.OTHER, "a", write("a"));
+        scheduler.submit(RecoveryScheduler.Lane.OTHER, "b", write("b"));
+        scheduler.submit(RecoveryScheduler.Lane.OTHER, "c", write("c"));
+        ListenableFuture<String> rejected =
+                scheduler.submit(RecoveryScheduler.Lane.OTHER, "d", write("d"));
+
+        assertEquals(2, scheduler.getQueued());
+        try {
+            rejected.get();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+            return;
+        }
+        throw new AssertionError("Expected the write to be rejected");
+    }
+
+    private void wakeUp(int times) {
+        ArgumentCaptor<Runnable> wakeUp = ArgumentCaptor.forClass(Runnable.class);
+        verify(executor, times(times)).schedule(wakeUp.capture(), anyLong(),
+                                                eq(TimeUnit.NANOSECONDS));
+        wakeUp.getValue().run();
+    }
+
+    private Callable<ListenableFuture<String>> write(final String name) {
+        return new Callable<ListenableFuture<String>>() {
+            @Override
+            public ListenableFuture<String> call() {
+                written.add(name);
+                return Futures.immediateFuture(name);
+            }
+        };
+    }
+
+    private static class FakeTicker extends Ticker {
+        private long nanos = 0;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        void advance(long millis) {
+            nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+    }
+}
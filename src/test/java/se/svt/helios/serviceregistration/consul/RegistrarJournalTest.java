@@ -0,0 +1,101 @@
+package se.svt.helios.serviceregistration.consul;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import se.svt.helios.serviceregistration.consul.model.Service;
+import se.svt.helios.serviceregistration.consul.model.ServiceCheck;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RegistrarJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReplay() throws Exception {
+        String path = new File(folder.getRoot(), "journal").getPath();
+        DesiredService redis = service("redis", 9000);
+        DesiredService memcached = DesiredService.of(Service.builder()
+                .setId("memcached")
+                .setName("memcached")
+                .setPort(9001)
+                .setTags(Arrays.asList("helios-deployed", "v1"))
+                .setAddress("helios-1")
+                .setCheck(new ServiceCheck("memcached-check", "check", "http://localhost:9001/",
+                                           "10s", null))
+                .build());
+
+        try (RegistrarJournal journal = RegistrarJournal.open(path)) {
+            assertTrue(journal.getReplayed().isEmpty());
+            journal.put(Arrays.asList(redis, memcached));
+            journal.remove(Collections.singletonList("redis"));
+        }
+
+        try (RegistrarJournal journal = RegistrarJournal.open(path)) {
+            assertEquals(Collections.singleton("memcached"), journal.getReplayed().keySet());
+            // The replayed service encodes to the same registration
+            assertArrayEquals(memcached.getPayload(),
+                    DesiredService.of(journal.getReplayed().get("memcached")).getPayload());
+        }
+    }
+
+    @Test
+    public void testDiscardsIncompleteRecord() throws Exception {
+        File file = new File(folder.getRoot(), "journal");
+
+        try (RegistrarJournal journal = RegistrarJournal.open(file.getPath())) {
+            journal.put(Collections.singletonList(service("redis", 9000)));
+            journal.put(Collections.singletonList(service("memcached", 9001)));
+        }
+
+        // Cut the last record short, as if the process died while writing it
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        try (RegistrarJournal journal = RegistrarJournal.open(file.getPath())) {
+            assertEquals(Collections.singleton("redis"), journal.getReplayed().keySet());
+            journal.put(Collections.singletonList(service("postgres", 9002)));
+        }
+
+        try (RegistrarJournal journal = RegistrarJournal.open(file.getPath())) {
+            assertEquals(2, journal.getReplayed().size());
+        }
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        File file = new File(folder.getRoot(), "journal");
+
+        try (RegistrarJournal journal = RegistrarJournal.open(file.getPath())) {
+            for (int i = 0; i < 1000; i++) {
+                journal.put(Collections.singletonList(service("redis", 9000 + i)));
+            }
+        }
+
+        // Far less than 1000 records
+        assertTrue(file.length() < 100 * 64);
+
+        try (RegistrarJournal journal = RegistrarJournal.open(file.getPath())) {
+            assertEquals(1, journal.getReplayed().size());
+            assertEquals(9999, journal.getReplayed().get("redis").getPort().intValue());
+        }
+    }
+
+    private static DesiredService service(String id, int port) throws Exception {
+        return DesiredService.of(Service.builder()
+                .setId(id)
+                .setName(id)
+                .setPort(port)
+                .setTags(Arrays.asList("helios-deployed"))
+                .build());
+    }
+}
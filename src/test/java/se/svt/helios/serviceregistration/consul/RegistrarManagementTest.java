@@ -0,0 +1,123 @@
+package se.svt.helios.serviceregistration.consul;
+
+import com.google.common.util.concurrent.Futures;
+import com.spotify.helios.serviceregistration.ServiceRegistration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import se.svt.helios.serviceregistration.consul.model.AgentCheck;
+import se.svt.helios.serviceregistration.consul.model.RegistrarConfig;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RegistrarManagementTest {
+    private final static ServiceRegistration.Endpoint REDIS =
+            new ServiceRegistration.Endpoint("redis", "http", 9000, "local", "example.com",
+                    newArrayList("healthCheckEndpoint::/health"), null);
+    private final static ServiceRegistration.Endpoint MEMCACHED =
+            new ServiceRegistration.Endpoint("memcached", "http", 9001, "local", "example.com",
+                    null, null);
+
+    @Mock
+    ConsulClient consulClient;
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ConsulServiceRegistrar registrar;
+    ObjectName name;
+
+    @Before
+    public void setUp() throws Exception {
+        when(consulClient.fetchAgentChecks()).thenReturn(
+                Futures.immediateFuture(Collections.<String, AgentCheck>emptyMap()));
+        registrar = new ConsulServiceRegistrar(consulClient,
+                RegistrarConfig.builder().setSyncInterval(3600).build());
+        RegistrarManagement management = RegistrarManagement.register(registrar);
+        registrar.setManagement(management);
+        name = management.getName();
+        assertTrue(server.isRegistered(name));
+    }
+
+    @After
+    public void tearDown() {
+        registrar.close();
+    }
+
+    @Test
+    public void testAttributes() throws Exception {
+        registrar.register(new ServiceRegistration(Arrays.asList(REDIS, MEMCACHED)));
+
+        assertEquals(2, server.getAttribute(name, "RegisteredEndpoints"));
+        assertEquals(0, server.getAttribute(name, "QueuedRecoveryWrites"));
+        assertEquals(-1L, server.getAttribute(name, "LastSyncDurationMillis"));
+        assertEquals(0L, server.getAttribute(name, "FailedWrites"));
+        assertEquals(3600, server.getAttribute(name, "SyncInterval"));
+        assertEquals(10, server.getAttribute(name, "HealthCheckInterval"));
+    }
+
+    @Test
+    public void testSetSyncInterval() throws Exception {
+        server.setAttribute(name, new Attribute("SyncInterval", 5));
+
+        assertEquals(5, registrar.getSyncInterval());
+    }
+
+    @Test
+    public void testSyncIntervalCanBeSetWhileWatching() throws Exception {
+        ConsulServiceRegistrar watching = new ConsulServiceRegistrar(consulClient,
+                RegistrarConfig.builder().setWatch(true).setSyncInterval(3600).build());
+        try {
+            watching.setSyncInterval(5);
+            assertEquals(5, watching.getSyncInterval());
+        } finally {
+            watching.close();
+        }
+    }
+
+    @Test
+    public void testSetHealthCheckIntervalRegistersCheckedServicesAgain() throws Exception {
+        ArgumentCaptor<DesiredService> serviceCaptor = ArgumentCaptor.forClass(DesiredService.class);
+        registrar.register(new ServiceRegistration(Arrays.asList(REDIS, MEMCACHED)));
+
+        server.setAttribute(name, new Attribute("HealthCheckInterval", 30));
+
+        verify(consulClient, times(3)).register(serviceCaptor.capture());
+        DesiredService redis = serviceCaptor.getAllValues().get(2);
+        assertEquals("redis", redis.getId());
+        assertEquals("30s", redis.getService().getCheck().getInterval());
+        assertEquals(30, server.getAttribute(name, "HealthCheckInterval"));
+    }
+
+    @Test
+    public void testSetMaxConcurrentRequests() throws Exception {
+        server.setAttribute(name, new Attribute("MaxConcurrentRequests", 8));
+
+        verify(consulClient).setMaxConcurrentRequests(8);
+    }
+
+    @Test
+    public void testCloseUnregisters() throws Exception {
+        assertTrue(server.isRegistered(name));
+        registrar.close();
+        assertFalse(server.isRegistered(name));
+    }
+}
@@ -0,0 +1,72 @@
+package se.svt.helios.serviceregistration.consul;
+
+import org.junit.Test;
+import se.svt.helios.serviceregistration.consul.model.Service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RegistrarStateTest {
+
+    private static DesiredService service(String id, int port) throws Exception {
+        return DesiredService.of(Service.builder().setId(id).setName("redis").setPort(port).build());
+    }
+
+    @Test
+    public void testWritesAreCopies() throws Exception {
+        DesiredService redis = service("redis-v1", 9000);
+        RegistrarState empty = RegistrarState.EMPTY;
+
+        RegistrarState one = empty.put(redis);
+        RegistrarState none = one.remove("redis-v1");
+
+        assertTrue(empty.getServices().isEmpty());
+        assertSame(redis, one.get("redis-v1"));
+        assertNull(none.get("redis-v1"));
+        assertEquals(0, empty.getGeneration());
+        assertEquals(1, one.getGeneration());
+        assertEquals(2, none.getGeneration());
+    }
+
+    @Test
+    public void testPutReplaces() throws Exception {
+        DesiredService v1 = service("redis-v1", 9000);
+        DesiredService v2 = service("redis-v1", 9001);
+
+        RegistrarState state = RegistrarState.EMPTY.put(v1).put(v2);
+
+        assertEquals(1, state.getServices().size());
+        assertSame(v2, state.get("redis-v1"));
+    }
+
+    @Test
+    public void testWrittenSince() throws Exception {
+        RegistrarState state = RegistrarState.EMPTY.put(service("redis-v1", 9000));
+        long observed = state.getGeneration();
+        state = state.put(service("memcached-v1", 9001)).remove("redis-v1");
+
+        assertTrue(state.writtenSince("memcached-v1", observed));
+        assertTrue(state.writtenSince("redis-v1", observed));
+        assertFalse(state.writtenSince("memcached-v1", state.getGeneration()));
+        assertFalse(state.writtenSince("orphan-v1", 0));
+    }
+
+    @Test
+    public void testPruneForgetsOnlyOldRemovals() throws Exception {
+        RegistrarState state = RegistrarState.EMPTY
+                .put(service("redis-v1", 9000))
+                .put(service("memcached-v1", 9001))
+                .remove("redis-v1");
+        long removed = state.getGeneration();
+        state = state.remove("memcached-v1");
+
+        RegistrarState pruned = state.prune(removed);
+
+        assertFalse(pruned.writtenSince("redis-v1", 0));
+        assertTrue(pruned.writtenSince("memcached-v1", removed));
+        assertSame(pruned, pruned.prune(removed));
+    }
+}
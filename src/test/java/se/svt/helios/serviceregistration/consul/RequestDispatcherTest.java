@@ -0,0 +1,241 @@
+package se.svt.helios.serviceregistration.consul;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.mockito.runners.MockitoJUnitRunner;
+import se.svt.helios.serviceregistration.consul.metrics.DefaultRegistrarMetrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RequestDispatcherTest {
+
+    @Mock
+    ConsulTransport transport;
+
+    DefaultRegistrarMetrics metrics;
+    RequestDispatcher dispatcher;
+    List<SettableFuture<HttpResponse>> sent;
+
+    @Before
+    public void setUp() {
+        metrics = new DefaultRegistrarMetrics();
+        dispatcher = new RequestDispatcher(transport, metrics, 2, 1);
+        sent = new ArrayList<>();
+        when(transport.send(any(HttpUriRequest.class))).then(
+                new Answer<SettableFuture<HttpResponse>>() {
+            @Override
+            public SettableFuture<HttpResponse> answer(final InvocationOnMock invocation) {
+                final SettableFuture<HttpResponse> future = SettableFuture.create();
+                sent.add(future);
+                return future;
+            }
+        });
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testQueuesOverLimit() throws Exception {
+        HttpGet first = new HttpGet("http://localhost/1");
+        HttpGet second = new HttpGet("http://localhost/2");
+        HttpGet third = new HttpGet("http://localhost/3");
+
+        Future<HttpResponse> future = dispatcher.execute(first, mock(RequestDispatcher.Callback.class));
+        dispatcher.execute(second, mock(RequestDispatcher.Callback.class));
+        dispatcher.execute(third, mock(RequestDispatcher.Callback.class));
+
+        verify(transport, times(2)).send(any(HttpUriRequest.class));
+        assertEquals(1, dispatcher.getQueueDepth());
+        assertEquals(1, metrics.getQueueDepth());
+
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        sent.get(0).set(response);
+
+        assertEquals(response, future.get());
+        verify(transport).send(third);
+        assertEquals(0, dispatcher.getQueueDepth());
+        assertEquals(2, dispatcher.getInFlight());
+    }
+
+    @Test
+    public void testToldWhenQueuedRequestIsSent() throws Exception {
+        RequestDispatcher.Callback first = mock(RequestDispatcher.Callback.class);
+        RequestDispatcher.Callback second = mock(RequestDispatcher.Callback.class);
+        RequestDispatcher.Callback queued = mock(RequestDispatcher.Callback.class);
+
+        dispatcher.execute(new HttpGet("http://localhost/1"), first);
+        dispatcher.execute(new HttpGet("http://localhost/2"), second);
+        dispatcher.execute(new HttpGet("http://localhost/3"), queued);
+
+        verify(first).sending();
+        verify(second).sending();
+        verify(queued, never()).sending();
+
+        sent.get(0).set(new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK"));
+        verify(queued).sending();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testDrainsSynchronousTransportWithoutRecursion() throws Exception {
+        final ConsulTransport synchronous = mock(ConsulTransport.class);
+        final SettableFuture<HttpResponse> first = SettableFuture.create();
+        final HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        final List<Integer> stackDepths = new ArrayList<>();
+        when(synchronous.send(any(HttpUriRequest.class))).then(
+                new Answer<ListenableFuture<HttpResponse>>() {
+            @Override
+            public ListenableFuture<HttpResponse> answer(final InvocationOnMock invocation) {
+                stackDepths.add(Thread.currentThread().getStackTrace().length);
+                return stackDepths.size() == 1 ? first : Futures.immediateFuture(response);
+            }
+        });
+        dispatcher = new RequestDispatcher(synchronous, metrics, 1, 4096);
+
+        final List<Future<HttpResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 4096; i++) {
+            futures.add(dispatcher.execute(new HttpGet("http://localhost/" + i),
+                                           mock(RequestDispatcher.Callback.class)));
+        }
+        first.set(response);
+
+        for (final Future<HttpResponse> future : futures) {
+            assertEquals(response, future.get());
+        }
+        assertEquals(4096, stackDepths.size());
+        final int drainDepth = stackDepths.get(1);
+        for (final int depth : stackDepths.subList(1, stackDepths.size())) {
+            assertEquals(drainDepth, depth);
+        }
+        assertEquals(0, dispatcher.getInFlight());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRejectsWhenQueueFull() throws Exception {
+        RequestDispatcher.Callback callback = mock(RequestDispatcher.Callback.class);
+
+        dispatcher.execute(new HttpGet("http://localhost/1"), mock(RequestDispatcher.Callback.class));
+        dispatcher.execute(new HttpGet("http://localhost/2"), mock(RequestDispatcher.Callback.class));
+        dispatcher.execute(new HttpGet("http://localhost/3"), mock(RequestDispatcher.Callback.class));
+        Future<HttpResponse> future = dispatcher.execute(new HttpGet("http://localhost/4"),
+                                                         callback);
+
+        verify(callback).failed(any(RejectedExecutionException.class));
+        assertEquals(1, metrics.getRejectedTotal());
+        try {
+            future.get();
+            fail("Expected the request to be rejected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testSkipsCancelledRequests() throws Exception {
+        RequestDispatcher.Callback cancelledCallback = mock(RequestDispatcher.Callback.class);
+
+        dispatcher.execute(new HttpGet("http://localhost/1"), mock(RequestDispatcher.Callback.class));
+        dispatcher.execute(new HttpGet("http://localhost/2"), mock(RequestDispatcher.Callback.class));
+        dispatcher.execute(new HttpGet("http://localhost/3"), cancelledCallback).cancel(false);
+
+        verify(transport, times(2)).send(any(HttpUriRequest.class));
+        sent.get(0).setException(new Exception());
+
+        verify(cancelledCallback).cancelled();
+        verify(transport, times(2)).send(any(HttpUriRequest.class));
+        assertEquals(1, dispatcher.getInFlight());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testCancelAbortsSentRequest() throws Exception {
+        RequestDispatcher.Callback callback = mock(RequestDispatcher.Callback.class);
+
+        dispatcher.execute(new HttpGet("http://localhost/1"), callback).cancel(false);
+
+        assertTrue(sent.get(0).isCancelled());
+        verify(callback).cancelled();
+        assertEquals(0, dispatcher.getInFlight());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testFailsWhenTransportClosed() throws Exception {
+        RequestDispatcher.Callback callback = mock(RequestDispatcher.Callback.class);
+        when(transport.send(any(HttpUriRequest.class)))
+                .thenThrow(new IllegalStateException("Transport is closed"));
+
+        Future<HttpResponse> future = dispatcher.execute(new HttpGet("http://localhost/1"),
+                                                         callback);
+
+        verify(callback).failed(any(IllegalStateException.class));
+        assertTrue(future.isDone());
+        assertEquals(0, dispatcher.getInFlight());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRaisingLimitSendsQueuedRequests() throws Exception {
+        dispatcher = new RequestDispatcher(transport, metrics, 1, 10);
+        for (int i = 0; i < 3; i++) {
+            dispatcher.execute(new HttpGet("http://localhost/" + i), mock(RequestDispatcher.Callback.class));
+        }
+        assertEquals(1, sent.size());
+
+        dispatcher.setMaxConcurrent(3);
+
+        assertEquals(3, sent.size());
+        assertEquals(0, dispatcher.getQueueDepth());
+        assertEquals(3, dispatcher.getInFlight());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testLoweringLimitHoldsQueuedRequests() throws Exception {
+        dispatcher = new RequestDispatcher(transport, metrics, 2, 10);
+        for (int i = 0; i < 3; i++) {
+            dispatcher.execute(new HttpGet("http://localhost/" + i), mock(RequestDispatcher.Callback.class));
+        }
+
+        dispatcher.setMaxConcurrent(1);
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        sent.get(0).set(response);
+
+        // Still one request over the new limit outstanding
+        assertEquals(2, sent.size());
+        assertEquals(1, dispatcher.getQueueDepth());
+        assertEquals(1, dispatcher.getInFlight());
+
+        sent.get(1).set(response);
+        assertEquals(3, sent.size());
+        assertEquals(1, dispatcher.getInFlight());
+    }
+}
@@ -0,0 +1,120 @@
+package se.svt.helios.serviceregistration.consul;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ServiceActorsTest {
+    private final ExecutorService carrier = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        carrier.shutdownNow();
+    }
+
+    @Test
+    public void testRunsTasksOfOneIdInOrder() throws Exception {
+        ServiceActors actors = new ServiceActors(carrier);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+
+        List<ListenableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            final int n = i;
+            futures.add(actors.submit("redis", new Callable<ListenableFuture<Integer>>() {
+                @Override
+                public ListenableFuture<Integer> call() {
+                    order.add(n);
+                    return Futures.immediateFuture(n);
+                }
+            }));
+        }
+
+        assertEquals(1000, Futures.allAsList(futures).get(10, TimeUnit.SECONDS).size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(Integer.valueOf(i), order.get(i));
+        }
+    }
+
+    @Test
+    public void testBlockedIdDoesNotStallOthers() throws Exception {
+        ServiceActors actors = new ServiceActors(carrier);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        ListenableFuture<Object> blocked = actors.submit("redis", new Callable<ListenableFuture<Object>>() {
+            @Override
+            public ListenableFuture<Object> call() throws Exception {
+                release.await();
+                return null;
+            }
+        });
+        ListenableFuture<String> other = actors.submit("memcached", new Callable<ListenableFuture<String>>() {
+            @Override
+            public ListenableFuture<String> call() {
+                return Futures.immediateFuture("done");
+            }
+        });
+
+        assertEquals("done", other.get(10, TimeUnit.SECONDS));
+        assertFalse(blocked.isDone());
+        release.countDown();
+        assertNull(blocked.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFollowsFutureOfTask() throws Exception {
+        ServiceActors actors = new ServiceActors(MoreExecutors.sameThreadExecutor());
+        final SettableFuture<String> response = SettableFuture.create();
+
+        ListenableFuture<String> future = actors.submit("redis", new Callable<ListenableFuture<String>>() {
+            @Override
+            public ListenableFuture<String> call() {
+                return response;
+            }
+        });
+
+        // The actor is free again as soon as the task has run
+        assertEquals(0, actors.size());
+        assertFalse(future.isDone());
+        response.set("OK");
+        assertEquals("OK", future.get());
+    }
+
+    @Test
+    public void testFailedTask() throws Exception {
+        ServiceActors actors = new ServiceActors(MoreExecutors.sameThreadExecutor());
+
+        ListenableFuture<Object> future = actors.submit("redis", new Callable<ListenableFuture<Object>>() {
+            @Override
+            public ListenableFuture<Object> call() {
+                throw new IllegalStateException("Boom");
+            }
+        });
+
+        try {
+            future.get();
+            fail("Expected the task to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(0, actors.size());
+    }
+}
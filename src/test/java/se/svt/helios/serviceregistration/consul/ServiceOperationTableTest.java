@@ -0,0 +1,244 @@
+package se.svt.helios.serviceregistration.consul;
+
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import se.svt.helios.serviceregistration.consul.metrics.DefaultRegistrarMetrics;
+import se.svt.helios.serviceregistration.consul.model.Service;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ServiceOperationTableTest {
+    private static final HttpResponse OK = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    private static final HttpResponse BAD_REQUEST =
+            new BasicHttpResponse(HttpVersion.HTTP_1_1, 400, "Bad Request");
+    private static final HttpResponse UNAVAILABLE =
+            new BasicHttpResponse(HttpVersion.HTTP_1_1, 503, "Service Unavailable");
+
+    @Mock
+    ConsulClient consulClient;
+
+    @Mock
+    ScheduledExecutorService retryExecutor;
+
+    SettableFuture<HttpResponse> registerResponse;
+    SettableFuture<HttpResponse> deregisterResponse;
+    DefaultRegistrarMetrics metrics;
+    ServiceOperationTable table;
+
+    @Before
+    public void setUp() {
+        registerResponse = SettableFuture.create();
+        deregisterResponse = SettableFuture.create();
+        when(consulClient.register(any(DesiredService.class))).thenReturn(registerResponse);
+        when(consulClient.deregister(anyString())).thenReturn(deregisterResponse);
+        metrics = new DefaultRegistrarMetrics();
+        table = new ServiceOperationTable(consulClient, metrics, retryExecutor);
+    }
+
+    @Test
+    public void testDuplicateRegisterIsDropped() throws Exception {
+        Future<HttpResponse> first = table.register(service(9000));
+        Future<HttpResponse> second = table.register(service(9000));
+
+        verify(consulClient, times(1)).register(any(DesiredService.class));
+        assertSame(first, second);
+        assertEquals(1, metrics.getCoalescedTotal());
+
+        registerResponse.set(OK);
+        assertEquals(OK, second.get());
+        assertEquals(0, table.getInFlight());
+    }
+
+    @Test
+    public void testRegisterThenDeregisterIsNoop() throws Exception {
+        table.deregister("redis");
+        Future<HttpResponse> register = table.register(service(9000));
+        table.deregister("redis");
+
+        assertTrue(register.isCancelled());
+        deregisterResponse.set(OK);
+
+        verify(consulClient, times(1)).deregister("redis");
+        verify(consulClient, times(0)).register(any(DesiredService.class));
+        assertEquals(0, table.getInFlight());
+    }
+
+    @Test
+    public void testOnlyLatestIntentIsSent() throws Exception {
+        DesiredService latest = service(9002);
+
+        table.register(service(9000));
+        table.deregister("redis");
+        table.register(service(9001));
+        table.register(latest);
+
+        verify(consulClient, times(1)).register(any(DesiredService.class));
+        when(consulClient.register(latest)).thenReturn(SettableFuture.<HttpResponse>create());
+        registerResponse.set(OK);
+
+        verify(consulClient).register(latest);
+        verify(consulClient, times(2)).register(any(DesiredService.class));
+        verify(consulClient, times(0)).deregister(anyString());
+        assertEquals(1, table.getInFlight());
+    }
+
+    @Test
+    public void testFailureSendsPending() throws Exception {
+        table.register(service(9000));
+        table.deregister("redis");
+
+        registerResponse.setException(new Exception());
+
+        verify(consulClient).deregister("redis");
+    }
+
+    @Test
+    public void testFailureIsRetriedAfterBackoff() throws Exception {
+        SettableFuture<HttpResponse> retryResponse = SettableFuture.create();
+        when(consulClient.register(any(DesiredService.class)))
+                .thenReturn(registerResponse, retryResponse);
+
+        Future<HttpResponse> register = table.register(service(9000));
+        registerResponse.setException(new Exception());
+
+        assertEquals(ServiceOperationTable.State.RETRYING, table.getState("redis"));
+        assertFalse(register.isDone());
+        assertEquals(1, metrics.getRetriedTotal());
+        runRetry(1);
+
+        verify(consulClient, times(2)).register(any(DesiredService.class));
+        assertEquals(ServiceOperationTable.State.IN_FLIGHT, table.getState("redis"));
+        retryResponse.set(OK);
+        assertEquals(OK, register.get());
+        assertEquals(ServiceOperationTable.State.CONFIRMED, table.getState("redis"));
+        assertEquals(0, table.getInFlight());
+    }
+
+    @Test
+    public void testLaterIntentReplacesRetry() throws Exception {
+        Future<HttpResponse> register = table.register(service(9000));
+        registerResponse.set(UNAVAILABLE);
+        assertEquals(ServiceOperationTable.State.RETRYING, table.getState("redis"));
+
+        Future<HttpResponse> deregister = table.deregister("redis");
+        verify(consulClient, never()).deregister(anyString());
+        runRetry(1);
+
+        verify(consulClient).deregister("redis");
+        verify(consulClient, times(1)).register(any(DesiredService.class));
+        try {
+            register.get();
+            throw new AssertionError("Superseded registration did not fail");
+        } catch (ExecutionException expected) {
+        }
+        deregisterResponse.set(OK);
+        assertEquals(OK, deregister.get());
+        assertNull(table.getState("redis"));
+    }
+
+    @Test
+    public void testClientErrorIsNotRetried() throws Exception {
+        Future<HttpResponse> register = table.register(service(9000));
+        registerResponse.set(BAD_REQUEST);
+
+        assertEquals(BAD_REQUEST, register.get());
+        assertEquals(ServiceOperationTable.State.FAILED, table.getState("redis"));
+        verify(retryExecutor, never()).schedule(any(Runnable.class), anyLong(),
+                                                any(TimeUnit.class));
+    }
+
+    @Test
+    public void testRejectedDeregistrationIsForgotten() throws Exception {
+        table.register(service(9000));
+        registerResponse.set(OK);
+        assertEquals(ServiceOperationTable.State.CONFIRMED, table.getState("redis"));
+
+        Future<HttpResponse> deregister = table.deregister("redis");
+        deregisterResponse.set(BAD_REQUEST);
+
+        assertEquals(BAD_REQUEST, deregister.get());
+        assertNull(table.getState("redis"));
+    }
+
+    @Test
+    public void testDeregistrationIsForgottenAfterMaxRetries() throws Exception {
+        deregisterResponse.setException(new Exception());
+        Future<HttpResponse> deregister = table.deregister("redis");
+        runRetry(ServiceOperationTable.MAX_RETRIES);
+
+        assertTrue(deregister.isDone());
+        assertNull(table.getState("redis"));
+    }
+
+    @Test
+    public void testGivesUpAfterMaxRetries() throws Exception {
+        registerResponse.setException(new Exception());
+        Future<HttpResponse> register = table.register(service(9000));
+        runRetry(ServiceOperationTable.MAX_RETRIES);
+
+        assertTrue(register.isDone());
+        assertEquals(ServiceOperationTable.State.FAILED, table.getState("redis"));
+        assertEquals(ServiceOperationTable.MAX_RETRIES, metrics.getRetriedTotal());
+        verify(consulClient, times(ServiceOperationTable.MAX_RETRIES + 1))
+                .register(any(DesiredService.class));
+        assertEquals(ServiceOperationTable.MAX_RETRIES + 1, table.getFailures());
+    }
+
+    @Test
+    public void testBackoffIsJitteredAndCapped() {
+        for (int i = 0; i < 100; i++) {
+            long first = ServiceOperationTable.backoffMillis(1);
+            assertTrue(first >= 50 && first <= 100);
+            long capped = ServiceOperationTable.backoffMillis(40);
+            assertTrue(capped >= 15000 && capped <= 30000);
+        }
+    }
+
+    /**
+     * Runs the retries scheduled so far, one at a time, as the executor would.
+     */
+    private void runRetry(int retries) {
+        ArgumentCaptor<Runnable> retry = ArgumentCaptor.forClass(Runnable.class);
+        for (int i = 1; i <= retries; i++) {
+            verify(retryExecutor, times(i)).schedule(retry.capture(), anyLong(),
+                                                     eq(TimeUnit.MILLISECONDS));
+            retry.getValue().run();
+        }
+    }
+
+    private static DesiredService service(int port) throws Exception {
+        return DesiredService.of(Service.builder()
+                .setId("redis")
+                .setName("redis")
+                .setPort(port)
+                .setTags(Arrays.asList("helios-deployed"))
+                .build());
+    }
+}
@@ -0,0 +1,112 @@
+package se.svt.helios.serviceregistration.consul;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+import se.svt.helios.serviceregistration.consul.model.AgentService;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ServiceOwnershipTest {
+    private static final long GRACE = TimeUnit.SECONDS.toNanos(60);
+    private static final Set<String> NOTHING_DESIRED = Collections.emptySet();
+
+    ServiceOwnership ownership = new ServiceOwnership("helios-deployed", "a", GRACE);
+
+    @Test
+    public void testOwnerTag() throws Exception {
+        assertEquals("helios-deployed-owner:a", ownership.getOwnerTag());
+        assertNull(new ServiceOwnership("helios-deployed", null, GRACE).getOwnerTag());
+    }
+
+    @Test
+    public void testWithoutOwnerIdOwnedServicesAreLeftAlone() throws Exception {
+        Map<String, AgentService> observed = ImmutableMap.of(
+                "other", service("other", "helios-deployed-owner:b"),
+                "wanted", service("wanted", "helios-deployed-owner:b"),
+                "ownerless", service("ownerless"));
+
+        ServiceOwnership legacy = new ServiceOwnership("helios-deployed", null, GRACE);
+        assertEquals(ImmutableSet.of("wanted", "ownerless"),
+                     legacy.claimable(observed, ImmutableSet.of("wanted"), 0).keySet());
+    }
+
+    @Test
+    public void testOnlyOwnAndDesiredServicesAreClaimable() throws Exception {
+        Map<String, AgentService> observed = ImmutableMap.of(
+                "mine", service("mine", "helios-deployed-owner:a"),
+                "theirs", service("theirs", "helios-deployed-owner:b"),
+                "wanted", service("wanted", "helios-deployed-owner:b"));
+
+        assertEquals(ImmutableSet.of("mine", "wanted"),
+                     ownership.claimable(observed, ImmutableSet.of("wanted"), 0).keySet());
+    }
+
+    @Test
+    public void testOwnerlessServiceIsTakenOverAfterGracePeriod() throws Exception {
+        Map<String, AgentService> observed = ImmutableMap.of("leftover", service("leftover"));
+
+        assertEquals(0, ownership.claimable(observed, NOTHING_DESIRED, 0).size());
+        assertEquals(0, ownership.claimable(observed, NOTHING_DESIRED, GRACE - 1).size());
+        assertEquals(1, ownership.claimable(observed, NOTHING_DESIRED, GRACE).size());
+    }
+
+    @Test
+    public void testChangedOwnerlessServiceRestartsGracePeriod() throws Exception {
+        ownership.claimable(ImmutableMap.of("leftover", service("leftover")), NOTHING_DESIRED, 0);
+
+        // Registered again with other tags by a registrar that is still running
+        Map<String, AgentService> changed =
+                ImmutableMap.of("leftover", service("leftover", "protocol-http"));
+        assertEquals(0, ownership.claimable(changed, NOTHING_DESIRED, GRACE).size());
+        assertEquals(1, ownership.claimable(changed, NOTHING_DESIRED, 2 * GRACE).size());
+    }
+
+    @Test
+    public void testOwnerlessServiceThatDisappearsIsForgotten() throws Exception {
+        Map<String, AgentService> observed = ImmutableMap.of("leftover", service("leftover"));
+        ownership.claimable(observed, NOTHING_DESIRED, 0);
+        ownership.claimable(Collections.<String, AgentService>emptyMap(), NOTHING_DESIRED, GRACE);
+
+        assertEquals(0, ownership.claimable(observed, NOTHING_DESIRED, GRACE).size());
+    }
+
+    @Test
+    public void testServiceBackAfterTakeoverIsLeftAlone() throws Exception {
+        Map<String, AgentService> observed = ImmutableMap.of("leftover", service("leftover"));
+        ownership.claimable(observed, NOTHING_DESIRED, 0);
+        assertEquals(1, ownership.claimable(observed, NOTHING_DESIRED, GRACE).size());
+
+        // Removed by the takeover, then registered again, unchanged, by a legacy registrar
+        ownership.claimable(Collections.<String, AgentService>emptyMap(), NOTHING_DESIRED, GRACE);
+        assertEquals(0, ownership.claimable(observed, NOTHING_DESIRED, GRACE + 1).size());
+        assertEquals(0, ownership.claimable(observed, NOTHING_DESIRED, 10 * GRACE).size());
+    }
+
+    @Test
+    public void testTakenOverServiceIsForgottenOnceGoneForGracePeriod() throws Exception {
+        Map<String, AgentService> observed = ImmutableMap.of("leftover", service("leftover"));
+        ownership.claimable(observed, NOTHING_DESIRED, 0);
+        ownership.claimable(observed, NOTHING_DESIRED, GRACE);
+        ownership.claimable(Collections.<String, AgentService>emptyMap(), NOTHING_DESIRED, GRACE);
+        ownership.claimable(Collections.<String, AgentService>emptyMap(), NOTHING_DESIRED,
+                            2 * GRACE);
+
+        // Left behind again much later, so it goes through a new grace period
+        assertEquals(0, ownership.claimable(observed, NOTHING_DESIRED, 2 * GRACE).size());
+        assertEquals(1, ownership.claimable(observed, NOTHING_DESIRED, 3 * GRACE).size());
+    }
+
+    private static AgentService service(String id, String... tags) {
+        String[] allTags = Arrays.copyOf(tags, tags.length + 1);
+        allTags[tags.length] = "helios-deployed";
+        return new AgentService(id, id, Arrays.asList(allTags), 9000);
+    }
+}
@@ -0,0 +1,184 @@
+package se.svt.helios.serviceregistration.consul;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+import se.svt.helios.serviceregistration.consul.model.AgentCheck;
+import se.svt.helios.serviceregistration.consul.model.AgentService;
+import se.svt.helios.serviceregistration.consul.model.Service;
+import se.svt.helios.serviceregistration.consul.model.ServiceCheck;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ServiceReconcilerTest {
+    private static final DesiredService REDIS = desiredService(Service.builder()
+            .setId("redis-v1")
+            .setName("redis")
+            .setTags(Arrays.asList("helios-deployed", "v1"))
+            .setPort(9000)
+            .build());
+
+    private static final DesiredService REDIS_WITH_CHECK = desiredService(Service.builder()
+            .setId("redis-v1")
+            .setName("redis")
+            .setTags(Arrays.asList("helios-deployed", "v1"))
+            .setPort(9000)
+            .setCheck(ServiceCheck.builder().setId("redis-v1-http-9000").build())
+            .build());
+
+    private static final DesiredService REDIS_WITH_HTTP_CHECK = desiredService(Service.builder()
+            .setId("redis-v1")
+            .setName("redis")
+            .setTags(Arrays.asList("helios-deployed", "v1"))
+            .setPort(9000)
+            .setCheck(ServiceCheck.builder()
+                    .setId("redis-v1-http-9000")
+                    .setHttp("http://example.com:9000/health")
+                    .setInterval("60s")
+                    .setNotes("Requesting it every 60s")
+                    .build())
+            .build());
+
+    private final ServiceReconciler reconciler = new ServiceReconciler();
+
+    @Test
+    public void testInSync() throws Exception {
+        ServiceReconciler.Plan plan = reconciler.reconcile(
+                ImmutableMap.of(REDIS.getId(), REDIS),
+                agentServices(new AgentService("redis-v1", "redis",
+                        Arrays.asList("v1", "helios-deployed"), 9000)),
+                null);
+
+        assertTrue(plan.isEmpty());
+    }
+
+    @Test
+    public void testMissing() throws Exception {
+        ServiceReconciler.Plan plan = reconciler.reconcile(
+                ImmutableMap.of(REDIS.getId(), REDIS),
+                agentServices(),
+                null);
+
+        assertEquals(Arrays.asList(REDIS), plan.getRegistrations());
+        assertTrue(plan.getDeregistrations().isEmpty());
+    }
+
+    @Test
+    public void testOrphan() throws Exception {
+        ServiceReconciler.Plan plan = reconciler.reconcile(
+                Collections.<String, DesiredService>emptyMap(),
+                agentServices(new AgentService("redis-v1", "redis",
+                        Arrays.asList("helios-deployed", "v1"), 9000)),
+                null);
+
+        assertTrue(plan.getRegistrations().isEmpty());
+        assertEquals(Arrays.asList("redis-v1"), plan.getDeregistrations());
+    }
+
+    @Test
+    public void testTagDrift() throws Exception {
+        ServiceReconciler.Plan plan = reconciler.reconcile(
+                ImmutableMap.of(REDIS.getId(), REDIS),
+                agentServices(new AgentService("redis-v1", "redis",
+                        Arrays.asList("helios-deployed"), 9000)),
+                null);
+
+        assertEquals(Arrays.asList(REDIS), plan.getRegistrations());
+    }
+
+    @Test
+    public void testPortDrift() throws Exception {
+        ServiceReconciler.Plan plan = reconciler.reconcile(
+                ImmutableMap.of(REDIS.getId(), REDIS),
+                agentServices(new AgentService("redis-v1", "redis",
+                        Arrays.asList("helios-deployed", "v1"), 9001)),
+                null);
+
+        assertEquals(Arrays.asList(REDIS), plan.getRegistrations());
+    }
+
+    @Test
+    public void testMissingCheck() throws Exception {
+        Map<String, AgentService> observed = agentServices(new AgentService("redis-v1", "redis",
+                Arrays.asList("helios-deployed", "v1"), 9000));
+
+        ServiceReconciler.Plan plan = reconciler.reconcile(
+                ImmutableMap.of(REDIS_WITH_CHECK.getId(), REDIS_WITH_CHECK),
+                observed,
+                Collections.<String, AgentCheck>emptyMap());
+        assertEquals(Arrays.asList(REDIS_WITH_CHECK), plan.getRegistrations());
+
+        plan = reconciler.reconcile(
+                ImmutableMap.of(REDIS_WITH_CHECK.getId(), REDIS_WITH_CHECK),
+                observed,
+                ImmutableMap.of("service:redis-v1",
+                        new AgentCheck("service:redis-v1", "check", "passing", "redis-v1")));
+        assertTrue(plan.isEmpty());
+    }
+
+    @Test
+    public void testChangedCheck() throws Exception {
+        Map<String, AgentService> observed = agentServices(new AgentService("redis-v1", "redis",
+                Arrays.asList("helios-deployed", "v1"), 9000));
+
+        // The agent reports the interval as a Go duration
+        assertTrue(reconciler.reconcile(
+                ImmutableMap.of(REDIS_WITH_HTTP_CHECK.getId(), REDIS_WITH_HTTP_CHECK),
+                observed,
+                ImmutableMap.of("service:redis-v1", new AgentCheck("service:redis-v1", "check",
+                        "passing", "redis-v1", null, "http://example.com:9000/health", "1m0s"))).isEmpty());
+
+        ServiceReconciler.Plan plan = reconciler.reconcile(
+                ImmutableMap.of(REDIS_WITH_HTTP_CHECK.getId(), REDIS_WITH_HTTP_CHECK),
+                observed,
+                ImmutableMap.of("service:redis-v1", new AgentCheck("service:redis-v1", "check",
+                        "passing", "redis-v1", null, "http://example.com:9000/health", "10s")));
+        assertEquals(Arrays.asList(REDIS_WITH_HTTP_CHECK), plan.getRegistrations());
+
+        plan = reconciler.reconcile(
+                ImmutableMap.of(REDIS_WITH_HTTP_CHECK.getId(), REDIS_WITH_HTTP_CHECK),
+                observed,
+                ImmutableMap.of("service:redis-v1", new AgentCheck("service:redis-v1", "check",
+                        "passing", "redis-v1", null, "http://example.com:9000/other", "1m0s")));
+        assertEquals(Arrays.asList(REDIS_WITH_HTTP_CHECK), plan.getRegistrations());
+
+        // Without the check's definition, the notes tell
+        plan = reconciler.reconcile(
+                ImmutableMap.of(REDIS_WITH_HTTP_CHECK.getId(), REDIS_WITH_HTTP_CHECK),
+                observed,
+                ImmutableMap.of("service:redis-v1", new AgentCheck("service:redis-v1", "check",
+                        "passing", "redis-v1", "Requesting it every 10s", null, null)));
+        assertEquals(Arrays.asList(REDIS_WITH_HTTP_CHECK), plan.getRegistrations());
+    }
+
+    @Test
+    public void testDurationNanos() {
+        assertEquals(TimeUnit.SECONDS.toNanos(10), ServiceReconciler.durationNanos("10s"));
+        assertEquals(TimeUnit.SECONDS.toNanos(90), ServiceReconciler.durationNanos("1m30s"));
+        assertEquals(TimeUnit.HOURS.toNanos(1), ServiceReconciler.durationNanos("1h0m0s"));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1500), ServiceReconciler.durationNanos("1.5s"));
+        assertEquals(-1, ServiceReconciler.durationNanos("10"));
+        assertEquals(-1, ServiceReconciler.durationNanos("ten s"));
+    }
+
+    private static DesiredService desiredService(Service service) {
+        try {
+            return DesiredService.of(service);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static Map<String, AgentService> agentServices(AgentService... services) {
+        ImmutableMap.Builder<String, AgentService> builder = ImmutableMap.builder();
+        for (AgentService service : services) {
+            builder.put(service.getId(), service);
+        }
+        return builder.build();
+    }
+}
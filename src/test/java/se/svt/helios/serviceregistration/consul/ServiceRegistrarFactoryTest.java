@@ -1,9 +1,14 @@
 package se.svt.helios.serviceregistration.consul;
 
 import org.junit.Test;
+import se.svt.helios.serviceregistration.consul.model.ConsulClientConfig;
 import se.svt.helios.serviceregistration.consul.model.RegistrarConfig;
 
+import java.util.Arrays;
+import java.util.List;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
 
 public class ServiceRegistrarFactoryTest {
@@ -17,6 +22,35 @@ public class ServiceRegistrarFactoryTest {
         assertEquals(connectString, registrar.getConsulClient().getBaseUri());
     }
 
+    @Test
+    public void testCreateForDomain() throws Exception {
+        ConsulAgentResolver resolver = new ConsulAgentResolver() {
+            @Override
+            public List<String> resolve(String domain) {
+                assertEquals("example.com", domain);
+                return Arrays.asList("http://consul1:8500", "http://consul2:8500");
+            }
+        };
+
+        ConsulServiceRegistrarFactory factory = new ConsulServiceRegistrarFactory(resolver);
+        ConsulServiceRegistrar registrar =
+                (ConsulServiceRegistrar) factory.createForDomain("example.com");
+
+        assertEquals(2, registrar.getConsulClient().getAgents().size());
+        assertEquals("http://consul1:8500", registrar.getConsulClient().getBaseUri());
+        registrar.close();
+    }
+
+    @Test
+    public void testCreateForDomainWithStaticList() throws Exception {
+        ConsulServiceRegistrarFactory factory = new ConsulServiceRegistrarFactory();
+        ConsulServiceRegistrar registrar = (ConsulServiceRegistrar)
+                factory.createForDomain("http://consul1:8500,http://consul2:8500");
+
+        assertEquals(2, registrar.getConsulClient().getAgents().size());
+        registrar.close();
+    }
+
     @Test(expected = RuntimeException.class)
     public void testCreateEmptyConnectString() throws Exception {
         ConsulServiceRegistrarFactory factory = new ConsulServiceRegistrarFactory();
@@ -28,16 +62,93 @@ public class ServiceRegistrarFactoryTest {
         try {
             System.setProperty(ConsulServiceRegistrarFactory.PROP_DEPLOY_TAG, "tag");
             System.setProperty(ConsulServiceRegistrarFactory.PROP_SYNC_INTERVAL, "123");
+            System.setProperty(ConsulServiceRegistrarFactory.PROP_MAX_SYNC_INTERVAL, "1230");
             System.setProperty(ConsulServiceRegistrarFactory.PROP_HEALTH_CHECK_INTERVAL, "456");
+            System.setProperty(ConsulServiceRegistrarFactory.PROP_WATCH, "false");
+            System.setProperty(ConsulServiceRegistrarFactory.PROP_WATCH_WAIT, "789");
+            System.setProperty(ConsulServiceRegistrarFactory.PROP_METRICS_ADDRESS, "0.0.0.0");
+            System.setProperty(ConsulServiceRegistrarFactory.PROP_METRICS_PORT, "9100");
+            System.setProperty(ConsulServiceRegistrarFactory.PROP_JOURNAL, "/var/lib/journal");
+            System.setProperty(ConsulServiceRegistrarFactory.PROP_JOURNAL_GRACE_PERIOD, "120");
+            System.setProperty(ConsulServiceRegistrarFactory.PROP_RECOVERY_RATE, "25");
+            System.setProperty(ConsulServiceRegistrarFactory.PROP_RECOVERY_BURST, "10");
+            System.setProperty(ConsulServiceRegistrarFactory.PROP_OWNER_ID, "agent-1");
+            System.setProperty(ConsulServiceRegistrarFactory.PROP_TAKEOVER_GRACE_PERIOD, "900");
 
             RegistrarConfig config = ConsulServiceRegistrarFactory.createConfig();
             assertEquals("tag", config.getDeployTag());
             assertEquals(123, config.getSyncInterval());
+            assertEquals(1230, config.getMaxSyncInterval());
             assertEquals(456, config.getHealthCheckInterval());
+            assertFalse(config.isWatch());
+            assertEquals(789, config.getWatchWait());
+            assertEquals("0.0.0.0", config.getMetricsAddress());
+            assertEquals(9100, config.getMetricsPort());
+            assertEquals("/var/lib/journal", config.getJournalPath());
+            assertEquals(120, config.getJournalGracePeriod());
+            assertEquals(25, config.getRecoveryRate());
+            assertEquals(10, config.getRecoveryBurst());
+            assertEquals("agent-1", config.getOwnerId());
+            assertEquals(900, config.getTakeoverGracePeriod());
         } finally {
             System.clearProperty(ConsulServiceRegistrarFactory.PROP_DEPLOY_TAG);
             System.clearProperty(ConsulServiceRegistrarFactory.PROP_SYNC_INTERVAL);
+            System.clearProperty(ConsulServiceRegistrarFactory.PROP_MAX_SYNC_INTERVAL);
             System.clearProperty(ConsulServiceRegistrarFactory.PROP_HEALTH_CHECK_INTERVAL);
+            System.clearProperty(ConsulServiceRegistrarFactory.PROP_WATCH);
+            System.clearProperty(ConsulServiceRegistrarFactory.PROP_WATCH_WAIT);
+            System.clearProperty(ConsulServiceRegistrarFactory.PROP_METRICS_ADDRESS);
+            System.clearProperty(ConsulServiceRegistrarFactory.PROP_METRICS_PORT);
+            System.clearProperty(ConsulServiceRegistrarFactory.PROP_JOURNAL);
+            System.clearProperty(ConsulServiceRegistrarFactory.PROP_JOURNAL_GRACE_PERIOD);
+            System.clearProperty(ConsulServiceRegistrarFactory.PROP_RECOVERY_RATE);
+            System.clearProperty(ConsulServiceRegistrarFactory.PROP_RECOVERY_BURST);
+            System.clearProperty(ConsulServiceRegistrarFactory.PROP_OWNER_ID);
+            System.clearProperty(ConsulServiceRegistrarFactory.PROP_TAKEOVER_GRACE_PERIOD);
+        }
+    }
+
+    @Test
+    public void testCreateClientConfig() throws Exception {
+        try {
+            System.setProperty(ConsulServiceRegistrarFactory.PROP_MAX_CONCURRENT_REQUESTS, "8");
+            System.setProperty(ConsulServiceRegistrarFactory.PROP_MAX_QUEUED_REQUESTS, "100");
+            System.setProperty(ConsulServiceRegistrarFactory.PROP_REQUEST_TIMEOUT, "5");
+            System.setProperty(ConsulServiceRegistrarFactory.PROP_KEEP_ALIVE, "60");
+            System.setProperty(ConsulServiceRegistrarFactory.PROP_IO_THREADS, "2");
+
+            ConsulClientConfig config = ConsulServiceRegistrarFactory.createClientConfig();
+            assertEquals(8, config.getMaxConcurrentRequests());
+            assertEquals(100, config.getMaxQueuedRequests());
+            assertEquals(5, config.getRequestTimeout());
+            assertEquals(60, config.getKeepAlive());
+            assertEquals(2, config.getIoThreads());
+        } finally {
+            System.clearProperty(ConsulServiceRegistrarFactory.PROP_MAX_CONCURRENT_REQUESTS);
+            System.clearProperty(ConsulServiceRegistrarFactory.PROP_MAX_QUEUED_REQUESTS);
+            System.clearProperty(ConsulServiceRegistrarFactory.PROP_REQUEST_TIMEOUT);
+            System.clearProperty(ConsulServiceRegistrarFactory.PROP_KEEP_ALIVE);
+            System.clearProperty(ConsulServiceRegistrarFactory.PROP_IO_THREADS);
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testCreateClientConfigZeroConcurrency() throws Exception {
+        try {
+            System.setProperty(ConsulServiceRegistrarFactory.PROP_MAX_CONCURRENT_REQUESTS, "0");
+            ConsulServiceRegistrarFactory.createClientConfig();
+        } finally {
+            System.clearProperty(ConsulServiceRegistrarFactory.PROP_MAX_CONCURRENT_REQUESTS);
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testCreateConfigNegativeRecoveryRate() throws Exception {
+        try {
+            System.setProperty(ConsulServiceRegistrarFactory.PROP_RECOVERY_RATE, "-1");
+            ConsulServiceRegistrarFactory.createConfig();
+        } finally {
+            System.clearProperty(ConsulServiceRegistrarFactory.PROP_RECOVERY_RATE);
         }
     }
-}
\ No newline at end of file
+}
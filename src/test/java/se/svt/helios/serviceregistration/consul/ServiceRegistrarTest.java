@@ -1,23 +1,50 @@
 package se.svt.helios.serviceregistration.consul;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.spotify.helios.serviceregistration.ServiceRegistrar;
 import com.spotify.helios.serviceregistration.ServiceRegistration;
 import com.spotify.helios.serviceregistration.ServiceRegistrationHandle;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.mockito.runners.MockitoJUnitRunner;
+import se.svt.helios.serviceregistration.consul.model.AgentCheck;
+import se.svt.helios.serviceregistration.consul.model.AgentService;
+import se.svt.helios.serviceregistration.consul.model.HashedAgentServices;
 import se.svt.helios.serviceregistration.consul.model.RegistrarConfig;
 import se.svt.helios.serviceregistration.consul.model.Service;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyObject;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 import static com.google.common.collect.Lists.newArrayList;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -29,12 +56,21 @@ public class ServiceRegistrarTest {
             new ServiceRegistration.Endpoint("redis", "http", 9000, "local", "example.com",
                     newArrayList("healthCheckEndpoint::/health"), null);
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Mock
     ConsulClient consulClient;
 
+    @Before
+    public void setUp() {
+        when(consulClient.fetchAgentChecks()).thenReturn(
+                Futures.immediateFuture(Collections.<String, AgentCheck>emptyMap()));
+    }
+
     @Test
     public void testRegister() throws Exception {
-        ArgumentCaptor<Service> serviceCaptor = ArgumentCaptor.forClass(Service.class);
+        ArgumentCaptor<DesiredService> serviceCaptor = ArgumentCaptor.forClass(DesiredService.class);
 
         RegistrarConfig config = ConsulServiceRegistrarFactory.createConfig();
         ConsulServiceRegistrar registrar = new ConsulServiceRegistrar(consulClient, config);
@@ -44,7 +80,7 @@ public class ServiceRegistrarTest {
         verify(consulClient).register(serviceCaptor.capture());
         verify(consulClient).close();
 
-        Service service = serviceCaptor.getValue();
+        Service service = serviceCaptor.getValue().getService();
         assertEquals("redis", service.getName());
         assertEquals(9000, service.getPort().intValue());
         assertTrue(service.getTags().contains("protocol-http"));
@@ -58,7 +94,7 @@ public class ServiceRegistrarTest {
 
     @Test
     public void testSetInterval() throws Exception {
-        ArgumentCaptor<Service> serviceCaptor = ArgumentCaptor.forClass(Service.class);
+        ArgumentCaptor<DesiredService> serviceCaptor = ArgumentCaptor.forClass(DesiredService.class);
 
         RegistrarConfig config = new RegistrarConfig(10, 42, "helios-deploy");
         ConsulServiceRegistrar registrar = new ConsulServiceRegistrar(consulClient, config);
@@ -68,7 +104,7 @@ public class ServiceRegistrarTest {
         verify(consulClient).register(serviceCaptor.capture());
         verify(consulClient).close();
 
-        Service service = serviceCaptor.getValue();
+        Service service = serviceCaptor.getValue().getService();
         assertEquals("42s", service.getCheck().getInterval());
     }
 
@@ -80,14 +116,14 @@ public class ServiceRegistrarTest {
         registrar.unregister(handle);
         registrar.close();
 
-        verify(consulClient).register((Service) anyObject());
+        verify(consulClient).register((DesiredService) anyObject());
         verify(consulClient).deregister(ENDPOINT_WITHOUT_TAGS.getName());
         verify(consulClient).close();
     }
 
     @Test
     public void testRegisterWithoutCheck() throws Exception {
-        ArgumentCaptor<Service> serviceCaptor = ArgumentCaptor.forClass(Service.class);
+        ArgumentCaptor<DesiredService> serviceCaptor = ArgumentCaptor.forClass(DesiredService.class);
 
         RegistrarConfig config = ConsulServiceRegistrarFactory.createConfig();
         ConsulServiceRegistrar registrar = new ConsulServiceRegistrar(consulClient, config);
@@ -97,10 +133,411 @@ public class ServiceRegistrarTest {
         verify(consulClient).register(serviceCaptor.capture());
         verify(consulClient).close();
 
-        Service service = serviceCaptor.getValue();
+        Service service = serviceCaptor.getValue().getService();
         assertEquals("redis", service.getName());
         assertEquals(9000, service.getPort().intValue());
         assertTrue(service.getTags().contains("protocol-http"));
         assertNull(service.getCheck());
     }
+
+    @Test
+    public void testWatchSyncsOnHashChange() throws Exception {
+        RegistrarConfig config = RegistrarConfig.builder()
+                .setSyncInterval(3600)
+                .setWatch(true)
+                .build();
+        HashedAgentServices unchanged =
+                new HashedAgentServices("4f2a", Collections.<String, AgentService>emptyMap());
+        when(consulClient.fetchAgentServicesWithTag(anyString(), (String) isNull(), anyInt()))
+                .thenReturn(Futures.immediateFuture(unchanged));
+        when(consulClient.fetchAgentServicesWithTag(anyString(), eq("4f2a"), anyInt()))
+                .thenReturn(Futures.immediateFuture(unchanged));
+
+        ConsulServiceRegistrar registrar = new ConsulServiceRegistrar(consulClient, config);
+        registrar.register(new ServiceRegistration(Arrays.asList(ENDPOINT_WITHOUT_TAGS)));
+
+        // The first response has a hash, so the missing service is re-registered
+        registrar.watchState().get();
+        verify(consulClient, times(2)).register((DesiredService) anyObject());
+
+        // The hash is unchanged, nothing to sync
+        registrar.watchState().get();
+        verify(consulClient, times(2)).register((DesiredService) anyObject());
+        registrar.close();
+    }
+
+    @Test
+    public void testWatchRepairsFailedWritesWhileHashIsUnchanged() throws Exception {
+        RegistrarConfig config = RegistrarConfig.builder()
+                .setSyncInterval(1)
+                .setWatch(true)
+                .build();
+        HashedAgentServices unchanged =
+                new HashedAgentServices("4f2a", Collections.<String, AgentService>emptyMap());
+        when(consulClient.fetchAgentServicesWithTag(anyString())).thenReturn(
+                agentServices(Collections.<String, AgentService>emptyMap()));
+        when(consulClient.fetchAgentServicesWithTag(anyString(), (String) isNull(), anyInt()))
+                .thenReturn(Futures.immediateFuture(unchanged));
+        // The agent's service list never changes again
+        final CountDownLatch watching = new CountDownLatch(1);
+        when(consulClient.fetchAgentServicesWithTag(anyString(), eq("4f2a"), anyInt()))
+                .thenAnswer(new Answer<ListenableFuture<HashedAgentServices>>() {
+                    @Override
+                    public ListenableFuture<HashedAgentServices> answer(
+                            final InvocationOnMock invocation) {
+                        watching.countDown();
+                        return SettableFuture.create();
+                    }
+                });
+        // The agent rejects the first registration, which is not retried
+        when(consulClient.register((DesiredService) anyObject())).thenReturn(
+                Futures.<HttpResponse>immediateFuture(
+                        new BasicHttpResponse(HttpVersion.HTTP_1_1, 400, "Bad Request")),
+                null);
+
+        ConsulServiceRegistrar registrar = new ConsulServiceRegistrar(consulClient, config);
+        assertTrue(watching.await(5, TimeUnit.SECONDS));
+        registrar.register(new ServiceRegistration(Arrays.asList(ENDPOINT_WITHOUT_TAGS)));
+
+        // Registered again by a full sync, without the hash changing
+        verify(consulClient, timeout(10000).times(2)).register((DesiredService) anyObject());
+        registrar.close();
+    }
+
+    @Test
+    public void testSyncStateOnlyRegistersDrift() throws Exception {
+        ArgumentCaptor<DesiredService> serviceCaptor = ArgumentCaptor.forClass(DesiredService.class);
+
+        ServiceRegistration.Endpoint redis = Utils.newEndpointBuilder()
+                .name("redis-v1").port(9000).protocol("http").build();
+        ServiceRegistration.Endpoint memcached = Utils.newEndpointBuilder()
+                .name("memcached-v1").port(9001).protocol("http").build();
+
+        RegistrarConfig config = new RegistrarConfig(3600, 10, "helios-deployed");
+        ConsulServiceRegistrar registrar = new ConsulServiceRegistrar(consulClient, config);
+        when(consulClient.fetchAgentServicesWithTag("helios-deployed")).thenReturn(agentServices(
+                ImmutableMap.of(
+                        "redis-v1", new AgentService("redis-v1", "redis",
+                                Arrays.asList("helios-deployed", "protocol-http", "v1"), 9000),
+                        "memcached-v1", new AgentService("memcached-v1", "memcached",
+                                Arrays.asList("helios-deployed", "protocol-http"), 9001),
+                        "orphan-v1", new AgentService("orphan-v1", "orphan",
+                                Arrays.asList("helios-deployed"), 9002))));
+
+        registrar.register(new ServiceRegistration(Arrays.asList(redis, memcached)));
+        registrar.syncState().get();
+        registrar.close();
+
+        // Two initial registrations and one re-registration of the endpoint missing a tag
+        verify(consulClient, times(3)).register(serviceCaptor.capture());
+        assertEquals("memcached-v1", serviceCaptor.getAllValues().get(2).getId());
+        verify(consulClient).deregister("orphan-v1");
+    }
+
+    @Test
+    public void testSyncDoesNotRestoreServiceUnregisteredDuringSync() throws Exception {
+        RegistrarConfig config = new RegistrarConfig(3600, 10, "helios-deployed");
+        ConsulServiceRegistrar registrar = new ConsulServiceRegistrar(consulClient, config);
+        SettableFuture<Map<String, AgentCheck>> checks = SettableFuture.create();
+        when(consulClient.fetchAgentChecks()).thenReturn(checks);
+        when(consulClient.fetchAgentServicesWithTag("helios-deployed"))
+                .thenReturn(agentServices(Collections.<String, AgentService>emptyMap()));
+
+        ServiceRegistrationHandle handle =
+                registrar.register(new ServiceRegistration(Arrays.asList(ENDPOINT_CHECK_FROM_TAG)));
+
+        // The sync has planned to register the service again when Helios unregisters it
+        ListenableFuture<ServiceReconciler.Plan> sync = registrar.syncState();
+        registrar.unregister(handle);
+        checks.set(Collections.<String, AgentCheck>emptyMap());
+
+        // Written since the agent was observed, so left out of the plan
+        assertEquals(0, sync.get().getRegistrations().size());
+        registrar.close();
+        verify(consulClient, times(1)).register((DesiredService) anyObject());
+        verify(consulClient).deregister(ENDPOINT_CHECK_FROM_TAG.getName());
+    }
+
+    @Test
+    public void testSyncIgnoresObservationOlderThanLocalWrites() throws Exception {
+        ServiceRegistration.Endpoint redis = Utils.newEndpointBuilder()
+                .name("redis-v1").port(9000).protocol("http").build();
+        ServiceRegistration.Endpoint memcached = Utils.newEndpointBuilder()
+                .name("memcached-v1").port(9001).protocol("http").build();
+        RegistrarConfig config = new RegistrarConfig(3600, 10, "helios-deployed");
+        ConsulServiceRegistrar registrar = new ConsulServiceRegistrar(consulClient, config);
+        ServiceRegistrationHandle handle =
+                registrar.register(new ServiceRegistration(Arrays.asList(memcached)));
+
+        SettableFuture<Map<String, AgentService>> observed = SettableFuture.create();
+        when(consulClient.fetchAgentServicesWithTag("helios-deployed")).thenReturn(observed);
+        ListenableFuture<ServiceReconciler.Plan> sync = registrar.syncState();
+
+        // While the agent is being asked, Helios registers one service and removes the other
+        registrar.register(new ServiceRegistration(Arrays.asList(redis)));
+        registrar.unregister(handle);
+        observed.set(ImmutableMap.of("memcached-v1", new AgentService("memcached-v1",
+                "memcached", Arrays.asList("helios-deployed", "protocol-http"), 9001)));
+
+        // The agent's answer predates both, so the sync neither registers nor reaps them again
+        assertTrue(sync.get().isEmpty());
+        registrar.close();
+        verify(consulClient, times(2)).register((DesiredService) anyObject());
+        verify(consulClient, times(1)).deregister("memcached-v1");
+    }
+
+    @Test
+    public void testJournalSurvivesRestart() throws Exception {
+        ServiceRegistration.Endpoint redis = Utils.newEndpointBuilder()
+                .name("redis-v1").port(9000).protocol("http").build();
+        RegistrarConfig config = RegistrarConfig.builder()
+                .setSyncInterval(3600)
+                .setJournalPath(folder.newFile().getPath())
+                .setJournalGracePeriod(2)
+                .build();
+        ConsulServiceRegistrar registrar = new ConsulServiceRegistrar(consulClient, config);
+        when(consulClient.fetchAgentServicesWithTag("helios-deployed")).thenReturn(agentServices(
+                ImmutableMap.of(
+                        "redis-v1", new AgentService("redis-v1", "redis",
+                                Arrays.asList("helios-deployed", "protocol-http", "v1"), 9000),
+                        "orphan-v1", new AgentService("orphan-v1", "orphan",
+                                Arrays.asList("helios-deployed"), 9002))));
+
+        registrar.register(new ServiceRegistration(Arrays.asList(redis)));
+        registrar.close();
+
+        // A new registrar adopts the journaled service and reaps nothing during the grace period
+        ConsulServiceRegistrar restarted = new ConsulServiceRegistrar(consulClient, config);
+        restarted.getStartupLookup().get();
+        restarted.syncState().get();
+        verify(consulClient, times(1)).register((DesiredService) anyObject());
+        verify(consulClient, never()).deregister(anyString());
+
+        // Helios never registered the service again, so it is reaped with the orphan as soon as
+        // the grace period is over
+        verify(consulClient, timeout(5000).times(2)).deregister(anyString());
+        restarted.close();
+        verify(consulClient).deregister("redis-v1");
+        verify(consulClient).deregister("orphan-v1");
+    }
+
+    @Test
+    public void testSetHealthCheckIntervalCoversAdoptedServices() throws Exception {
+        ArgumentCaptor<DesiredService> serviceCaptor = ArgumentCaptor.forClass(DesiredService.class);
+        RegistrarConfig config = RegistrarConfig.builder()
+                .setSyncInterval(3600)
+                .setJournalPath(folder.newFile().getPath())
+                .build();
+        when(consulClient.fetchAgentServicesWithTag("helios-deployed")).thenReturn(agentServices(
+                ImmutableMap.of("redis", new AgentService("redis", "redis",
+                        Arrays.asList("helios-deployed", "protocol-http"), 9000))));
+        ConsulServiceRegistrar registrar = new ConsulServiceRegistrar(consulClient, config);
+        registrar.getStartupLookup().get();
+        registrar.register(new ServiceRegistration(Arrays.asList(ENDPOINT_CHECK_FROM_TAG)));
+        registrar.close();
+
+        ConsulServiceRegistrar restarted = new ConsulServiceRegistrar(consulClient, config);
+        restarted.getStartupLookup().get();
+        // The agent has no check for the adopted service, so the startup sync repairs it
+        verify(consulClient, times(2)).register((DesiredService) anyObject());
+        restarted.setHealthCheckInterval(30);
+
+        verify(consulClient, times(3)).register(serviceCaptor.capture());
+        DesiredService redis = serviceCaptor.getAllValues().get(2);
+        assertEquals("redis", redis.getId());
+        assertEquals("30s", redis.getService().getCheck().getInterval());
+
+        // Still reaped if Helios does not register it again
+        restarted.endGracePeriod().get();
+        restarted.close();
+        verify(consulClient).deregister("redis");
+    }
+
+    @Test
+    public void testRegisterSkipsServicesPresentAtStartup() throws Exception {
+        ArgumentCaptor<DesiredService> serviceCaptor = ArgumentCaptor.forClass(DesiredService.class);
+
+        ServiceRegistration.Endpoint redis = Utils.newEndpointBuilder()
+                .name("redis-v1").port(9000).protocol("http").build();
+        ServiceRegistration.Endpoint memcached = Utils.newEndpointBuilder()
+                .name("memcached-v1").port(9001).protocol("http").build();
+
+        RegistrarConfig config = new RegistrarConfig(3600, 10, "helios-deployed");
+        when(consulClient.fetchAgentServicesWithTag("helios-deployed")).thenReturn(agentServices(
+                ImmutableMap.of(
+                        "redis-v1", new AgentService("redis-v1", "redis",
+                                Arrays.asList("helios-deployed", "protocol-http", "v1"), 9000),
+                        "memcached-v1", new AgentService("memcached-v1", "memcached",
+                                Arrays.asList("helios-deployed", "protocol-http"), 9001))));
+
+        ConsulServiceRegistrar registrar = new ConsulServiceRegistrar(consulClient, config);
+        registrar.getStartupLookup().get();
+        ServiceRegistrationHandle handle =
+                registrar.register(new ServiceRegistration(Arrays.asList(redis, memcached)));
+
+        // Only the endpoint missing a tag is sent
+        verify(consulClient).register(serviceCaptor.capture());
+        assertEquals("memcached-v1", serviceCaptor.getValue().getId());
+
+        // Once deregistered, the startup state no longer applies
+        registrar.unregister(handle);
+        registrar.register(new ServiceRegistration(Arrays.asList(redis)));
+        registrar.close();
+        verify(consulClient, times(2)).register((DesiredService) anyObject());
+    }
+
+    @Test
+    public void testRegisterSendsServicesWhoseCheckChangedSinceStartup() throws Exception {
+        ArgumentCaptor<DesiredService> serviceCaptor = ArgumentCaptor.forClass(DesiredService.class);
+        when(consulClient.fetchAgentServicesWithTag("helios-deployed")).thenReturn(agentServices(
+                ImmutableMap.of("redis", new AgentService("redis", "redis",
+                        Arrays.asList("helios-deployed", "protocol-http"), 9000))));
+        // Registered before the restart with a 10 second interval
+        when(consulClient.fetchAgentChecks()).thenReturn(Futures.immediateFuture(
+                Collections.singletonMap("service:redis", new AgentCheck("service:redis",
+                        "check", "passing", "redis", null, "http://example.com:9000/health",
+                        "10s"))));
+
+        ConsulServiceRegistrar registrar = new ConsulServiceRegistrar(consulClient,
+                new RegistrarConfig(3600, 30, "helios-deployed"));
+        registrar.getStartupLookup().get();
+        registrar.register(new ServiceRegistration(Arrays.asList(ENDPOINT_CHECK_FROM_TAG)));
+        registrar.close();
+
+        verify(consulClient).register(serviceCaptor.capture());
+        assertEquals("30s", serviceCaptor.getValue().getService().getCheck().getInterval());
+    }
+
+    @Test
+    public void testStartupLookupDoesNotHoldBackRegistrations() throws Exception {
+        ServiceRegistration.Endpoint redis = Utils.newEndpointBuilder()
+                .name("redis-v1").port(9000).protocol("http").build();
+        ServiceRegistration.Endpoint memcached = Utils.newEndpointBuilder()
+                .name("memcached-v1").port(9001).protocol("http").build();
+        SettableFuture<Map<String, AgentService>> lookup = SettableFuture.create();
+        when(consulClient.fetchAgentServicesWithTag("helios-deployed")).thenReturn(lookup);
+
+        // The agent does not answer, but the registrar is created and registers right away
+        ConsulServiceRegistrar registrar = new ConsulServiceRegistrar(consulClient,
+                new RegistrarConfig(3600, 10, "helios-deployed"));
+        ServiceRegistrationHandle handle =
+                registrar.register(new ServiceRegistration(Arrays.asList(redis)));
+        verify(consulClient).register((DesiredService) anyObject());
+
+        // The answer predates the deregistration, so it no longer says what the agent has
+        registrar.unregister(handle);
+        lookup.set(ImmutableMap.of(
+                "redis-v1", new AgentService("redis-v1", "redis",
+                        Arrays.asList("helios-deployed", "protocol-http", "v1"), 9000),
+                "memcached-v1", new AgentService("memcached-v1", "memcached",
+                        Arrays.asList("helios-deployed", "protocol-http", "v1"), 9001)));
+        registrar.getStartupLookup().get();
+
+        // Only what the agent had and nothing has written since is skipped
+        registrar.register(new ServiceRegistration(Arrays.asList(redis, memcached)));
+        registrar.close();
+        ArgumentCaptor<DesiredService> serviceCaptor = ArgumentCaptor.forClass(DesiredService.class);
+        verify(consulClient, times(2)).register(serviceCaptor.capture());
+        assertEquals("redis-v1", serviceCaptor.getAllValues().get(1).getId());
+    }
+
+    @Test
+    public void testPollStateSyncsOnlyWhenAgentChanges() throws Exception {
+        ServiceRegistration.Endpoint redis = Utils.newEndpointBuilder()
+                .name("redis-v1").port(9000).protocol("http").build();
+        RegistrarConfig config = RegistrarConfig.builder()
+                .setSyncInterval(3600)
+                .setMaxSyncInterval(36000)
+                .build();
+        when(consulClient.fetchAgentServicesWithTag("helios-deployed")).thenReturn(agentServices(
+                ImmutableMap.of("redis-v1", new AgentService("redis-v1", "redis",
+                        Arrays.asList("helios-deployed", "protocol-http", "v1"), 9000))));
+        when(consulClient.fetchAgentServiceCount()).thenReturn(Futures.immediateFuture(1));
+
+        ConsulServiceRegistrar registrar = new ConsulServiceRegistrar(consulClient, config);
+        registrar.getStartupLookup().get();
+        registrar.register(new ServiceRegistration(Arrays.asList(redis)));
+        // Fetched once at startup
+        verify(consulClient, times(1)).fetchAgentServicesWithTag("helios-deployed");
+
+        // The first check syncs, the following do not while the agent is unchanged
+        registrar.pollState().get();
+        registrar.pollState().get();
+        verify(consulClient, times(2)).fetchAgentServicesWithTag("helios-deployed");
+
+        // The agent restarted and lost its services
+        when(consulClient.fetchAgentServicesWithTag("helios-deployed"))
+                .thenReturn(agentServices(Collections.<String, AgentService>emptyMap()));
+        when(consulClient.fetchAgentServiceCount()).thenReturn(Futures.immediateFuture(0));
+        registrar.pollState().get();
+        registrar.close();
+
+        verify(consulClient, times(3)).fetchAgentServicesWithTag("helios-deployed");
+        verify(consulClient).register((DesiredService) anyObject());
+    }
+
+    @Test
+    public void testSyncOnlyDeregistersOwnServices() throws Exception {
+        ServiceRegistration.Endpoint redis = Utils.newEndpointBuilder()
+                .name("redis-v1").port(9000).protocol("http").build();
+
+        RegistrarConfig config = RegistrarConfig.builder()
+                .setSyncInterval(3600)
+                .setOwnerId("a")
+                .build();
+        ConsulServiceRegistrar registrar = new ConsulServiceRegistrar(consulClient, config);
+        when(consulClient.fetchAgentServicesWithTag("helios-deployed")).thenReturn(agentServices(
+                ImmutableMap.of(
+                        "redis-v1", new AgentService("redis-v1", "redis", Arrays.asList(
+                                "helios-deployed", "helios-deployed-owner:a", "protocol-http",
+                                "v1"), 9000),
+                        "orphan-v1", new AgentService("orphan-v1", "orphan",
+                                Arrays.asList("helios-deployed", "helios-deployed-owner:a"), 9001),
+                        "theirs-v1", new AgentService("theirs-v1", "theirs",
+                                Arrays.asList("helios-deployed", "helios-deployed-owner:b"), 9002),
+                        "leftover-v1", new AgentService("leftover-v1", "leftover",
+                                Arrays.asList("helios-deployed"), 9003))));
+
+        registrar.register(new ServiceRegistration(Arrays.asList(redis)));
+        ServiceReconciler.Plan plan = registrar.syncState().get();
+        registrar.close();
+
+        // The ownerless service is only taken over after the grace period
+        assertEquals(Arrays.asList("orphan-v1"), plan.getDeregistrations());
+        assertEquals(0, plan.getRegistrations().size());
+        verify(consulClient).deregister("orphan-v1");
+        verify(consulClient, never()).deregister("theirs-v1");
+        verify(consulClient, never()).deregister("leftover-v1");
+    }
+
+    @Test
+    public void testWatchTakesOverOwnerlessServicesWhileHashIsUnchanged() throws Exception {
+        RegistrarConfig config = RegistrarConfig.builder()
+                .setSyncInterval(1)
+                .setWatch(true)
+                .setOwnerId("a")
+                .setTakeoverGracePeriod(1)
+                .build();
+        Map<String, AgentService> services = ImmutableMap.of(
+                "leftover-v1", new AgentService("leftover-v1", "leftover",
+                        Arrays.asList("helios-deployed"), 9003));
+        when(consulClient.fetchAgentServicesWithTag(anyString())).thenReturn(
+                agentServices(services));
+        when(consulClient.fetchAgentServicesWithTag(anyString(), (String) isNull(), anyInt()))
+                .thenReturn(Futures.immediateFuture(new HashedAgentServices("4f2a", services)));
+        // The agent's service list never changes again
+        when(consulClient.fetchAgentServicesWithTag(anyString(), eq("4f2a"), anyInt()))
+                .thenReturn(SettableFuture.<HashedAgentServices>create());
+
+        ConsulServiceRegistrar registrar = new ConsulServiceRegistrar(consulClient, config);
+
+        // Taken over by a full sync once the grace period has passed, without the hash changing
+        verify(consulClient, timeout(10000).atLeastOnce()).deregister("leftover-v1");
+        registrar.close();
+    }
+
+    private static ListenableFuture<Map<String, AgentService>> agentServices(
+            Map<String, AgentService> services) {
+        return Futures.immediateFuture(services);
+    }
 }
@@ -0,0 +1,41 @@
+package se.svt.helios.serviceregistration.consul;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class SrvAgentResolverTest {
+
+    @Test
+    public void testParse() {
+        SrvAgentResolver.SrvRecord record =
+                SrvAgentResolver.SrvRecord.parse("1 10 8500 consul1.example.com.");
+        assertEquals("http://consul1.example.com:8500", record.toUri());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseInvalid() {
+        SrvAgentResolver.SrvRecord.parse("1 10 consul1.example.com.");
+    }
+
+    @Test
+    public void testOrder() {
+        SrvAgentResolver.SrvRecord backup = SrvAgentResolver.SrvRecord.parse("2 100 8500 c.");
+        SrvAgentResolver.SrvRecord light = SrvAgentResolver.SrvRecord.parse("1 10 8500 b.");
+        SrvAgentResolver.SrvRecord heavy = SrvAgentResolver.SrvRecord.parse("1 20 8500 a.");
+
+        List<SrvAgentResolver.SrvRecord> records = Arrays.asList(backup, light, heavy);
+        Collections.sort(records);
+        assertEquals(Arrays.asList(heavy, light, backup), records);
+    }
+
+    @Test
+    public void testStaticResolver() {
+        assertEquals(Arrays.asList("http://a:8500", "http://b:8500"),
+                new StaticAgentResolver().resolve(" http://a:8500, http://b:8500,"));
+    }
+}
@@ -0,0 +1,189 @@
+package se.svt.helios.serviceregistration.consul;
+
+import com.google.common.base.Charsets;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import se.svt.helios.serviceregistration.consul.metrics.NoopRegistrarMetrics;
+import se.svt.helios.serviceregistration.consul.model.ConsulClientConfig;
+import se.svt.helios.serviceregistration.consul.model.Service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ProtocolFamily;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class UnixSocketTransportTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    ServerSocketChannel server;
+    String socketPath;
+    List<String> requests = new CopyOnWriteArrayList<>();
+    AtomicInteger connections = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(UnixSocketTransport.isSupported());
+        socketPath = folder.getRoot().getPath() + "/consul.sock";
+        server = (ServerSocketChannel) ServerSocketChannel.class
+                .getMethod("open", ProtocolFamily.class)
+                .invoke(null, UnixSocketTransport.unixProtocolFamily());
+        server.bind(UnixSocketTransport.socketAddress(socketPath));
+
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final SocketChannel channel = server.accept();
+                        connections.incrementAndGet();
+                        new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(channel);
+                            }
+                        }).start();
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testRequestsShareConnection() throws Exception {
+        try (ConsulClient client = new ConsulClient("unix://" + socketPath,
+                ConsulClientConfig.builder().build(), NoopRegistrarMetrics.INSTANCE)) {
+            assertTrue(client.getAgentServicesWithTag("helios-deployed").isEmpty());
+            assertEquals(200, client.register(Service.builder()
+                    .setId("redis")
+                    .setName("redis")
+                    .setPort(9000)
+                    .build()).get().getStatusLine().getStatusCode());
+            assertTrue(client.getAgentChecks().isEmpty());
+        }
+
+        // The agent's version is looked up first, to know whether it can filter the services
+        assertEquals("GET /v1/agent/self HTTP/1.1", requests.get(0));
+        assertEquals("GET /v1/agent/services HTTP/1.1", requests.get(1));
+        assertEquals("PUT /v1/agent/service/register HTTP/1.1", requests.get(2));
+        assertEquals(4, requests.size());
+        assertEquals(1, connections.get());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCanNotSendBeforeStart() throws Exception {
+        try (UnixSocketTransport transport = new UnixSocketTransport(socketPath, 60, 5000)) {
+            transport.send(new HttpGet(UnixSocketTransport.REQUEST_BASE_URI + "/v1/agent/self"));
+        }
+    }
+
+    @Test
+    public void testSend() throws Exception {
+        try (UnixSocketTransport transport = new UnixSocketTransport(socketPath, 60, 5000)) {
+            transport.start();
+            final HttpResponse response = transport.send(
+                    new HttpGet(UnixSocketTransport.REQUEST_BASE_URI + "/v1/agent/self")).get();
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            assertEquals("{}", EntityUtils.toString(response.getEntity()));
+        }
+        assertEquals("GET /v1/agent/self HTTP/1.1", requests.get(0));
+    }
+
+    @Test
+    public void testSocketTimeout() throws Exception {
+        try (UnixSocketTransport transport = new UnixSocketTransport(socketPath, 60, 5000)) {
+            transport.start();
+            HttpGet request = new HttpGet(UnixSocketTransport.REQUEST_BASE_URI + "/hang");
+            request.setConfig(RequestConfig.custom().setSocketTimeout(100).build());
+            try {
+                transport.send(request).get(5, TimeUnit.SECONDS);
+                fail("Got a response from an agent that never answers");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof SocketTimeoutException);
+            }
+
+            // The connection is not reused
+            assertEquals(200, transport.send(new HttpGet(
+                    UnixSocketTransport.REQUEST_BASE_URI + "/v1/agent/self")).get()
+                    .getStatusLine().getStatusCode());
+        }
+        assertEquals(2, connections.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCanNotCombineWithOtherAgents() {
+        new ConsulClient(Arrays.asList("unix://" + socketPath, "http://localhost:8500"),
+                ConsulClientConfig.builder().build(), NoopRegistrarMetrics.INSTANCE);
+    }
+
+    /**
+     * Answers every request on the connection with an empty JSON object, like an agent without
+     * services or checks. Never answers a request for /hang.
+     */
+    private void serve(SocketChannel channel) {
+        try (SocketChannel c = channel) {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(Channels.newInputStream(c), Charsets.ISO_8859_1));
+            OutputStream out = Channels.newOutputStream(c);
+            String requestLine;
+            while ((requestLine = in.readLine()) != null) {
+                requests.add(requestLine);
+                int contentLength = 0;
+                String header;
+                while (!(header = in.readLine()).isEmpty()) {
+                    if (header.toLowerCase().startsWith("content-length:")) {
+                        contentLength = Integer.parseInt(header.substring(15).trim());
+                    }
+                }
+                for (int i = 0; i < contentLength; i++) {
+                    in.read();
+                }
+                if (requestLine.startsWith("GET /hang ")) {
+                    while (in.read() >= 0) {
+                        // Until the client gives up
+                    }
+                    return;
+                }
+                out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n" +
+                           "Content-Length: 2\r\n\r\n{}").getBytes(Charsets.ISO_8859_1));
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Client went away
+        }
+    }
+}
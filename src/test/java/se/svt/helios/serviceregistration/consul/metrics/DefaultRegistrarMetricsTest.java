@@ -0,0 +1,77 @@
+package se.svt.helios.serviceregistration.consul.metrics;
+
+import com.google.common.collect.ImmutableSortedMap;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DefaultRegistrarMetricsTest {
+
+    @Test
+    public void testRequests() throws Exception {
+        DefaultRegistrarMetrics metrics = new DefaultRegistrarMetrics();
+
+        metrics.requestStarted(Operation.REGISTER);
+        metrics.requestStarted(Operation.REGISTER);
+        metrics.requestStarted(Operation.REGISTER);
+        assertEquals(3, metrics.getInFlight(Operation.REGISTER));
+
+        metrics.requestCompleted(Operation.REGISTER, 200, TimeUnit.MILLISECONDS.toNanos(2));
+        metrics.requestCompleted(Operation.REGISTER, 500, TimeUnit.MILLISECONDS.toNanos(20));
+        metrics.requestFailed(Operation.REGISTER, TimeUnit.SECONDS.toNanos(30));
+
+        assertEquals(0, metrics.getInFlight(Operation.REGISTER));
+        assertEquals(ImmutableSortedMap.of(200, 1L, 500, 1L),
+                     metrics.getStatusCodes(Operation.REGISTER));
+        assertEquals(1, metrics.getFailures(Operation.REGISTER));
+        assertEquals(0, metrics.getLatency(Operation.DEREGISTER).getCount());
+
+        Histogram latency = metrics.getLatency(Operation.REGISTER);
+        assertEquals(3, latency.getCount());
+        assertArrayEquals(new long[]{0, 0, 1, 1, 1, 2, 2, 2, 2, 2, 2, 2, 2, 2, 3},
+                          latency.getCumulativeCounts());
+    }
+
+    @Test
+    public void testSync() throws Exception {
+        DefaultRegistrarMetrics metrics = new DefaultRegistrarMetrics();
+
+        metrics.syncCompleted(TimeUnit.MILLISECONDS.toNanos(5), 2, 3);
+        metrics.syncCompleted(TimeUnit.MILLISECONDS.toNanos(5), 0, 1);
+
+        assertEquals(2, metrics.getSyncDuration().getCount());
+        assertEquals(2, metrics.getDeregisteredTotal());
+        assertEquals(4, metrics.getReregisteredTotal());
+        assertEquals(0, metrics.getLastDeregistered());
+        assertEquals(1, metrics.getLastReregistered());
+    }
+
+    @Test
+    public void testPrometheusTextFormat() throws Exception {
+        DefaultRegistrarMetrics metrics = new DefaultRegistrarMetrics();
+        metrics.requestStarted(Operation.REGISTER);
+        metrics.requestCompleted(Operation.REGISTER, 200, TimeUnit.MILLISECONDS.toNanos(500));
+        metrics.syncCompleted(TimeUnit.MILLISECONDS.toNanos(5), 1, 2);
+
+        StringBuilder out = new StringBuilder();
+        PrometheusTextFormat.write(metrics, out);
+        String text = out.toString();
+
+        assertTrue(text.contains("# TYPE helios_consul_request_duration_seconds histogram\n"));
+        assertTrue(text.contains(
+                "helios_consul_request_duration_seconds_bucket{operation=\"register\",le=\"0.5\"} 1\n"));
+        assertTrue(text.contains(
+                "helios_consul_request_duration_seconds_sum{operation=\"register\"} 0.5\n"));
+        assertTrue(text.contains(
+                "helios_consul_responses_total{operation=\"register\",code=\"200\"} 1\n"));
+        assertTrue(text.contains(
+                "helios_consul_requests_in_flight{operation=\"register\"} 0\n"));
+        assertTrue(text.contains("helios_consul_sync_duration_seconds_count 1\n"));
+        assertTrue(text.contains("helios_consul_sync_deregistered_total 1\n"));
+        assertTrue(text.contains("helios_consul_last_sync_reregistered 2\n"));
+    }
+}